@@ -7,8 +7,7 @@ import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayDeque;
 import java.util.concurrent.TimeUnit;
 
 class AndroidVideoDecoder implements VideoDecoder, VideoSink {
@@ -32,16 +31,53 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
   
+  // How long releasing the codec waits for frames that still reference codec output buffers. Frames
+  // held longer are abandoned and the codec is released anyway.
+  private static final long BORROWED_OUTPUT_BUFFERS_TIMEOUT_MS = 500L;
+  
+  // Output poll timeout while queued input frames wait for an input buffer, so they are fed soon.
+  private static final int QUEUED_INPUT_OUTPUT_TIMEOUT_US = 5000;
+  
   private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
   
   private final String codecName;
   
   private final VideoCodecMimeType codecType;
   
-  private final BlockingDeque<FrameInfo> frameInfos;
+  // Decode start time and rotation of the frames in the codec, in input order.
+  private final FrameInfoRing frameInfos;
+  
+  // Reused by every dequeueOutputBuffer() call on the output thread.
+  private final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
   
   private int colorFormat;
   
+  // Output buffers that may be handed downstream without copying, 0 to always copy.
+  private final int maxBorrowedOutputBuffers;
+  
+  @Nullable
+  private BorrowedOutputBuffers borrowedOutputBuffers;
+  
+  // Non-blocking input: copies of the frames the codec has no input buffer for wait here and are
+  // fed from the output thread. 0 disables the queue and decode() blocks as before.
+  private final int maxQueuedInputFrames;
+  
+  // Longest time decode() waits for an input buffer in non-blocking input mode.
+  private final long inputWaitBudgetUs;
+  
+  private final Object inputLock = new Object();
+  
+  private final ArrayDeque<EncodedImage> queuedInputFrames = new ArrayDeque<>();
+  
+  // Set when feeding from the output thread failed, reported by the next decode() call.
+  private boolean queuedInputFailed;
+  
+  private int maxInputQueueDepth;
+  
+  private int inputQueueOverflows;
+  
+  private long totalInputWaitUs;
+  
   @Nullable
   private Thread outputThread;
   
@@ -54,14 +90,66 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   @Nullable
   private volatile Exception shutdownException;
   
-  private static class FrameInfo {
-    final long decodeStartTimeMs;
+  /**
+   * Tracks codec output buffers wrapped into frames in byte buffer mode. They are returned to the
+   * codec when the frame is released, unless the codec has been stopped in the meantime.
+   */
+  private static class BorrowedOutputBuffers {
+    private final MediaCodecWrapper codec;
+    
+    private int count;
+    
+    private boolean codecStopped;
+    
+    BorrowedOutputBuffers(MediaCodecWrapper codec) {
+      this.codec = codec;
+    }
+    
+    synchronized boolean tryBorrow(int maxCount) {
+      if (this.codecStopped || this.count >= maxCount)
+        return false; 
+      this.count++;
+      return true;
+    }
+    
+    synchronized void cancelBorrow() {
+      this.count--;
+      notifyAll();
+    }
     
-    final int rotation;
+    synchronized void giveBack(int index) {
+      this.count--;
+      if (!this.codecStopped)
+        try {
+          this.codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+          Logging.e("AndroidVideoDecoder", "releaseOutputBuffer failed", e);
+        }  
+      notifyAll();
+    }
     
-    FrameInfo(long decodeStartTimeMs, int rotation) {
-      this.decodeStartTimeMs = decodeStartTimeMs;
-      this.rotation = rotation;
+    // Waits up to |timeoutMs| for every borrowed buffer to be given back: stopping the codec frees
+    // their memory. Buffers still held after that are abandoned, the codec is stopped anyway and
+    // their indices are never returned to it, so a frame kept downstream cannot block release.
+    synchronized void stop(long timeoutMs) {
+      long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+      boolean wasInterrupted = false;
+      while (this.count > 0) {
+        long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+        if (remainingMs <= 0L) {
+          Logging.w("AndroidVideoDecoder", "Abandoning " + this.count + " frames that still reference codec output buffers, their contents become undefined");
+          break;
+        } 
+        try {
+          wait(remainingMs);
+        } catch (InterruptedException e) {
+          Logging.e("AndroidVideoDecoder", "Interrupted while waiting for borrowed output buffers", e);
+          wasInterrupted = true;
+        } 
+      } 
+      if (wasInterrupted)
+        Thread.currentThread().interrupt(); 
+      this.codecStopped = true;
     }
   }
   
@@ -111,6 +199,27 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   private MediaCodecWrapper codec;
   
   AndroidVideoDecoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, VideoCodecMimeType codecType, int colorFormat, @Nullable EglBase.Context sharedContext) {
+    this(mediaCodecWrapperFactory, codecName, codecType, colorFormat, sharedContext, 0);
+  }
+  
+  /**
+   * With |maxBorrowedOutputBuffers| > 0, decoded frames in byte buffer mode wrap the codec output
+   * buffer instead of copying it, as long as fewer than that many are still held downstream.
+   * Frames must be released promptly: release() and reinitialization wait for them only briefly,
+   * then free the codec memory they reference.
+   */
+  AndroidVideoDecoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, VideoCodecMimeType codecType, int colorFormat, @Nullable EglBase.Context sharedContext, int maxBorrowedOutputBuffers) {
+    this(mediaCodecWrapperFactory, codecName, codecType, colorFormat, sharedContext, maxBorrowedOutputBuffers, 0, 0L);
+  }
+  
+  /**
+   * With |maxQueuedInputFrames| > 0, decode() waits at most |inputWaitBudgetUs| for a codec input
+   * buffer, without blocking the output thread meanwhile. Frames that find none are copied into a
+   * queue of up to that many frames and fed to the codec from the output thread as input buffers
+   * free up. On overflow the queue is dropped and
+   * decode() returns an error, which makes the receiver request a key frame.
+   */
+  AndroidVideoDecoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, VideoCodecMimeType codecType, int colorFormat, @Nullable EglBase.Context sharedContext, int maxBorrowedOutputBuffers, int maxQueuedInputFrames, long inputWaitBudgetUs) {
     if (!isSupportedColorFormat(colorFormat))
       throw new IllegalArgumentException("Unsupported color format: " + colorFormat); 
     Logging.d("AndroidVideoDecoder", "ctor name: " + codecName + " type: " + codecType + " color format: " + colorFormat + " context: " + sharedContext);
@@ -119,7 +228,10 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     this.codecType = codecType;
     this.colorFormat = colorFormat;
     this.sharedContext = sharedContext;
-    this.frameInfos = new LinkedBlockingDeque<>();
+    this.maxBorrowedOutputBuffers = maxBorrowedOutputBuffers;
+    this.maxQueuedInputFrames = maxQueuedInputFrames;
+    this.inputWaitBudgetUs = inputWaitBudgetUs;
+    this.frameInfos = new FrameInfoRing();
   }
   
   public VideoCodecStatus initDecode(VideoDecoder.Settings settings, VideoDecoder.Callback callback) {
@@ -158,6 +270,7 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         format.setInteger("color-format", this.colorFormat); 
       this.codec.configure(format, this.surface, null, 0);
       this.codec.start();
+      this.borrowedOutputBuffers = (this.surface == null && this.maxBorrowedOutputBuffers > 0) ? new BorrowedOutputBuffers(this.codec) : null;
     } catch (IllegalStateException e) {
       Logging.e("AndroidVideoDecoder", "initDecode failed", e);
       release();
@@ -172,7 +285,6 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   
   public VideoCodecStatus decode(EncodedImage frame, VideoDecoder.DecodeInfo info) {
     int width, height, index;
-    ByteBuffer buffer;
     this.decoderThreadChecker.checkIsOnValidThread();
     if (this.codec == null || this.callback == null) {
       Logging.d("AndroidVideoDecoder", "decode uninitalized, codec: " + ((this.codec != null) ? 1 : 0) + ", callback: " + this.callback);
@@ -206,6 +318,8 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         return VideoCodecStatus.NO_OUTPUT;
       } 
     } 
+    if (this.maxQueuedInputFrames > 0)
+      return decodeQueued(frame); 
     try {
       index = this.codec.dequeueInputBuffer(500000L);
     } catch (IllegalStateException e) {
@@ -216,6 +330,163 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       Logging.e("AndroidVideoDecoder", "decode() - no HW buffers available; decoder falling behind");
       return VideoCodecStatus.ERROR;
     } 
+    VideoCodecStatus status = queueInputFrame(index, frame);
+    if (status == VideoCodecStatus.OK && this.keyFrameRequired)
+      this.keyFrameRequired = false; 
+    return status;
+  }
+  
+  private VideoCodecStatus decodeQueued(EncodedImage frame) {
+    boolean isKeyFrame = (frame.frameType == EncodedImage.FrameType.VideoFrameKey && frame.completeFrame);
+    synchronized (this.inputLock) {
+      if (this.queuedInputFailed) {
+        this.queuedInputFailed = false;
+        if (!isKeyFrame) {
+          this.keyFrameRequired = true;
+          return VideoCodecStatus.ERROR;
+        } 
+      } 
+      if (this.queuedInputFrames.size() >= this.maxQueuedInputFrames) {
+        // Queued delta frames are useless without their predecessors, so the whole queue goes.
+        Logging.w("AndroidVideoDecoder", "decode() - input queue overflow, dropping " + this.queuedInputFrames.size() + " frames");
+        clearQueuedInputLocked();
+        this.inputQueueOverflows++;
+        if (!isKeyFrame) {
+          // An error makes the receiver request a key frame; deltas are rejected until then.
+          this.keyFrameRequired = true;
+          return VideoCodecStatus.ERROR;
+        } 
+      } 
+      if (!feedQueuedInputLocked(-1))
+        return failQueuedInputLocked(); 
+      if (this.queuedInputFrames.isEmpty()) {
+        int index;
+        try {
+          index = this.codec.dequeueInputBuffer(0L);
+        } catch (IllegalStateException e) {
+          Logging.e("AndroidVideoDecoder", "dequeueInputBuffer failed", e);
+          return failQueuedInputLocked();
+        } 
+        if (index >= 0) {
+          // Fed straight from the caller's buffer, which is valid for the duration of this call.
+          VideoCodecStatus status = queueInputFrame(index, frame);
+          if (status == VideoCodecStatus.OK && this.keyFrameRequired)
+            this.keyFrameRequired = false; 
+          return status;
+        } 
+      } 
+    } 
+    // No input buffer is free. Wait for one outside |inputLock|, so the output thread can keep
+    // feeding queued frames meanwhile.
+    int index = -1;
+    long waitStartNs = System.nanoTime();
+    if (this.inputWaitBudgetUs > 0L)
+      try {
+        index = this.codec.dequeueInputBuffer(this.inputWaitBudgetUs);
+      } catch (IllegalStateException e) {
+        Logging.e("AndroidVideoDecoder", "dequeueInputBuffer failed", e);
+        synchronized (this.inputLock) {
+          return failQueuedInputLocked();
+        } 
+      }  
+    long waitUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - waitStartNs);
+    synchronized (this.inputLock) {
+      this.totalInputWaitUs += waitUs;
+      if (index >= 0 && this.queuedInputFrames.isEmpty()) {
+        // The output thread drained the queue meanwhile, so nothing has to go first and the
+        // caller's buffer is fed without a copy.
+        VideoCodecStatus status = queueInputFrame(index, frame);
+        if (status == VideoCodecStatus.OK && this.keyFrameRequired)
+          this.keyFrameRequired = false; 
+        return status;
+      } 
+      // The caller's buffer may wrap native memory that is only valid during this call, so the
+      // queue keeps a copy.
+      this.queuedInputFrames.addLast(copyInputFrame(frame));
+      this.maxInputQueueDepth = Math.max(this.maxInputQueueDepth, this.queuedInputFrames.size());
+      if (!feedQueuedInputLocked(index))
+        return failQueuedInputLocked(); 
+    } 
+    if (this.keyFrameRequired)
+      this.keyFrameRequired = false; 
+    return VideoCodecStatus.OK;
+  }
+  
+  private VideoCodecStatus failQueuedInputLocked() {
+    clearQueuedInputLocked();
+    this.keyFrameRequired = true;
+    return VideoCodecStatus.ERROR;
+  }
+  
+  /**
+   * Moves queued frames into input buffers in order, starting with |firstIndex| if it is a
+   * dequeued input buffer and continuing with the ones free right now. Returns false if the codec
+   * failed.
+   */
+  private boolean feedQueuedInputLocked(int firstIndex) {
+    while (!this.queuedInputFrames.isEmpty()) {
+      int index = firstIndex;
+      firstIndex = -1;
+      if (index < 0) {
+        try {
+          index = this.codec.dequeueInputBuffer(0L);
+        } catch (IllegalStateException e) {
+          Logging.e("AndroidVideoDecoder", "dequeueInputBuffer failed", e);
+          return false;
+        } 
+        if (index < 0)
+          return true; 
+      } 
+      EncodedImage frame = this.queuedInputFrames.pollFirst();
+      try {
+        if (queueInputFrame(index, frame) != VideoCodecStatus.OK)
+          return false; 
+      } finally {
+        frame.release();
+      }
+    } 
+    return true;
+  }
+  
+  /** Copies |frame| into a pooled buffer the queue owns. */
+  private static EncodedImage copyInputFrame(EncodedImage frame) {
+    ByteBuffer data = NativeByteBufferPool.INSTANCE.acquire(frame.buffer.remaining());
+    data.put(frame.buffer.duplicate());
+    data.flip();
+    return EncodedImage.builder()
+      .setBuffer(data, () -> NativeByteBufferPool.INSTANCE.release(data))
+      .setEncodedWidth(frame.encodedWidth)
+      .setEncodedHeight(frame.encodedHeight)
+      .setCaptureTimeNs(frame.captureTimeNs)
+      .setFrameType(frame.frameType)
+      .setRotation(frame.rotation)
+      .setCompleteFrame(frame.completeFrame)
+      .setQp(frame.qp)
+      .createEncodedImage();
+  }
+  
+  private void clearQueuedInputLocked() {
+    for (EncodedImage frame : this.queuedInputFrames)
+      frame.release(); 
+    this.queuedInputFrames.clear();
+  }
+  
+  /** Feeds queued input on the output thread. Returns true if frames are still waiting. */
+  private boolean feedQueuedInputOnOutputThread() {
+    synchronized (this.inputLock) {
+      if (this.queuedInputFrames.isEmpty())
+        return false; 
+      if (!feedQueuedInputLocked(-1)) {
+        clearQueuedInputLocked();
+        this.queuedInputFailed = true;
+      } 
+      return !this.queuedInputFrames.isEmpty();
+    } 
+  }
+  
+  private VideoCodecStatus queueInputFrame(int index, EncodedImage frame) {
+    ByteBuffer buffer;
+    int size = frame.buffer.remaining();
     try {
       buffer = this.codec.getInputBuffers()[index];
     } catch (IllegalStateException e) {
@@ -226,21 +497,48 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       Logging.e("AndroidVideoDecoder", "decode() - HW buffer too small");
       return VideoCodecStatus.ERROR;
     } 
-    buffer.put(frame.buffer);
-    this.frameInfos.offer(new FrameInfo(SystemClock.elapsedRealtime(), frame.rotation));
+    // Read through a duplicate so a retained frame's position is left alone.
+    buffer.put(frame.buffer.duplicate());
+    this.frameInfos.offer(SystemClock.elapsedRealtime(), 0, 0, frame.rotation);
     try {
       this.codec.queueInputBuffer(index, 0, size, TimeUnit.NANOSECONDS
           .toMicros(frame.captureTimeNs), 0);
     } catch (IllegalStateException e) {
       Logging.e("AndroidVideoDecoder", "queueInputBuffer failed", e);
-      this.frameInfos.pollLast();
+      this.frameInfos.removeLast();
       return VideoCodecStatus.ERROR;
     } 
-    if (this.keyFrameRequired)
-      this.keyFrameRequired = false; 
     return VideoCodecStatus.OK;
   }
   
+  /** Number of frames waiting for a codec input buffer in non-blocking input mode. */
+  int getInputQueueDepth() {
+    synchronized (this.inputLock) {
+      return this.queuedInputFrames.size();
+    } 
+  }
+  
+  /** Deepest the input queue has been. */
+  int getMaxInputQueueDepth() {
+    synchronized (this.inputLock) {
+      return this.maxInputQueueDepth;
+    } 
+  }
+  
+  /** Number of times the input queue overflowed and was dropped. */
+  int getInputQueueOverflowCount() {
+    synchronized (this.inputLock) {
+      return this.inputQueueOverflows;
+    } 
+  }
+  
+  /** Total time decode() spent waiting for input buffers in non-blocking input mode. */
+  long getTotalInputWaitTimeUs() {
+    synchronized (this.inputLock) {
+      return this.totalInputWaitUs;
+    } 
+  }
+  
   public boolean getPrefersLateDecoding() {
     return true;
   }
@@ -264,6 +562,10 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     } 
     this.callback = null;
     this.frameInfos.clear();
+    // Frames may still be queued if the output thread stopped on its own.
+    synchronized (this.inputLock) {
+      clearQueuedInputLocked();
+    } 
     return status;
   }
   
@@ -284,6 +586,12 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         return VideoCodecStatus.ERROR;
       } 
     } finally {
+      if (this.maxQueuedInputFrames > 0)
+        synchronized (this.inputLock) {
+          Logging.d("AndroidVideoDecoder", "Input queue max depth: " + this.maxInputQueueDepth + ", overflows: " + this.inputQueueOverflows + ", wait time: " + this.totalInputWaitUs + " us");
+          clearQueuedInputLocked();
+          this.queuedInputFailed = false;
+        }  
       this.codec = null;
       this.outputThread = null;
     } 
@@ -312,8 +620,11 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   protected void deliverDecodedFrame() {
     this.outputThreadChecker.checkIsOnValidThread();
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-      int result = this.codec.dequeueOutputBuffer(info, 100000L);
+      long outputTimeoutUs = 100000L;
+      if (this.maxQueuedInputFrames > 0 && feedQueuedInputOnOutputThread())
+        outputTimeoutUs = QUEUED_INPUT_OUTPUT_TIMEOUT_US; 
+      MediaCodec.BufferInfo info = this.outputBufferInfo;
+      int result = this.codec.dequeueOutputBuffer(info, outputTimeoutUs);
       if (result == -2) {
         reformat(this.codec.getOutputFormat());
         return;
@@ -322,12 +633,11 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         Logging.v("AndroidVideoDecoder", "dequeueOutputBuffer returned " + result);
         return;
       } 
-      FrameInfo frameInfo = this.frameInfos.poll();
       Integer decodeTimeMs = null;
       int rotation = 0;
-      if (frameInfo != null) {
-        decodeTimeMs = Integer.valueOf((int)(SystemClock.elapsedRealtime() - frameInfo.decodeStartTimeMs));
-        rotation = frameInfo.rotation;
+      if (this.frameInfos.poll()) {
+        decodeTimeMs = Integer.valueOf((int)(SystemClock.elapsedRealtime() - this.frameInfos.polledTimestamp));
+        rotation = this.frameInfos.polledRotation;
       } 
       this.hasDecodedFirstFrame = true;
       if (this.surfaceTextureHelper != null) {
@@ -392,6 +702,13 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     buffer.position(info.offset);
     buffer.limit(info.offset + info.size);
     buffer = buffer.slice();
+    frameBuffer = wrapOutputBuffer(result, buffer, stride, sliceHeight, width, height);
+    if (frameBuffer != null) {
+      VideoFrame frame = new VideoFrame(frameBuffer, rotation, info.presentationTimeUs * 1000L);
+      this.callback.onDecodedFrame(frame, decodeTimeMs, null);
+      frame.release();
+      return;
+    } 
     if (this.colorFormat == 19) {
       frameBuffer = copyI420Buffer(buffer, stride, sliceHeight, width, height);
     } else {
@@ -404,6 +721,47 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     frame.release();
   }
   
+  /**
+   * Wraps codec output buffer |index| into a frame buffer that gives it back to the codec when
+   * released. Returns null if the frame has to be copied instead: zero copy is off, too many
+   * buffers are held downstream, or the I420 layout cannot be expressed with plane strides.
+   */
+  @Nullable
+  private VideoFrame.Buffer wrapOutputBuffer(int index, ByteBuffer buffer, int stride, int sliceHeight, int width, int height) {
+    BorrowedOutputBuffers borrowed = this.borrowedOutputBuffers;
+    if (borrowed == null)
+      return null; 
+    boolean isI420 = (this.colorFormat == 19);
+    if (isI420 && (stride % 2 != 0 || sliceHeight % 2 != 0))
+      return null; 
+    if (!borrowed.tryBorrow(this.maxBorrowedOutputBuffers))
+      return null; 
+    Runnable releaseCallback = () -> borrowed.giveBack(index);
+    if (!isI420)
+      return new NV12Buffer(width, height, stride, sliceHeight, buffer, releaseCallback); 
+    int chromaHeight = (height + 1) / 2;
+    int uvStride = stride / 2;
+    int uPos = stride * sliceHeight;
+    int vPos = uPos + uvStride * sliceHeight / 2;
+    try {
+      ByteBuffer dataY = sliceOf(buffer, 0, stride * height);
+      ByteBuffer dataU = sliceOf(buffer, uPos, uvStride * chromaHeight);
+      ByteBuffer dataV = sliceOf(buffer, vPos, uvStride * chromaHeight);
+      return JavaI420Buffer.wrap(width, height, dataY, stride, dataU, uvStride, dataV, uvStride, releaseCallback);
+    } catch (IllegalArgumentException e) {
+      Logging.w("AndroidVideoDecoder", "Cannot wrap output buffer, copying instead: " + e.getMessage());
+      borrowed.cancelBorrow();
+      return null;
+    } 
+  }
+  
+  private static ByteBuffer sliceOf(ByteBuffer buffer, int position, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(Math.min(position + length, slice.capacity()));
+    slice.position(position);
+    return slice.slice();
+  }
+  
   private VideoFrame.Buffer copyNV12ToI420Buffer(ByteBuffer buffer, int stride, int sliceHeight, int width, int height) {
     return (new NV12Buffer(width, height, stride, sliceHeight, buffer, null))
       .toI420();
@@ -491,6 +849,8 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   private void releaseCodecOnOutputThread() {
     this.outputThreadChecker.checkIsOnValidThread();
     Logging.d("AndroidVideoDecoder", "Releasing MediaCodec on output thread");
+    if (this.borrowedOutputBuffers != null)
+      this.borrowedOutputBuffers.stop(BORROWED_OUTPUT_BUFFERS_TIMEOUT_MS); 
     try {
       this.codec.stop();
     } catch (Exception e) {
@@ -0,0 +1,133 @@
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64-encodes (RFC 4648, no line breaks) everything written to it into the wrapped stream, a
+ * chunk at a time, so large payloads such as snapshot JPEGs never exist in full in memory.
+ * finish() writes the padding without closing the wrapped stream, which stays owned by the caller.
+ */
+public class Base64EncodingOutputStream extends FilterOutputStream {
+  /** Reports progress after every chunk written to the wrapped stream. */
+  public interface ByteCountListener {
+    /** @param totalBytes Base64 bytes written to the wrapped stream so far. */
+    void onBytesWritten(long totalBytes);
+  }
+
+  private static final byte[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+  private static final int CHUNK_SIZE = 4096;
+
+  @Nullable private final ByteCountListener listener;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private int chunkLength;
+  // Input bytes waiting for a full 3-byte group.
+  private int pending;
+  private int pendingCount;
+  private long bytesWritten;
+  private boolean finished;
+
+  public Base64EncodingOutputStream(OutputStream out, @Nullable ByteCountListener listener) {
+    super(out);
+    this.listener = listener;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkNotFinished();
+    pending = (pending << 8) | (b & 0xFF);
+    if (++pendingCount == 3) {
+      emitGroup();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkNotFinished();
+    for (int i = off; i < off + len; ++i) {
+      pending = (pending << 8) | (b[i] & 0xFF);
+      if (++pendingCount == 3) {
+        emitGroup();
+      }
+    }
+  }
+
+  /** Writes out buffered output. Up to two input bytes stay pending until finish(). */
+  @Override
+  public void flush() throws IOException {
+    writeChunk();
+    out.flush();
+  }
+
+  /** Encodes the pending input with padding and flushes. The wrapped stream stays open. */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    if (pendingCount > 0) {
+      final int padding = 3 - pendingCount;
+      final int group = pending << (8 * padding);
+      ensureChunkSpace();
+      chunk[chunkLength++] = ALPHABET[(group >> 18) & 0x3F];
+      chunk[chunkLength++] = ALPHABET[(group >> 12) & 0x3F];
+      chunk[chunkLength++] = padding == 2 ? (byte) '=' : ALPHABET[(group >> 6) & 0x3F];
+      chunk[chunkLength++] = (byte) '=';
+      pending = 0;
+      pendingCount = 0;
+    }
+    finished = true;
+    flush();
+  }
+
+  /** Finishes the encoding and closes the wrapped stream. */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Returns the number of Base64 bytes written to the wrapped stream so far. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private void emitGroup() throws IOException {
+    ensureChunkSpace();
+    chunk[chunkLength++] = ALPHABET[(pending >> 18) & 0x3F];
+    chunk[chunkLength++] = ALPHABET[(pending >> 12) & 0x3F];
+    chunk[chunkLength++] = ALPHABET[(pending >> 6) & 0x3F];
+    chunk[chunkLength++] = ALPHABET[pending & 0x3F];
+    pending = 0;
+    pendingCount = 0;
+  }
+
+  private void ensureChunkSpace() throws IOException {
+    if (chunkLength + 4 > CHUNK_SIZE) {
+      writeChunk();
+    }
+  }
+
+  private void writeChunk() throws IOException {
+    if (chunkLength == 0) {
+      return;
+    }
+    out.write(chunk, 0, chunkLength);
+    bytesWritten += chunkLength;
+    chunkLength = 0;
+    if (listener != null) {
+      listener.onBytesWritten(bytesWritten);
+    }
+  }
+
+  private void checkNotFinished() throws IOException {
+    if (finished) {
+      throw new IOException("Base64 stream is already finished.");
+    }
+  }
+}
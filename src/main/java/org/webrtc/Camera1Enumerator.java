@@ -69,8 +69,11 @@ public class Camera1Enumerator implements CameraEnumerator {
   static synchronized List<CameraEnumerationAndroid.CaptureFormat> getSupportedFormats(int cameraId) {
     if (cachedSupportedFormats == null) {
       cachedSupportedFormats = new ArrayList<>();
-      for (int i = 0; i < Camera.getNumberOfCameras(); i++)
-        cachedSupportedFormats.add(enumerateFormats(i)); 
+      for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+        final int index = i;
+        // Opening every camera is slow, the persistent cache skips it after the first run.
+        cachedSupportedFormats.add(DeviceCapabilityCache.getInstance().getCaptureFormats("camera1/" + index, () -> enumerateFormats(index)));
+      } 
     } 
     return cachedSupportedFormats.get(cameraId);
   }
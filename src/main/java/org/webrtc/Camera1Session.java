@@ -11,11 +11,8 @@
 package org.webrtc;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.SystemClock;
-import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -283,7 +280,6 @@ class Camera1Session implements CameraSession {
       @Override
       public void onPreviewFrame(final byte[] data, android.hardware.Camera callbackCamera) {
         checkIsOnCameraThread();
-        Logging.e(TAG, "listenForBytebufferFrames:onPreviewFrame = "+ data.length);
 
         if (callbackCamera != camera) {
           Logging.e(TAG, "Callback from a different camera. This should never happen.");
@@ -304,14 +300,6 @@ class Camera1Session implements CameraSession {
           firstFrameReported = true;
         }
 
-        Bitmap bitmap = YuvFrame.convertBitmap(data,callbackCamera);
-        String myBase64Image= null;
-        if (bitmap != null) {
-          myBase64Image = YuvFrame.encodeBitmapToBase64(bitmap, Bitmap.CompressFormat.JPEG, 100);
-        }
-        Log.d(TAG, "onPictureTaken - wrote bytes: " + myBase64Image);
-
-
         VideoFrame.Buffer frameBuffer = new NV21Buffer(
                 data, captureFormat.width, captureFormat.height, () -> cameraThreadHandler.post(() -> {
           if (state == SessionState.RUNNING) {
@@ -179,53 +179,63 @@ public class Camera2Enumerator implements CameraEnumerator {
         return cachedSupportedFormats.get(cameraId);
       }
 
-      Logging.d(TAG, "Get supported formats for camera index " + cameraId + ".");
-      final long startTimeMs = SystemClock.elapsedRealtime();
-
-      final CameraCharacteristics cameraCharacteristics;
-      try {
-        cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
-      } catch (Exception ex) {
-        Logging.e(TAG, "getCameraCharacteristics(): " + ex);
-        return new ArrayList<CaptureFormat>();
+      final List<CaptureFormat> formatList = DeviceCapabilityCache.getInstance().getCaptureFormats(
+          "camera2/" + cameraId, () -> enumerateFormats(cameraManager, cameraId));
+      // Failed queries come back empty, leave them out so they are retried next time.
+      if (!formatList.isEmpty()) {
+        cachedSupportedFormats.put(cameraId, formatList);
       }
+      return formatList;
+    }
+  }
 
-      final StreamConfigurationMap streamMap =
-              cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+  @Nullable
+  private static List<CaptureFormat> enumerateFormats(CameraManager cameraManager, String cameraId) {
+    Logging.d(TAG, "Get supported formats for camera index " + cameraId + ".");
+    final long startTimeMs = SystemClock.elapsedRealtime();
 
-      Range<Integer>[] fpsRanges =
-              cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
-      List<CaptureFormat.FramerateRange> framerateRanges =
-              convertFramerates(fpsRanges, getFpsUnitFactor(fpsRanges));
-      List<Size> sizes = getSupportedSizes(cameraCharacteristics);
+    final CameraCharacteristics cameraCharacteristics;
+    try {
+      cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
+    } catch (Exception ex) {
+      Logging.e(TAG, "getCameraCharacteristics(): " + ex);
+      return null;
+    }
 
-      int defaultMaxFps = 0;
-      for (CaptureFormat.FramerateRange framerateRange : framerateRanges) {
-        defaultMaxFps = Math.max(defaultMaxFps, framerateRange.max);
-      }
+    final StreamConfigurationMap streamMap =
+            cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
-      final List<CaptureFormat> formatList = new ArrayList<CaptureFormat>();
-      for (Size size : sizes) {
-        long minFrameDurationNs = 0;
-        try {
-          minFrameDurationNs = streamMap.getOutputMinFrameDuration(
-                  SurfaceTexture.class, new android.util.Size(size.width, size.height));
-        } catch (Exception e) {
-          // getOutputMinFrameDuration() is not supported on all devices. Ignore silently.
-        }
-        final int maxFps = (minFrameDurationNs == 0)
-                ? defaultMaxFps
-                : (int) Math.round(NANO_SECONDS_PER_SECOND / minFrameDurationNs) * 1000;
-        formatList.add(new CaptureFormat(size.width, size.height, 0, maxFps));
-        Logging.d(TAG, "Format: " + size.width + "x" + size.height + "@" + maxFps);
-      }
+    Range<Integer>[] fpsRanges =
+            cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    List<CaptureFormat.FramerateRange> framerateRanges =
+            convertFramerates(fpsRanges, getFpsUnitFactor(fpsRanges));
+    List<Size> sizes = getSupportedSizes(cameraCharacteristics);
 
-      cachedSupportedFormats.put(cameraId, formatList);
-      final long endTimeMs = SystemClock.elapsedRealtime();
-      Logging.d(TAG, "Get supported formats for camera index " + cameraId + " done."
-              + " Time spent: " + (endTimeMs - startTimeMs) + " ms.");
-      return formatList;
+    int defaultMaxFps = 0;
+    for (CaptureFormat.FramerateRange framerateRange : framerateRanges) {
+      defaultMaxFps = Math.max(defaultMaxFps, framerateRange.max);
     }
+
+    final List<CaptureFormat> formatList = new ArrayList<CaptureFormat>();
+    for (Size size : sizes) {
+      long minFrameDurationNs = 0;
+      try {
+        minFrameDurationNs = streamMap.getOutputMinFrameDuration(
+                SurfaceTexture.class, new android.util.Size(size.width, size.height));
+      } catch (Exception e) {
+        // getOutputMinFrameDuration() is not supported on all devices. Ignore silently.
+      }
+      final int maxFps = (minFrameDurationNs == 0)
+              ? defaultMaxFps
+              : (int) Math.round(NANO_SECONDS_PER_SECOND / minFrameDurationNs) * 1000;
+      formatList.add(new CaptureFormat(size.width, size.height, 0, maxFps));
+      Logging.d(TAG, "Format: " + size.width + "x" + size.height + "@" + maxFps);
+    }
+
+    final long endTimeMs = SystemClock.elapsedRealtime();
+    Logging.d(TAG, "Get supported formats for camera index " + cameraId + " done."
+            + " Time spent: " + (endTimeMs - startTimeMs) + " ms.");
+    return formatList;
   }
 
   // Convert from android.util.Size to Size.
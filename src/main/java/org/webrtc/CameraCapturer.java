@@ -14,7 +14,6 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 //import org.jetbrains.annotations.Nullable;
 
@@ -37,6 +36,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   private final CameraEnumerator cameraEnumerator;
   private final CameraEventsHandler eventsHandler;
   private final Handler uiThreadHandler;
+  private final FrameSnapshotter frameSnapshotter = new FrameSnapshotter(TAG + "Snapshot");
 
   @Nullable
   private final CameraSession.CreateSessionCallback createSessionCallback =
@@ -168,9 +168,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           firstFrameObserved = true;
         }
         cameraStatistics.addFrame();
-        Log.i(TAG, "onFrameCaptured: MAURI");
-       YuvFrame yuvFrame = new YuvFrame(frame);
-        //yuvFrame.getBitmapBase64();
+        frameSnapshotter.onFrame(frame);
         capturerObserver.onFrameCaptured(frame);
       }
     }
@@ -315,6 +313,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
         Logging.d(TAG, "Stop capture: No session open");
       }
     }
+    frameSnapshotter.cancelPendingSnapshots("Camera capture stopped.");
 
     Logging.d(TAG, "Stop capture done");
   }
@@ -332,6 +331,21 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   public void dispose() {
     Logging.d(TAG, "dispose");
     stopCapture();
+    frameSnapshotter.dispose();
+  }
+
+  @Override
+  public void requestSnapshot(SnapshotRequest request, SnapshotCallback callback) {
+    Logging.d(TAG, "requestSnapshot");
+    frameSnapshotter.requestSnapshot(request, callback);
+  }
+
+  /**
+   * Sets the encoder used for JPEG snapshots, e.g. to change its worker count or queue capacity.
+   * The capturer does not take ownership of |encoder|.
+   */
+  public void setSnapshotEncoder(SnapshotEncoder encoder) {
+    frameSnapshotter.setEncoder(encoder);
   }
 
   @Override
@@ -7,6 +7,14 @@ public interface CameraVideoCapturer extends VideoCapturer {
   
   void switchCamera(CameraSwitchHandler paramCameraSwitchHandler, String paramString);
   
+  /**
+   * Converts the next captured frame matching |request| and hands it to |callback| on a worker
+   * thread. Frames are not touched while no snapshot is pending.
+   */
+  default void requestSnapshot(SnapshotRequest request, SnapshotCallback callback) {
+    throw new UnsupportedOperationException("Snapshots are not supported by this capturer.");
+  }
+  
   @Deprecated
   default void addMediaRecorderToCamera(MediaRecorder mediaRecorder, MediaRecorderHandler resultHandler) {
     throw new UnsupportedOperationException("Deprecated and not implemented.");
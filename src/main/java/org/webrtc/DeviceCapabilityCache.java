@@ -0,0 +1,362 @@
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.media.audiofx.AudioEffect;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Persistent cache for slow device capability queries: the codecs reported by the MediaCodec
+ * factories, camera capture formats and the available audio effects. Entries are kept in a compact
+ * binary file in the app's files directory, loaded lazily on first use. The file is tagged with the
+ * build fingerprint and the app version code, so an OS update or a new app version discards it.
+ * Without an application context (see ContextUtils) the cache only lives in memory. Thread safe.
+ */
+public class DeviceCapabilityCache {
+  private static final String TAG = "DeviceCapabilityCache";
+  private static final String FILE_NAME = "webrtc_device_capabilities.bin";
+  private static final int MAGIC = 0x57524343; // "WRCC"
+  private static final int FORMAT_VERSION = 1;
+
+  /** Computes a value on a cache miss. Returning null or an empty result skips caching it. */
+  public interface Loader<T> {
+    @Nullable T load();
+  }
+
+  private interface Serializer<T> {
+    void write(DataOutputStream out, T value) throws IOException;
+
+    T read(DataInputStream in) throws IOException;
+  }
+
+  @Nullable private static DeviceCapabilityCache instance;
+
+  @Nullable private final File file;
+  private final String deviceKey;
+  private final Object lock = new Object();
+  // Serialized values by key, decoded on every lookup so callers get their own copy.
+  private final Map<String, byte[]> entries = new HashMap<>(); /* guarded by lock */
+  private boolean loaded; /* guarded by lock */
+  private long fileLoadTimeMs; /* guarded by lock */
+  private int coldLookups; /* guarded by lock */
+  private long coldLookupTimeMs; /* guarded by lock */
+  private int warmLookups; /* guarded by lock */
+  private long warmLookupTimeMs; /* guarded by lock */
+
+  /** Returns the cache shared by the codec factories, camera enumerators and audio effects. */
+  public static synchronized DeviceCapabilityCache getInstance() {
+    if (instance == null) {
+      final Context context = ContextUtils.getApplicationContext();
+      instance = new DeviceCapabilityCache(
+          context == null ? null : new File(context.getFilesDir(), FILE_NAME),
+          getDeviceKey(context));
+    }
+    return instance;
+  }
+
+  DeviceCapabilityCache(@Nullable File file, String deviceKey) {
+    this.file = file;
+    this.deviceKey = deviceKey;
+  }
+
+  List<VideoCodecInfo> getSupportedCodecs(String key, Loader<List<VideoCodecInfo>> loader) {
+    final List<VideoCodecInfo> codecs = get("codecs/" + key, CODEC_LIST, loader);
+    return codecs == null ? new ArrayList<VideoCodecInfo>() : codecs;
+  }
+
+  List<CaptureFormat> getCaptureFormats(String key, Loader<List<CaptureFormat>> loader) {
+    final List<CaptureFormat> formats = get("camera/" + key, CAPTURE_FORMAT_LIST, loader);
+    return formats == null ? new ArrayList<CaptureFormat>() : formats;
+  }
+
+  /** Returns the audio effect descriptors, from the cache or from |loader|. */
+  @Nullable
+  public AudioEffect.Descriptor[] getAudioEffects(Loader<AudioEffect.Descriptor[]> loader) {
+    return get("audio/effects", AUDIO_EFFECTS, loader);
+  }
+
+  /** Drops all entries and deletes the cache file. */
+  public void invalidate() {
+    synchronized (lock) {
+      entries.clear();
+      loaded = true;
+      if (file != null && file.exists() && !file.delete()) {
+        Logging.w(TAG, "Failed to delete " + file);
+      }
+    }
+  }
+
+  /** Time spent reading the cache file, 0 if there was none. */
+  public long getFileLoadTimeMs() {
+    synchronized (lock) {
+      return fileLoadTimeMs;
+    }
+  }
+
+  /** Number of lookups that had to query the platform. */
+  public int getColdLookupCount() {
+    synchronized (lock) {
+      return coldLookups;
+    }
+  }
+
+  /** Total time spent in lookups that had to query the platform. */
+  public long getColdLookupTimeMs() {
+    synchronized (lock) {
+      return coldLookupTimeMs;
+    }
+  }
+
+  /** Number of lookups served from the cache. */
+  public int getWarmLookupCount() {
+    synchronized (lock) {
+      return warmLookups;
+    }
+  }
+
+  /** Total time spent in lookups served from the cache, including loading the file. */
+  public long getWarmLookupTimeMs() {
+    synchronized (lock) {
+      return warmLookupTimeMs;
+    }
+  }
+
+  @Nullable
+  private <T> T get(String key, Serializer<T> serializer, Loader<T> loader) {
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    synchronized (lock) {
+      loadLocked();
+      final byte[] data = entries.get(key);
+      if (data != null) {
+        try {
+          final T value = serializer.read(new DataInputStream(new ByteArrayInputStream(data)));
+          ++warmLookups;
+          warmLookupTimeMs += SystemClock.elapsedRealtime() - startTimeMs;
+          return value;
+        } catch (IOException e) {
+          Logging.e(TAG, "Corrupt entry " + key + ", querying again", e);
+          entries.remove(key);
+        }
+      }
+    }
+
+    // Query outside the lock, platform queries can take hundreds of milliseconds.
+    final T value = loader.load();
+    final long timeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    Logging.d(TAG, "Cold lookup of " + key + " took " + timeMs + " ms");
+    byte[] data = null;
+    if (value != null && !isEmpty(value)) {
+      try {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.write(new DataOutputStream(bytes), value);
+        data = bytes.toByteArray();
+      } catch (IOException e) {
+        Logging.e(TAG, "Failed to serialize " + key, e);
+      }
+    }
+    synchronized (lock) {
+      ++coldLookups;
+      coldLookupTimeMs += timeMs;
+      if (data != null) {
+        entries.put(key, data);
+        saveLocked();
+      }
+    }
+    return value;
+  }
+
+  private void loadLocked() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (file == null || !file.exists()) {
+      return;
+    }
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+          || !deviceKey.equals(in.readUTF())) {
+        Logging.d(TAG, "Cache is from another build or app version, discarding it");
+        invalidate();
+        return;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        final String key = in.readUTF();
+        final byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        entries.put(key, data);
+      }
+    } catch (IOException | RuntimeException e) {
+      Logging.e(TAG, "Failed to read " + file + ", discarding it", e);
+      invalidate();
+      return;
+    }
+    fileLoadTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    warmLookupTimeMs += fileLoadTimeMs;
+    Logging.d(TAG, "Loaded " + entries.size() + " entries in " + fileLoadTimeMs + " ms");
+  }
+
+  private void saveLocked() {
+    if (file == null) {
+      return;
+    }
+    // Write a temporary file and rename it, so a crash never leaves a truncated cache behind.
+    final File tmpFile = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(deviceKey);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        out.write(entry.getValue());
+      }
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to write " + tmpFile, e);
+      tmpFile.delete();
+      return;
+    }
+    if (!tmpFile.renameTo(file)) {
+      Logging.e(TAG, "Failed to rename " + tmpFile + " to " + file);
+      tmpFile.delete();
+    }
+  }
+
+  private static boolean isEmpty(Object value) {
+    if (value instanceof List) {
+      return ((List<?>) value).isEmpty();
+    }
+    return value instanceof Object[] && ((Object[]) value).length == 0;
+  }
+
+  private static String getDeviceKey(@Nullable Context context) {
+    long appVersion = 0;
+    if (context != null) {
+      try {
+        final PackageInfo info =
+            context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+        appVersion = Build.VERSION.SDK_INT >= 28 ? getLongVersionCode(info) : getVersionCode(info);
+      } catch (PackageManager.NameNotFoundException e) {
+        Logging.w(TAG, "Cannot read the app version: " + e);
+      }
+    }
+    return Build.FINGERPRINT + "|" + Build.VERSION.SDK_INT + "|" + appVersion;
+  }
+
+  // Includes versionCodeMajor, which versionCode drops.
+  @TargetApi(28)
+  private static long getLongVersionCode(PackageInfo info) {
+    return info.getLongVersionCode();
+  }
+
+  @SuppressWarnings("deprecation") // Deprecated in API 28, the only option before it.
+  private static int getVersionCode(PackageInfo info) {
+    return info.versionCode;
+  }
+
+  private static final Serializer<List<VideoCodecInfo>> CODEC_LIST =
+      new Serializer<List<VideoCodecInfo>>() {
+        @Override
+        public void write(DataOutputStream out, List<VideoCodecInfo> codecs) throws IOException {
+          out.writeInt(codecs.size());
+          for (VideoCodecInfo codec : codecs) {
+            out.writeUTF(codec.name);
+            out.writeInt(codec.params.size());
+            for (Map.Entry<String, String> param : codec.params.entrySet()) {
+              out.writeUTF(param.getKey());
+              out.writeUTF(param.getValue());
+            }
+          }
+        }
+
+        @Override
+        public List<VideoCodecInfo> read(DataInputStream in) throws IOException {
+          final int count = in.readInt();
+          final List<VideoCodecInfo> codecs = new ArrayList<>(count);
+          for (int i = 0; i < count; ++i) {
+            final String name = in.readUTF();
+            final int paramCount = in.readInt();
+            final Map<String, String> params = new HashMap<>();
+            for (int j = 0; j < paramCount; ++j) {
+              params.put(in.readUTF(), in.readUTF());
+            }
+            codecs.add(new VideoCodecInfo(name, params));
+          }
+          return codecs;
+        }
+      };
+
+  private static final Serializer<List<CaptureFormat>> CAPTURE_FORMAT_LIST =
+      new Serializer<List<CaptureFormat>>() {
+        @Override
+        public void write(DataOutputStream out, List<CaptureFormat> formats) throws IOException {
+          out.writeInt(formats.size());
+          for (CaptureFormat format : formats) {
+            out.writeInt(format.width);
+            out.writeInt(format.height);
+            out.writeInt(format.framerate.min);
+            out.writeInt(format.framerate.max);
+          }
+        }
+
+        @Override
+        public List<CaptureFormat> read(DataInputStream in) throws IOException {
+          final int count = in.readInt();
+          final List<CaptureFormat> formats = new ArrayList<>(count);
+          for (int i = 0; i < count; ++i) {
+            formats.add(new CaptureFormat(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+          }
+          return formats;
+        }
+      };
+
+  private static final Serializer<AudioEffect.Descriptor[]> AUDIO_EFFECTS =
+      new Serializer<AudioEffect.Descriptor[]>() {
+        @Override
+        public void write(DataOutputStream out, AudioEffect.Descriptor[] effects)
+            throws IOException {
+          out.writeInt(effects.length);
+          for (AudioEffect.Descriptor effect : effects) {
+            out.writeUTF(effect.type.toString());
+            out.writeUTF(effect.uuid.toString());
+            out.writeUTF(effect.connectMode);
+            out.writeUTF(effect.name);
+            out.writeUTF(effect.implementor);
+          }
+        }
+
+        @Override
+        public AudioEffect.Descriptor[] read(DataInputStream in) throws IOException {
+          final AudioEffect.Descriptor[] effects = new AudioEffect.Descriptor[in.readInt()];
+          for (int i = 0; i < effects.length; ++i) {
+            effects[i] = new AudioEffect.Descriptor(
+                in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+          }
+          return effects;
+        }
+      };
+}
@@ -9,7 +9,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.Nullable;
-import android.util.Log;
+import android.view.Choreographer;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
@@ -91,6 +91,8 @@ public class EglRenderer implements VideoSink {
   private Handler renderThreadHandler;
   
   private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
+
+  private final ArrayList<PeriodicFrameCapture> periodicCaptures = new ArrayList<>();
   
   private volatile ErrorCallback errorCallback;
   
@@ -117,6 +119,36 @@ public class EglRenderer implements VideoSink {
   @Nullable
   private VideoFrame pendingFrame;
   
+  // Frames waiting for their vsync in vsync pacing mode, oldest first, with the time each one
+  // should be on screen. Guarded by frameLock.
+  private final VideoFrame[] pacedFrames = new VideoFrame[MAX_PACED_FRAMES];
+  
+  private final long[] pacedPresentationTimesNs = new long[MAX_PACED_FRAMES];
+  
+  private int pacedFramesHead;
+  
+  private int pacedFramesCount;
+  
+  private boolean vsyncCallbackPending;
+  
+  // Smoothed offset from frame timestamps to local arrival time, and the mean deviation from it.
+  // Guarded by frameLock.
+  private boolean hasTimestampOffset;
+  
+  private long timestampOffsetNs;
+  
+  private long timestampJitterNs;
+  
+  private volatile boolean vsyncPacing;
+  
+  // Only accessed on the render thread.
+  @Nullable
+  private Choreographer choreographer;
+  
+  private long lastVsyncTimeNs;
+  
+  private long refreshPeriodNs = DEFAULT_REFRESH_PERIOD_NS;
+  
   private final Object layoutLock = new Object();
   
   private float layoutAspectRatio;
@@ -139,7 +171,44 @@ public class EglRenderer implements VideoSink {
   
   private long renderSwapBufferTimeNs;
   
+  private int framesOnTime;
+  
+  private int framesLate;
+  
+  private int framesDroppedLate;
+  
   private final GlTextureFrameBuffer bitmapTextureFramebuffer = new GlTextureFrameBuffer(6408);
+
+  // Number of PBOs in rotation for asynchronous frame listener readbacks.
+  private static final int READBACK_SLOT_COUNT = 2;
+
+  // Upper bound for how long a readback may wait for the next frame to be completed.
+  private static final long READBACK_FLUSH_DELAY_MS = 30L;
+
+  // Frames queued in vsync pacing mode before the oldest is dropped.
+  private static final int MAX_PACED_FRAMES = 8;
+
+  // Refresh period assumed until it has been measured from vsync callbacks.
+  private static final long DEFAULT_REFRESH_PERIOD_NS = TimeUnit.SECONDS.toNanos(1L) / 60L;
+
+  // Timestamp jumps larger than this restart the jitter estimate, e.g. when the stream changes.
+  private static final long MAX_TIMESTAMP_DEVIATION_NS = TimeUnit.SECONDS.toNanos(1L);
+
+  // Only accessed on the render thread.
+  private boolean asyncReadback;
+
+  @Nullable
+  private GlPboReader pboReader;
+
+  private final Object listenerHandlerLock = new Object();
+
+  @Nullable
+  private Handler listenerHandler;
+
+  private final Runnable flushReadbacksRunnable = () -> {
+      if (this.pboReader != null)
+        this.pboReader.processReadbacks(true); 
+    };
   
   private final Runnable logStatisticsRunnable = new Runnable() {
       public void run() {
@@ -156,6 +225,16 @@ public class EglRenderer implements VideoSink {
   
   private final EglSurfaceCreation eglSurfaceCreationRunnable = new EglSurfaceCreation();
   
+  private final Choreographer.FrameCallback vsyncCallback = this::onVsyncOnRenderThread;
+  
+  // Registers |vsyncCallback| at most once, it may already be registered.
+  private final Runnable postVsyncCallbackRunnable = () -> {
+      if (this.choreographer == null)
+        this.choreographer = Choreographer.getInstance(); 
+      this.choreographer.removeFrameCallback(this.vsyncCallback);
+      this.choreographer.postFrameCallback(this.vsyncCallback);
+    };
+  
   public EglRenderer(String name) {
     this(name, new VideoFrameDrawer());
   }
@@ -235,6 +314,10 @@ public class EglRenderer implements VideoSink {
             } 
             this.frameDrawer.release();
             this.bitmapTextureFramebuffer.release();
+            if (this.pboReader != null) {
+              this.pboReader.release();
+              this.pboReader = null;
+            } 
             if (this.eglBase != null) {
               logD("eglBase detach and release.");
               this.eglBase.detachCurrent();
@@ -242,6 +325,9 @@ public class EglRenderer implements VideoSink {
               this.eglBase = null;
             } 
             this.frameListeners.clear();
+            this.periodicCaptures.clear();
+            if (this.choreographer != null)
+              this.choreographer.removeFrameCallback(this.vsyncCallback); 
             eglCleanupBarrier.countDown();
           });
       Looper renderLooper = this.renderThreadHandler.getLooper();
@@ -252,11 +338,20 @@ public class EglRenderer implements VideoSink {
       this.renderThreadHandler = null;
     } 
     ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
+    synchronized (this.listenerHandlerLock) {
+      if (this.listenerHandler != null) {
+        // Quit after the deliveries already posted, they hold frames read back before release.
+        Looper listenerLooper = this.listenerHandler.getLooper();
+        this.listenerHandler.post(listenerLooper::quit);
+        this.listenerHandler = null;
+      } 
+    } 
     synchronized (this.frameLock) {
       if (this.pendingFrame != null) {
         this.pendingFrame.release();
         this.pendingFrame = null;
       } 
+      clearPacedFramesLocked();
     } 
     logD("Releasing done.");
   }
@@ -269,6 +364,9 @@ public class EglRenderer implements VideoSink {
       this.framesRendered = 0;
       this.renderTimeNs = 0L;
       this.renderSwapBufferTimeNs = 0L;
+      this.framesOnTime = 0;
+      this.framesLate = 0;
+      this.framesDroppedLate = 0;
     } 
   }
   
@@ -329,6 +427,58 @@ public class EglRenderer implements VideoSink {
     setFpsReduction(0.0F);
   }
   
+  /**
+   * Enables rendering on Choreographer vsync instead of as soon as a frame arrives. Each frame is
+   * given a presentation time from its timestamp plus a smoothed network delay and jitter margin,
+   * and on every vsync the newest frame due by the next refresh is drawn. Older due frames would
+   * be shown late and are dropped. Evens out frames delivered in bursts by the network at the
+   * cost of some latency.
+   */
+  public void setVsyncPacing(boolean enabled) {
+    logD("setVsyncPacing: " + enabled);
+    this.vsyncPacing = enabled;
+    if (enabled)
+      return; 
+    int dropped;
+    synchronized (this.frameLock) {
+      dropped = this.pacedFramesCount;
+      clearPacedFramesLocked();
+      this.vsyncCallbackPending = false;
+      this.hasTimestampOffset = false;
+    } 
+    synchronized (this.statisticsLock) {
+      this.framesDropped += dropped;
+    } 
+    postToRenderThread(() -> {
+          if (this.choreographer != null)
+            this.choreographer.removeFrameCallback(this.vsyncCallback); 
+          // Pacing may have been enabled again in the meantime.
+          synchronized (this.frameLock) {
+            if (this.vsyncCallbackPending)
+              this.postVsyncCallbackRunnable.run(); 
+          } 
+        });
+  }
+
+  /**
+   * Enables asynchronous readback for frame listeners. When the EGL context supports GLES3, the
+   * listener frame is copied into a pixel pack buffer and mapped while the following frames render,
+   * so grabbing a frame no longer stalls the render thread, and listeners are called on a separate
+   * thread. On GLES2 contexts the synchronous glReadPixels path is used as before. A listener may
+   * still receive a frame that was in flight when it was removed.
+   */
+  public void setAsyncFrameReadback(boolean enabled) {
+    logD("setAsyncFrameReadback: " + enabled);
+    postToRenderThread(() -> {
+          this.asyncReadback = enabled;
+          if (!enabled && this.pboReader != null) {
+            this.pboReader.processReadbacks(true);
+            this.pboReader.release();
+            this.pboReader = null;
+          } 
+        });
+  }
+  
   public void addFrameListener(FrameListener listener, float scale) {
     addFrameListener(listener, scale, null, false);
   }
@@ -363,6 +513,61 @@ public class EglRenderer implements VideoSink {
     ThreadUtils.awaitUninterruptibly(latch);
   }
   
+  /**
+   * Adds a listener that stays registered and receives a frame at most every |intervalMs|, as a
+   * Bitmap that is reused for the next frame and only valid during the callback. A capture is
+   * skipped while the previous one is still being delivered.
+   */
+  public void addPeriodicFrameListener(FrameListener listener, float scale, long intervalMs) {
+    addPeriodicFrameListenerInternal(listener, scale, intervalMs);
+  }
+
+  /**
+   * Like above, but delivers tightly packed RGBA pixels in a direct buffer that is reused for the
+   * next frame and only valid during the callback.
+   */
+  public void addPeriodicFrameListener(RgbaFrameListener listener, float scale, long intervalMs) {
+    addPeriodicFrameListenerInternal(listener, scale, intervalMs);
+  }
+
+  /**
+   * Like above, but delivers an I420 buffer. Its memory is reused for the next frame once the
+   * buffer is released, so listeners that need it longer must retain it.
+   */
+  public void addPeriodicFrameListener(I420FrameListener listener, float scale, long intervalMs) {
+    addPeriodicFrameListenerInternal(listener, scale, intervalMs);
+  }
+
+  private void addPeriodicFrameListenerInternal(Object listener, float scale, long intervalMs) {
+    if (intervalMs < 0L)
+      throw new IllegalArgumentException("Invalid interval: " + intervalMs); 
+    PeriodicFrameCapture capture = new PeriodicFrameCapture(listener, scale, TimeUnit.MILLISECONDS.toNanos(intervalMs));
+    postToRenderThread(() -> this.periodicCaptures.add(capture));
+  }
+
+  /**
+   * Removes a listener added with addPeriodicFrameListener. A frame that was already being read
+   * back asynchronously may still be delivered afterwards.
+   */
+  public void removePeriodicFrameListener(Object listener) {
+    CountDownLatch latch = new CountDownLatch(1);
+    synchronized (this.handlerLock) {
+      if (this.renderThreadHandler == null)
+        return; 
+      if (Thread.currentThread() == this.renderThreadHandler.getLooper().getThread())
+        throw new RuntimeException("removePeriodicFrameListener must not be called on the render thread."); 
+      postToRenderThread(() -> {
+            latch.countDown();
+            Iterator<PeriodicFrameCapture> iter = this.periodicCaptures.iterator();
+            while (iter.hasNext()) {
+              if (((PeriodicFrameCapture)iter.next()).listener == listener)
+                iter.remove(); 
+            } 
+          });
+    } 
+    ThreadUtils.awaitUninterruptibly(latch);
+  }
+
   public void setErrorCallback(ErrorCallback errorCallback) {
     this.errorCallback = errorCallback;
   }
@@ -378,12 +583,20 @@ public class EglRenderer implements VideoSink {
         return;
       } 
       synchronized (this.frameLock) {
-        dropOldFrame = (this.pendingFrame != null);
-        if (dropOldFrame)
-          this.pendingFrame.release(); 
-        this.pendingFrame = frame;
-        this.pendingFrame.retain();
-        this.renderThreadHandler.post(this::renderFrameOnRenderThread);
+        if (this.vsyncPacing) {
+          dropOldFrame = queuePacedFrameLocked(frame);
+          if (!this.vsyncCallbackPending) {
+            this.vsyncCallbackPending = true;
+            this.renderThreadHandler.post(this.postVsyncCallbackRunnable);
+          } 
+        } else {
+          dropOldFrame = (this.pendingFrame != null);
+          if (dropOldFrame)
+            this.pendingFrame.release(); 
+          this.pendingFrame = frame;
+          this.pendingFrame.retain();
+          this.renderThreadHandler.post(this::renderFrameOnRenderThread);
+        } 
       } 
     } 
     if (dropOldFrame)
@@ -392,6 +605,96 @@ public class EglRenderer implements VideoSink {
       }  
   }
   
+  /**
+   * Retains |frame| and queues it with its presentation time. Returns true if the queue was full
+   * and the oldest frame was dropped.
+   */
+  private boolean queuePacedFrameLocked(VideoFrame frame) {
+    long arrivalTimeNs = System.nanoTime();
+    long offsetNs = arrivalTimeNs - frame.getTimestampNs();
+    long deviationNs = offsetNs - this.timestampOffsetNs;
+    if (!this.hasTimestampOffset || Math.abs(deviationNs) > MAX_TIMESTAMP_DEVIATION_NS) {
+      this.hasTimestampOffset = true;
+      this.timestampOffsetNs = offsetNs;
+      this.timestampJitterNs = 0L;
+    } else {
+      this.timestampOffsetNs += deviationNs / 16L;
+      this.timestampJitterNs += (Math.abs(deviationNs) - this.timestampJitterNs) / 16L;
+    } 
+    boolean dropped = (this.pacedFramesCount == MAX_PACED_FRAMES);
+    if (dropped) {
+      this.pacedFrames[this.pacedFramesHead].release();
+      this.pacedFrames[this.pacedFramesHead] = null;
+      this.pacedFramesHead = (this.pacedFramesHead + 1) % MAX_PACED_FRAMES;
+      this.pacedFramesCount--;
+    } 
+    int tail = (this.pacedFramesHead + this.pacedFramesCount) % MAX_PACED_FRAMES;
+    frame.retain();
+    this.pacedFrames[tail] = frame;
+    this.pacedPresentationTimesNs[tail] = frame.getTimestampNs() + this.timestampOffsetNs + 2L * this.timestampJitterNs;
+    this.pacedFramesCount++;
+    return dropped;
+  }
+  
+  private void clearPacedFramesLocked() {
+    while (this.pacedFramesCount > 0) {
+      this.pacedFrames[this.pacedFramesHead].release();
+      this.pacedFrames[this.pacedFramesHead] = null;
+      this.pacedFramesHead = (this.pacedFramesHead + 1) % MAX_PACED_FRAMES;
+      this.pacedFramesCount--;
+    } 
+  }
+  
+  /**
+   * Draws the newest queued frame due by the time a frame drawn now reaches the screen. Due frames
+   * before it would only be shown late and are dropped.
+   */
+  private void onVsyncOnRenderThread(long vsyncTimeNs) {
+    if (this.lastVsyncTimeNs != 0L) {
+      long periodNs = vsyncTimeNs - this.lastVsyncTimeNs;
+      // Longer gaps are missed vsyncs or idle time without frames.
+      if (periodNs > 0L && periodNs < this.refreshPeriodNs * 3L / 2L)
+        this.refreshPeriodNs += (periodNs - this.refreshPeriodNs) / 8L; 
+    } 
+    this.lastVsyncTimeNs = vsyncTimeNs;
+    long displayTimeNs = vsyncTimeNs + this.refreshPeriodNs;
+    VideoFrame frame = null;
+    long presentationTimeNs = 0L;
+    int droppedLate = 0;
+    synchronized (this.frameLock) {
+      while (this.pacedFramesCount > 0 && this.pacedPresentationTimesNs[this.pacedFramesHead] <= displayTimeNs + this.refreshPeriodNs / 2L) {
+        if (frame != null) {
+          frame.release();
+          droppedLate++;
+        } 
+        frame = this.pacedFrames[this.pacedFramesHead];
+        presentationTimeNs = this.pacedPresentationTimesNs[this.pacedFramesHead];
+        this.pacedFrames[this.pacedFramesHead] = null;
+        this.pacedFramesHead = (this.pacedFramesHead + 1) % MAX_PACED_FRAMES;
+        this.pacedFramesCount--;
+      } 
+      if (this.pacedFramesCount > 0) {
+        this.choreographer.postFrameCallback(this.vsyncCallback);
+      } else {
+        this.vsyncCallbackPending = false;
+      } 
+    } 
+    boolean late = (displayTimeNs - presentationTimeNs > this.refreshPeriodNs / 2L);
+    synchronized (this.statisticsLock) {
+      this.framesDroppedLate += droppedLate;
+      if (frame != null && late) {
+        this.framesLate++;
+      } else if (frame != null) {
+        this.framesOnTime++;
+      } 
+    } 
+    if (frame == null)
+      return; 
+    if (this.pboReader != null)
+      this.pboReader.processReadbacks(false); 
+    renderFrameOnRenderThread(frame);
+  }
+  
   public void releaseEglSurface(Runnable completionCallback) {
     this.eglSurfaceCreationRunnable.setSurface(null);
     synchronized (this.handlerLock) {
@@ -442,6 +745,10 @@ public class EglRenderer implements VideoSink {
    * Renders and releases |pendingFrame|.
    */
   private void renderFrameOnRenderThread() {
+    // Deliver listener frames whose readback finished while the previous frame was shown.
+    if (pboReader != null) {
+      pboReader.processReadbacks(false /* wait */);
+    }
     // Fetch and render |pendingFrame|.
     final VideoFrame frame;
     synchronized (frameLock) {
@@ -451,6 +758,13 @@ public class EglRenderer implements VideoSink {
       frame = pendingFrame;
       pendingFrame = null;
     }
+    renderFrameOnRenderThread(frame);
+  }
+
+  /**
+   * Renders and releases |frame|.
+   */
+  private void renderFrameOnRenderThread(VideoFrame frame) {
     if (eglBase == null || !eglBase.hasSurface()) {
       logD("Dropping frame - No surface");
       frame.release();
@@ -537,6 +851,10 @@ public class EglRenderer implements VideoSink {
       drawer.release();
       frameDrawer.release();
       bitmapTextureFramebuffer.release();
+      if (pboReader != null) {
+        pboReader.release();
+        pboReader = null;
+      }
       // Continue here on purpose and retry again for next frame. In worst case, this is a continous
       // problem and no more frames will be drawn.
     } finally {
@@ -545,7 +863,7 @@ public class EglRenderer implements VideoSink {
   }
 
   private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
-    if (this.frameListeners.isEmpty())
+    if (this.frameListeners.isEmpty() && this.periodicCaptures.isEmpty())
       return; 
     this.drawMatrix.reset();
     this.drawMatrix.preTranslate(0.5F, 0.5F);
@@ -564,23 +882,107 @@ public class EglRenderer implements VideoSink {
         listenerAndParams.listener.onFrame(null);
         continue;
       } 
-      this.bitmapTextureFramebuffer.setSize(scaledWidth, scaledHeight);
-      GLES20.glBindFramebuffer(36160, this.bitmapTextureFramebuffer.getFrameBufferId());
-      GLES20.glFramebufferTexture2D(36160, 36064, 3553, this.bitmapTextureFramebuffer
-          .getTextureId(), 0);
-      GLES20.glClearColor(0.0F, 0.0F, 0.0F, 0.0F);
-      GLES20.glClear(16384);
-      this.frameDrawer.drawFrame(frame, listenerAndParams.drawer, this.drawMatrix, 0, 0, scaledWidth, scaledHeight);
+      drawListenerFrame(frame, listenerAndParams.drawer, scaledWidth, scaledHeight);
+      GlPboReader reader = getPboReader();
+      if (reader != null) {
+        FrameListener listener = listenerAndParams.listener;
+        reader.readPixels(scaledWidth, scaledHeight, (rgba, width, height) -> {
+              Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+              bitmap.copyPixelsFromBuffer(rgba);
+              postToListenerThread(() -> listener.onFrame(bitmap));
+            });
+        GLES20.glBindFramebuffer(36160, 0);
+        scheduleReadbackFlush();
+        continue;
+      } 
       ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
-      GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
       GLES20.glReadPixels(0, 0, scaledWidth, scaledHeight, 6408, 5121, bitmapBuffer);
       GLES20.glBindFramebuffer(36160, 0);
       GlUtil.checkNoGLES2Error("EglRenderer.notifyCallbacks");
       Bitmap bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
       bitmap.copyPixelsFromBuffer(bitmapBuffer);
-      Log.i(TAG, "notifyCallbacks: MAURI");
       listenerAndParams.listener.onFrame(bitmap);
     } 
+    if (this.periodicCaptures.isEmpty())
+      return; 
+    long currentTimeNs = System.nanoTime();
+    long timestampNs = frame.getTimestampNs();
+    for (PeriodicFrameCapture capture : this.periodicCaptures) {
+      int scaledWidth = (int)(capture.scale * frame.getRotatedWidth());
+      int scaledHeight = (int)(capture.scale * frame.getRotatedHeight());
+      if (scaledWidth == 0 || scaledHeight == 0 || !capture.shouldCapture(currentTimeNs))
+        continue; 
+      drawListenerFrame(frame, this.drawer, scaledWidth, scaledHeight);
+      GlPboReader reader = getPboReader();
+      if (reader != null) {
+        capture.setDeliveryPending();
+        reader.readPixels(scaledWidth, scaledHeight, new GlPboReader.Callback() {
+              public void onPixels(ByteBuffer rgba, int width, int height) {
+                capture.getRgbaBuffer(width, height).put(rgba);
+                postToListenerThread(() -> capture.deliver(width, height, timestampNs));
+              }
+              
+              public void onAbandoned() {
+                capture.cancelDelivery();
+              }
+            });
+        GLES20.glBindFramebuffer(36160, 0);
+        scheduleReadbackFlush();
+        continue;
+      } 
+      GLES20.glReadPixels(0, 0, scaledWidth, scaledHeight, 6408, 5121, capture
+          .getRgbaBuffer(scaledWidth, scaledHeight));
+      GLES20.glBindFramebuffer(36160, 0);
+      GlUtil.checkNoGLES2Error("EglRenderer.notifyCallbacks");
+      capture.deliver(scaledWidth, scaledHeight, timestampNs);
+    } 
+  }
+
+  /** Draws |frame| into the listener framebuffer and leaves that framebuffer bound. */
+  private void drawListenerFrame(VideoFrame frame, RendererCommon.GlDrawer listenerDrawer, int width, int height) {
+    this.bitmapTextureFramebuffer.setSize(width, height);
+    GLES20.glBindFramebuffer(36160, this.bitmapTextureFramebuffer.getFrameBufferId());
+    GLES20.glFramebufferTexture2D(36160, 36064, 3553, this.bitmapTextureFramebuffer
+        .getTextureId(), 0);
+    GLES20.glClearColor(0.0F, 0.0F, 0.0F, 0.0F);
+    GLES20.glClear(16384);
+    this.frameDrawer.drawFrame(frame, listenerDrawer, this.drawMatrix, 0, 0, width, height);
+    GLES20.glViewport(0, 0, width, height);
+  }
+
+  @Nullable
+  private GlPboReader getPboReader() {
+    if (!this.asyncReadback)
+      return null; 
+    if (this.pboReader == null) {
+      if (!GlPboReader.isSupported()) {
+        logW("Asynchronous readback needs GLES3, using glReadPixels.");
+        this.asyncReadback = false;
+        return null;
+      } 
+      this.pboReader = new GlPboReader(READBACK_SLOT_COUNT);
+    } 
+    return this.pboReader;
+  }
+
+  private void scheduleReadbackFlush() {
+    synchronized (this.handlerLock) {
+      if (this.renderThreadHandler != null) {
+        this.renderThreadHandler.removeCallbacks(this.flushReadbacksRunnable);
+        this.renderThreadHandler.postDelayed(this.flushReadbacksRunnable, READBACK_FLUSH_DELAY_MS);
+      } 
+    } 
+  }
+
+  private void postToListenerThread(Runnable runnable) {
+    synchronized (this.listenerHandlerLock) {
+      if (this.listenerHandler == null) {
+        HandlerThread listenerThread = new HandlerThread(this.name + "EglRendererListener");
+        listenerThread.start();
+        this.listenerHandler = new Handler(listenerThread.getLooper());
+      } 
+      this.listenerHandler.post(runnable);
+    } 
   }
   
   private String averageTimeAsString(long sumTimeNs, int count) {
@@ -601,6 +1003,9 @@ public class EglRenderer implements VideoSink {
           averageTimeAsString(this.renderTimeNs, this.framesRendered) + ". Average swapBuffer time: " + 
           
           averageTimeAsString(this.renderSwapBufferTimeNs, this.framesRendered) + ".");
+      if (this.vsyncPacing)
+        logD("Vsync pacing. On time: " + this.framesOnTime + ". Late: " + this.framesLate + ". Dropped late: " + this.framesDroppedLate + ". Refresh period: " + 
+            TimeUnit.NANOSECONDS.toMicros(this.refreshPeriodNs) + " us."); 
       resetStatistics(currentTimeNs);
     } 
   }
@@ -624,4 +1029,12 @@ public class EglRenderer implements VideoSink {
   public static interface FrameListener {
     void onFrame(Bitmap param1Bitmap);
   }
+
+  public static interface RgbaFrameListener {
+    void onFrame(ByteBuffer rgba, int width, int height, long timestampNs);
+  }
+
+  public static interface I420FrameListener {
+    void onFrame(VideoFrame.I420Buffer buffer, long timestampNs);
+  }
 }
@@ -0,0 +1,353 @@
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records encoder output to disk without re-encoding: H.264 as an Annex-B elementary stream
+ * (.h264), VP8 and VP9 as IVF (.ivf). Feed it through RecordingVideoEncoder, or call
+ * onEncodedFrame() from any encoder callback. Frames are written by a dedicated thread through a
+ * FileChannel, so the caller never waits for the disk. Recording starts at the next key frame.
+ * Files are rotated at key frames once they reach the size or duration limit, so each file plays
+ * on its own. Thread safe.
+ */
+public class EncodedVideoRecorder implements VideoEncoder.Callback {
+  private static final String TAG = "EncodedVideoRecorder";
+  public static final int DEFAULT_MAX_RETAINED_FRAMES = 2;
+  public static final long DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+
+  private static final int IVF_FILE_HEADER_SIZE = 32;
+  private static final int IVF_FRAME_HEADER_SIZE = 12;
+  private static final int IVF_FRAME_COUNT_OFFSET = 24;
+  // IVF timestamps are in microseconds.
+  private static final int IVF_TIMEBASE_DENOMINATOR = 1000000;
+
+  private static class PendingFrame {
+    // Retained image whose buffer is written directly, or null if |data| is a pooled copy.
+    @Nullable final EncodedImage image;
+    final ByteBuffer data;
+    final long captureTimeNs;
+    final int width;
+    final int height;
+    final boolean keyFrame;
+
+    PendingFrame(@Nullable EncodedImage image, ByteBuffer data, long captureTimeNs, int width,
+        int height, boolean keyFrame) {
+      this.image = image;
+      this.data = data;
+      this.captureTimeNs = captureTimeNs;
+      this.width = width;
+      this.height = height;
+      this.keyFrame = keyFrame;
+    }
+  }
+
+  private final String pathPrefix;
+  // IVF fourcc, or null for an Annex-B stream.
+  @Nullable private final String ivfFourcc;
+  private final long maxFileBytes;
+  private final long maxFileDurationNs;
+  private final int maxRetainedFrames;
+  private final long maxQueuedBytes;
+  private final Thread writerThread;
+
+  private final Object lock = new Object();
+  private final ArrayDeque<PendingFrame> queue = new ArrayDeque<>(); /* guarded by lock */
+  private long queuedBytes; /* guarded by lock */
+  private int retainedFrames; /* guarded by lock */
+  private boolean waitingForKeyFrame = true; /* guarded by lock */
+  private boolean released; /* guarded by lock */
+  private int framesWritten; /* guarded by lock */
+  private int framesDropped; /* guarded by lock */
+  private long bytesWritten; /* guarded by lock */
+  private int fileCount; /* guarded by lock */
+
+  // Only accessed on the writer thread.
+  @Nullable private FileOutputStream outputFile;
+  @Nullable private FileChannel outputChannel;
+  private long fileBytes;
+  private int fileFrames;
+  private long fileStartTimeNs;
+  private final ByteBuffer ivfHeader =
+      ByteBuffer.allocateDirect(IVF_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer ivfFrameHeader =
+      ByteBuffer.allocateDirect(IVF_FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer[] ivfFrameParts = new ByteBuffer[2];
+
+  /** Records to a single file. See the full constructor. */
+  public EncodedVideoRecorder(String pathPrefix, String codecName) {
+    this(pathPrefix, codecName, 0 /* maxFileBytes */, 0 /* maxFileDurationMs */);
+  }
+
+  public EncodedVideoRecorder(
+      String pathPrefix, String codecName, long maxFileBytes, long maxFileDurationMs) {
+    this(pathPrefix, codecName, maxFileBytes, maxFileDurationMs, DEFAULT_MAX_RETAINED_FRAMES,
+        DEFAULT_MAX_QUEUED_BYTES);
+  }
+
+  /**
+   * Files are named |pathPrefix| + "_" + index + extension. |codecName| is a VideoCodecInfo name:
+   * "H264", "VP8" or "VP9". A new file is started at the first key frame after the current one
+   * reaches |maxFileBytes| or |maxFileDurationMs|, 0 disables a limit. Up to |maxRetainedFrames|
+   * queued frames keep the encoder's buffer instead of a copy; retained buffers are not returned to
+   * the codec until written, so keep this small. When |maxQueuedBytes| are waiting for the disk,
+   * frames are dropped and recording resumes at the next key frame.
+   */
+  public EncodedVideoRecorder(String pathPrefix, String codecName, long maxFileBytes,
+      long maxFileDurationMs, int maxRetainedFrames, long maxQueuedBytes) {
+    switch (codecName) {
+      case "H264":
+        ivfFourcc = null;
+        break;
+      case "VP8":
+        ivfFourcc = "VP80";
+        break;
+      case "VP9":
+        ivfFourcc = "VP90";
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported codec: " + codecName);
+    }
+    if (maxFileBytes < 0 || maxFileDurationMs < 0 || maxRetainedFrames < 0
+        || maxQueuedBytes <= 0) {
+      throw new IllegalArgumentException("Invalid recorder limits.");
+    }
+    this.pathPrefix = pathPrefix;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFileDurationNs = TimeUnit.MILLISECONDS.toNanos(maxFileDurationMs);
+    this.maxRetainedFrames = maxRetainedFrames;
+    this.maxQueuedBytes = maxQueuedBytes;
+    writerThread = new Thread(this::runWriter, TAG);
+    writerThread.start();
+  }
+
+  /** Queues |image| for writing. Never blocks on the disk. */
+  @Override
+  public void onEncodedFrame(EncodedImage image, VideoEncoder.CodecSpecificInfo info) {
+    final boolean keyFrame = image.frameType == EncodedImage.FrameType.VideoFrameKey;
+    final int size = image.buffer.remaining();
+    if (size == 0) {
+      return;
+    }
+    synchronized (lock) {
+      if (released) {
+        return;
+      }
+      if (waitingForKeyFrame && !keyFrame) {
+        return;
+      }
+      if (!queue.isEmpty() && queuedBytes + size > maxQueuedBytes) {
+        ++framesDropped;
+        waitingForKeyFrame = true;
+        return;
+      }
+      waitingForKeyFrame = false;
+      final PendingFrame frame;
+      if (retainedFrames < maxRetainedFrames) {
+        image.retain();
+        ++retainedFrames;
+        frame = new PendingFrame(image, image.buffer.duplicate(), image.captureTimeNs,
+            image.encodedWidth, image.encodedHeight, keyFrame);
+      } else {
+        final ByteBuffer copy = NativeByteBufferPool.INSTANCE.acquire(size);
+        copy.put(image.buffer.duplicate());
+        copy.flip();
+        frame = new PendingFrame(null /* image */, copy, image.captureTimeNs, image.encodedWidth,
+            image.encodedHeight, keyFrame);
+      }
+      queuedBytes += size;
+      queue.addLast(frame);
+      lock.notify();
+    }
+  }
+
+  /** Number of frames written to disk. */
+  public int getFramesWritten() {
+    synchronized (lock) {
+      return framesWritten;
+    }
+  }
+
+  /** Number of frames dropped because too much data was waiting for the disk. */
+  public int getFramesDropped() {
+    synchronized (lock) {
+      return framesDropped;
+    }
+  }
+
+  /** Bytes written to disk, including container headers. */
+  public long getBytesWritten() {
+    synchronized (lock) {
+      return bytesWritten;
+    }
+  }
+
+  /** Number of files started so far. */
+  public int getFileCount() {
+    synchronized (lock) {
+      return fileCount;
+    }
+  }
+
+  /** Writes the frames still queued, closes the current file and stops the writer thread. */
+  public void release() {
+    synchronized (lock) {
+      if (released) {
+        return;
+      }
+      released = true;
+      lock.notifyAll();
+    }
+    ThreadUtils.joinUninterruptibly(writerThread);
+    Logging.d(TAG,
+        "Recorded " + framesWritten + " frames, " + bytesWritten + " bytes in " + fileCount
+            + " files. Dropped frames: " + framesDropped);
+  }
+
+  private void runWriter() {
+    while (true) {
+      final PendingFrame frame;
+      synchronized (lock) {
+        while (queue.isEmpty() && !released) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (queue.isEmpty()) {
+          break;
+        }
+        frame = queue.pollFirst();
+      }
+      final int size = frame.data.remaining();
+      long written = 0;
+      try {
+        written = writeFrame(frame);
+      } catch (IOException e) {
+        Logging.e(TAG, "Failed to write frame, resuming at the next key frame", e);
+        closeFile();
+      } finally {
+        if (frame.image != null) {
+          frame.image.release();
+        } else {
+          NativeByteBufferPool.INSTANCE.release(frame.data);
+        }
+      }
+      synchronized (lock) {
+        queuedBytes -= size;
+        if (frame.image != null) {
+          --retainedFrames;
+        }
+        if (written > 0) {
+          ++framesWritten;
+          bytesWritten += written;
+        }
+      }
+    }
+    closeFile();
+  }
+
+  /** Returns the number of bytes written, 0 if the frame was skipped. */
+  private long writeFrame(PendingFrame frame) throws IOException {
+    long written = 0;
+    if (frame.keyFrame && (outputChannel == null || isRotationDue(frame.captureTimeNs))) {
+      closeFile();
+      written += openFile(frame);
+    }
+    if (outputChannel == null) {
+      // The file was lost to a write error, wait for the next key frame to start a new one.
+      return 0;
+    }
+    if (ivfFourcc != null) {
+      ivfFrameHeader.clear();
+      ivfFrameHeader.putInt(frame.data.remaining());
+      ivfFrameHeader.putLong(TimeUnit.NANOSECONDS.toMicros(frame.captureTimeNs - fileStartTimeNs));
+      ivfFrameHeader.flip();
+      ivfFrameParts[0] = ivfFrameHeader;
+      ivfFrameParts[1] = frame.data;
+      written += writeFully(ivfFrameParts);
+      ivfFrameParts[1] = null;
+    } else {
+      while (frame.data.hasRemaining()) {
+        written += outputChannel.write(frame.data);
+      }
+    }
+    fileBytes += written;
+    ++fileFrames;
+    return written;
+  }
+
+  private boolean isRotationDue(long captureTimeNs) {
+    return (maxFileBytes > 0 && fileBytes >= maxFileBytes)
+        || (maxFileDurationNs > 0 && captureTimeNs - fileStartTimeNs >= maxFileDurationNs);
+  }
+
+  private long openFile(PendingFrame keyFrame) throws IOException {
+    final int index;
+    synchronized (lock) {
+      index = fileCount++;
+    }
+    final String path = pathPrefix + "_" + index + (ivfFourcc != null ? ".ivf" : ".h264");
+    outputFile = new FileOutputStream(path);
+    outputChannel = outputFile.getChannel();
+    fileBytes = 0;
+    fileFrames = 0;
+    fileStartTimeNs = keyFrame.captureTimeNs;
+    Logging.d(TAG, "Recording to " + path);
+    if (ivfFourcc == null) {
+      return 0;
+    }
+    ivfHeader.clear();
+    ivfHeader.put("DKIF".getBytes(Charset.forName("US-ASCII")));
+    ivfHeader.putShort((short) 0); // Version.
+    ivfHeader.putShort((short) IVF_FILE_HEADER_SIZE);
+    ivfHeader.put(ivfFourcc.getBytes(Charset.forName("US-ASCII")));
+    ivfHeader.putShort((short) keyFrame.width);
+    ivfHeader.putShort((short) keyFrame.height);
+    ivfHeader.putInt(IVF_TIMEBASE_DENOMINATOR);
+    ivfHeader.putInt(1); // Timebase numerator.
+    ivfHeader.putInt(0); // Frame count, patched when the file is closed.
+    ivfHeader.putInt(0); // Unused.
+    ivfHeader.flip();
+    final long written = writeFully(new ByteBuffer[] {ivfHeader});
+    fileBytes += written;
+    return written;
+  }
+
+  private void closeFile() {
+    if (outputFile == null) {
+      return;
+    }
+    try {
+      if (ivfFourcc != null && outputChannel.isOpen()) {
+        ivfHeader.clear();
+        ivfHeader.putInt(fileFrames);
+        ivfHeader.flip();
+        outputChannel.write(ivfHeader, IVF_FRAME_COUNT_OFFSET);
+      }
+      outputFile.close();
+      Logging.d(TAG, "Closed file with " + fileFrames + " frames, " + fileBytes + " bytes");
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to close file", e);
+    }
+    outputFile = null;
+    outputChannel = null;
+  }
+
+  private long writeFully(ByteBuffer[] parts) throws IOException {
+    long written = 0;
+    while (parts[0].hasRemaining() || parts[parts.length - 1].hasRemaining()) {
+      written += outputChannel.write(parts);
+    }
+    return written;
+  }
+}
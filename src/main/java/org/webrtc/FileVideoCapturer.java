@@ -1,40 +1,65 @@
 package org.webrtc;
 
 import android.content.Context;
-import android.os.SystemClock;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class FileVideoCapturer implements VideoCapturer {
   private static final String TAG = "FileVideoCapturer";
   
+  // Frames further behind schedule than this are skipped instead of delivered back to back.
+  private static final int MAX_LATE_FRAMES = 3;
+  
   private final VideoReader videoReader;
   
   private CapturerObserver capturerObserver;
   
+  /**
+   * Maps the file into memory and indexes the frames once, so frames are handed out as views of
+   * the mapping without copying. Files above 2 GB are mapped in several segments.
+   */
   private static class VideoReaderY4M implements VideoReader {
     private static final String TAG = "VideoReaderY4M";
     
     private static final String Y4M_FRAME_DELIMETER = "FRAME";
     
-    private static final int FRAME_DELIMETER_LENGTH = "FRAME".length() + 1;
+    // MappedByteBuffer is int indexed.
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+    
+    private static final int PAGE_SIZE = 4096;
     
     private final int frameWidth;
     
     private final int frameHeight;
     
+    private final int frameSize;
+    
     private final long videoStart;
     
     private final RandomAccessFile mediaFile;
     
     private final FileChannel mediaFileChannel;
     
+    private final MappedByteBuffer[] segments;
+    
+    // Segment and offset of the pixel data of each frame.
+    private final int[] frameSegments;
+    
+    private final int[] frameOffsets;
+    
+    private final int frameCount;
+    
     public VideoReaderY4M(String file) throws IOException {
       this.mediaFile = new RandomAccessFile(file, "r");
       this.mediaFileChannel = this.mediaFile.getChannel();
@@ -74,36 +99,98 @@ public class FileVideoCapturer implements VideoCapturer {
         throw new IllegalArgumentException("Does not support odd width or height"); 
       this.frameWidth = w;
       this.frameHeight = h;
+      this.frameSize = w * h + 2 * (w / 2) * (h / 2);
       Logging.d("VideoReaderY4M", "frame dim: (" + w + ", " + h + ")");
+      long fileSize = this.mediaFileChannel.size();
+      List<MappedByteBuffer> mappedSegments = new ArrayList<>();
+      int[] segmentIndices = new int[64];
+      int[] offsets = new int[64];
+      int count = 0;
+      long segmentStart = this.videoStart;
+      while (segmentStart < fileSize) {
+        MappedByteBuffer segment = this.mediaFileChannel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(MAX_SEGMENT_SIZE, fileSize - segmentStart));
+        mappedSegments.add(segment);
+        int position = 0;
+        while (true) {
+          int dataOffset = findFrameData(segment, position);
+          if (dataOffset < 0 || dataOffset > segment.capacity() - this.frameSize)
+            break; 
+          if (count == offsets.length) {
+            segmentIndices = Arrays.copyOf(segmentIndices, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+          } 
+          segmentIndices[count] = mappedSegments.size() - 1;
+          offsets[count] = dataOffset;
+          count++;
+          position = dataOffset + this.frameSize;
+        } 
+        if (segmentStart + segment.capacity() == fileSize) {
+          if (position < segment.capacity())
+            Logging.w("VideoReaderY4M", "Ignoring truncated last frame"); 
+          break;
+        } 
+        if (position == 0)
+          throw new RuntimeException("Frame does not fit in a mapped segment"); 
+        // Map the frame that straddles the end of this segment as part of the next one.
+        segmentStart += position;
+      } 
+      if (count == 0)
+        throw new RuntimeException("No frames found in file: " + file); 
+      this.segments = mappedSegments.<MappedByteBuffer>toArray(new MappedByteBuffer[0]);
+      this.frameSegments = segmentIndices;
+      this.frameOffsets = offsets;
+      this.frameCount = count;
+      Logging.d("VideoReaderY4M", "Indexed " + count + " frames in " + this.segments.length + " segments");
     }
     
-    public VideoFrame getNextFrame() {
-      long captureTimeNs = TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
-      JavaI420Buffer buffer = JavaI420Buffer.allocate(this.frameWidth, this.frameHeight);
-      ByteBuffer dataY = buffer.getDataY();
-      ByteBuffer dataU = buffer.getDataU();
-      ByteBuffer dataV = buffer.getDataV();
-      int chromaHeight = (this.frameHeight + 1) / 2;
-      int sizeY = this.frameHeight * buffer.getStrideY();
-      int sizeU = chromaHeight * buffer.getStrideU();
-      int sizeV = chromaHeight * buffer.getStrideV();
-      try {
-        ByteBuffer frameDelim = ByteBuffer.allocate(FRAME_DELIMETER_LENGTH);
-        if (this.mediaFileChannel.read(frameDelim) < FRAME_DELIMETER_LENGTH) {
-          this.mediaFileChannel.position(this.videoStart);
-          if (this.mediaFileChannel.read(frameDelim) < FRAME_DELIMETER_LENGTH)
-            throw new RuntimeException("Error looping video"); 
-        } 
-        String frameDelimStr = new String(frameDelim.array(), Charset.forName("US-ASCII"));
-        if (!frameDelimStr.equals("FRAME\n"))
-          throw new RuntimeException("Frames should be delimited by FRAME plus newline, found delimter was: '" + frameDelimStr + "'"); 
-        this.mediaFileChannel.read(dataY);
-        this.mediaFileChannel.read(dataU);
-        this.mediaFileChannel.read(dataV);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+    /**
+     * Returns the offset of the pixel data after the frame header at |position|, or -1 if the
+     * header does not end within |segment|.
+     */
+    private static int findFrameData(ByteBuffer segment, int position) {
+      int delimiterLength = "FRAME".length();
+      if (segment.capacity() - position <= delimiterLength)
+        return -1; 
+      for (int i = 0; i < delimiterLength; i++) {
+        if (segment.get(position + i) != "FRAME".charAt(i))
+          throw new RuntimeException("Frames should be delimited by FRAME plus newline, found invalid header at offset " + position); 
       } 
-      return new VideoFrame(buffer, 0, captureTimeNs);
+      // The delimiter may be followed by frame parameters up to the newline.
+      for (int i = position + delimiterLength; i < segment.capacity(); i++) {
+        if (segment.get(i) == 10)
+          return i + 1; 
+      } 
+      return -1;
+    }
+    
+    public int getFrameCount() {
+      return this.frameCount;
+    }
+    
+    public VideoFrame getFrame(int index, int rotation, long captureTimeNs) {
+      ByteBuffer segment = this.segments[this.frameSegments[index]];
+      int offset = this.frameOffsets[index];
+      int sizeY = this.frameWidth * this.frameHeight;
+      int chromaWidth = this.frameWidth / 2;
+      int sizeU = chromaWidth * this.frameHeight / 2;
+      JavaI420Buffer buffer = JavaI420Buffer.wrap(this.frameWidth, this.frameHeight, slice(segment, offset, sizeY), this.frameWidth, 
+          slice(segment, offset + sizeY, sizeU), chromaWidth, 
+          slice(segment, offset + sizeY + sizeU, sizeU), chromaWidth, null);
+      return new VideoFrame(buffer, rotation, captureTimeNs);
+    }
+    
+    public void prefetchFrame(int index) {
+      ByteBuffer segment = this.segments[this.frameSegments[index]];
+      int offset = this.frameOffsets[index];
+      for (int i = 0; i < this.frameSize; i += PAGE_SIZE)
+        segment.get(offset + i); 
+    }
+    
+    private static ByteBuffer slice(ByteBuffer segment, int offset, int size) {
+      ByteBuffer slice = segment.duplicate();
+      slice.position(offset);
+      slice.limit(offset + size);
+      return slice.slice();
     }
     
     public void close() {
@@ -115,33 +202,189 @@ public class FileVideoCapturer implements VideoCapturer {
     }
   }
   
-  private final Timer timer = new Timer();
+  /**
+   * Per-frame capture timestamps, and optionally rotations, recorded in a text file with one line
+   * per frame: "<timestamp in microseconds> [<rotation>]". Empty lines and lines starting with #
+   * are ignored. Kept in arrays so any frame can be looked up directly when seeking.
+   */
+  private static class ReplayTrace {
+    final long[] timestampsNs;
+    
+    final int[] rotations;
+    
+    final int size;
+    
+    // Trace duration plus one average frame interval, the time offset between two loops.
+    final long loopDurationNs;
+    
+    ReplayTrace(String file) throws IOException {
+      long[] timestamps = new long[256];
+      int[] frameRotations = new int[256];
+      int count = 0;
+      try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lineNumber++;
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#"))
+            continue; 
+          String[] tokens = line.split("\\s+");
+          long timestampNs;
+          int rotation = 0;
+          try {
+            timestampNs = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(tokens[0]));
+            if (tokens.length > 1)
+              rotation = Integer.parseInt(tokens[1]); 
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid trace line " + lineNumber + ": " + line);
+          } 
+          if (rotation < 0 || rotation >= 360 || rotation % 90 != 0)
+            throw new IllegalArgumentException("Invalid rotation on trace line " + lineNumber + ": " + rotation); 
+          if (count > 0 && timestampNs < timestamps[count - 1])
+            throw new IllegalArgumentException("Timestamps must not decrease, trace line " + lineNumber); 
+          if (count == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+            frameRotations = Arrays.copyOf(frameRotations, count * 2);
+          } 
+          timestamps[count] = timestampNs;
+          frameRotations[count] = rotation;
+          count++;
+        } 
+      } 
+      if (count < 2)
+        throw new IllegalArgumentException("Trace needs at least two frames: " + file); 
+      this.timestampsNs = timestamps;
+      this.rotations = frameRotations;
+      this.size = count;
+      long durationNs = timestamps[count - 1] - timestamps[0];
+      this.loopDurationNs = durationNs + durationNs / (count - 1);
+    }
+  }
+  
+  private final ReplayTrace replayTrace;
+  
+  private final Object pacingLock = new Object();
+  
+  private Thread pacingThread;
+  
+  private volatile boolean capturing;
+  
+  private volatile boolean looping = true;
+  
+  private volatile boolean burstMode;
+  
+  private volatile double replaySpeed = 1.0D;
+  
+  private final AtomicInteger pendingSeek = new AtomicInteger(-1);
+  
+  // Position in the trace, or in the file without a trace. Only touched by the thread delivering
+  // frames.
+  private int frameIndex;
+  
+  private volatile long framesDelivered;
   
-  private final TimerTask tickTask = new TimerTask() {
-      public void run() {
-        FileVideoCapturer.this.tick();
-      }
-    };
+  private volatile long framesSkipped;
   
   private static interface VideoReader {
-    VideoFrame getNextFrame();
+    int getFrameCount();
+    
+    /** Returns frame |index| as a view of the file contents, valid until the reader is closed. */
+    VideoFrame getFrame(int index, int rotation, long captureTimeNs);
+    
+    /** Faults in the pages of frame |index| so the consumer of the frame does not stall on them. */
+    void prefetchFrame(int index);
     
     void close();
   }
   
   public FileVideoCapturer(String inputFile) throws IOException {
+    this(inputFile, null);
+  }
+  
+  /**
+   * Replays |inputFile| with the cadence recorded in |traceFile| (see ReplayTrace) instead of a
+   * constant framerate, or at a constant framerate if |traceFile| is null. Trace entry n shows
+   * file frame n, wrapping around if the trace is longer than the file.
+   */
+  public FileVideoCapturer(String inputFile, String traceFile) throws IOException {
     try {
       this.videoReader = new VideoReaderY4M(inputFile);
     } catch (IOException e) {
       Logging.d("FileVideoCapturer", "Could not open video file: " + inputFile);
       throw e;
     } 
+    if (traceFile == null) {
+      this.replayTrace = null;
+    } else {
+      try {
+        this.replayTrace = new ReplayTrace(traceFile);
+      } catch (IOException|IllegalArgumentException e) {
+        Logging.d("FileVideoCapturer", "Could not read trace file: " + traceFile);
+        this.videoReader.close();
+        throw e;
+      } 
+      Logging.d("FileVideoCapturer", "Trace of " + this.replayTrace.size + " frames lasting " + TimeUnit.NANOSECONDS.toMillis(this.replayTrace.loopDurationNs) + " ms");
+    } 
+  }
+  
+  /** Sets whether trace replay starts over at the end of the trace. Defaults to true. */
+  public void setLooping(boolean looping) {
+    this.looping = looping;
+  }
+  
+  /**
+   * Replays the trace |speed| times faster than recorded. Takes effect at the next startCapture().
+   */
+  public void setReplaySpeed(double speed) {
+    if (speed <= 0.0D)
+      throw new IllegalArgumentException("Invalid replay speed: " + speed); 
+    this.replaySpeed = speed;
+  }
+  
+  /**
+   * Pushes frames as fast as the CapturerObserver takes them, for throughput measurements. Frames
+   * still carry the timestamps of the regular schedule. Takes effect at the next startCapture().
+   */
+  public void setBurstMode(boolean burstMode) {
+    this.burstMode = burstMode;
+  }
+  
+  /**
+   * Continues with trace entry |index|, or with file frame |index| without a trace. During trace
+   * replay the schedule restarts so the frame is due right away.
+   */
+  public void seekToFrame(int index) {
+    int frameCount = (this.replayTrace != null) ? this.replayTrace.size : this.videoReader.getFrameCount();
+    if (index < 0 || index >= frameCount)
+      throw new IllegalArgumentException("Frame index out of range: " + index); 
+    this.pendingSeek.set(index);
   }
   
   public void tick() {
-    VideoFrame videoFrame = this.videoReader.getNextFrame();
+    applyPendingSeek();
+    if (this.replayTrace != null) {
+      deliverFrame(this.frameIndex, this.replayTrace.rotations[this.frameIndex], System.nanoTime());
+      this.frameIndex = (this.frameIndex + 1) % this.replayTrace.size;
+    } else {
+      deliverFrame(this.frameIndex, 0, System.nanoTime());
+      this.frameIndex = (this.frameIndex + 1) % this.videoReader.getFrameCount();
+    } 
+  }
+  
+  private boolean applyPendingSeek() {
+    int index = this.pendingSeek.getAndSet(-1);
+    if (index < 0)
+      return false; 
+    this.frameIndex = index;
+    return true;
+  }
+  
+  private void deliverFrame(int index, int rotation, long captureTimeNs) {
+    VideoFrame videoFrame = this.videoReader.getFrame(index % this.videoReader.getFrameCount(), rotation, captureTimeNs);
     this.capturerObserver.onFrameCaptured(videoFrame);
     videoFrame.release();
+    this.framesDelivered++;
   }
   
   public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext, CapturerObserver capturerObserver) {
@@ -149,11 +392,134 @@ public class FileVideoCapturer implements VideoCapturer {
   }
   
   public void startCapture(int width, int height, int framerate) {
-    this.timer.schedule(this.tickTask, 0L, (1000 / framerate));
+    startCapture(width, height, framerate, 1);
+  }
+  
+  /**
+   * Delivers frames at |framerateNumerator| / |framerateDenominator| fps, e.g. 30000 / 1001 for
+   * 29.97 fps. Frame n is due n frame intervals after the start, so timing errors do not add up.
+   * The framerate is ignored when replaying a trace.
+   */
+  public void startCapture(int width, int height, int framerateNumerator, int framerateDenominator) {
+    if (framerateNumerator <= 0 || framerateDenominator <= 0)
+      throw new IllegalArgumentException("Invalid framerate: " + framerateNumerator + "/" + framerateDenominator); 
+    boolean burst = this.burstMode;
+    double speed = this.replaySpeed;
+    synchronized (this.pacingLock) {
+      if (this.pacingThread != null)
+        throw new IllegalStateException("Capture already started"); 
+      this.capturing = true;
+      this.pacingThread = new Thread(() -> {
+            if (this.replayTrace != null) {
+              runTraceLoop(speed, burst);
+            } else {
+              runPacingLoop(framerateNumerator, framerateDenominator, burst);
+            } 
+          }, "FileVideoCapturerThread");
+      this.pacingThread.start();
+    } 
+  }
+  
+  private void runPacingLoop(int framerateNumerator, int framerateDenominator, boolean burst) {
+    long intervalsPerSecond = framerateNumerator;
+    long nsPerIntervalsPerSecond = 1000000000L * framerateDenominator;
+    long startTimeNs = System.nanoTime();
+    long frameNumber = 0L;
+    boolean prefetched = false;
+    while (this.capturing) {
+      // Rebase once per |framerateDenominator| seconds, which is a whole number of frames, so the
+      // multiplication below cannot overflow however long the capture runs.
+      while (frameNumber >= intervalsPerSecond) {
+        frameNumber -= intervalsPerSecond;
+        startTimeNs += nsPerIntervalsPerSecond;
+      } 
+      if (applyPendingSeek())
+        prefetched = false; 
+      long dueTimeNs = startTimeNs + frameNumber * nsPerIntervalsPerSecond / intervalsPerSecond;
+      if (!burst) {
+        long waitNs = dueTimeNs - System.nanoTime();
+        if (waitNs > 0L) {
+          if (!prefetched) {
+            this.videoReader.prefetchFrame(this.frameIndex);
+            prefetched = true;
+            continue;
+          } 
+          LockSupport.parkNanos(waitNs);
+          continue;
+        } 
+        long lateFrames = -waitNs * intervalsPerSecond / nsPerIntervalsPerSecond;
+        if (lateFrames > MAX_LATE_FRAMES) {
+          // Too far behind to catch up by delivering back to back, skip to the frame due now.
+          frameNumber += lateFrames;
+          this.frameIndex = (int)((this.frameIndex + lateFrames) % this.videoReader.getFrameCount());
+          this.framesSkipped += lateFrames;
+          continue;
+        } 
+      } 
+      deliverFrame(this.frameIndex, 0, dueTimeNs);
+      this.frameIndex = (this.frameIndex + 1) % this.videoReader.getFrameCount();
+      frameNumber++;
+      prefetched = false;
+    } 
+  }
+  
+  /**
+   * Delivers the trace entries at their recorded offsets from the start, divided by |speed|. Late
+   * frames are delivered back to back rather than skipped, so every run shows the same frames.
+   */
+  private void runTraceLoop(double speed, boolean burst) {
+    ReplayTrace trace = this.replayTrace;
+    long startTimeNs = System.nanoTime();
+    // Trace time that maps to |startTimeNs|, moved back by the loop duration on every loop.
+    long traceStartNs = trace.timestampsNs[this.frameIndex];
+    boolean prefetched = false;
+    while (this.capturing) {
+      if (applyPendingSeek()) {
+        startTimeNs = System.nanoTime();
+        traceStartNs = trace.timestampsNs[this.frameIndex];
+        prefetched = false;
+      } 
+      if (this.frameIndex == trace.size) {
+        if (!this.looping) {
+          Logging.d("FileVideoCapturer", "Trace replay finished");
+          break;
+        } 
+        this.frameIndex = 0;
+        traceStartNs -= trace.loopDurationNs;
+      } 
+      long dueTimeNs = startTimeNs + (long)((trace.timestampsNs[this.frameIndex] - traceStartNs) / speed);
+      if (!burst) {
+        long waitNs = dueTimeNs - System.nanoTime();
+        if (waitNs > 0L) {
+          if (!prefetched) {
+            this.videoReader.prefetchFrame(this.frameIndex % this.videoReader.getFrameCount());
+            prefetched = true;
+            continue;
+          } 
+          LockSupport.parkNanos(waitNs);
+          continue;
+        } 
+      } 
+      deliverFrame(this.frameIndex, trace.rotations[this.frameIndex], dueTimeNs);
+      this.frameIndex++;
+      prefetched = false;
+    } 
   }
   
   public void stopCapture() throws InterruptedException {
-    this.timer.cancel();
+    Thread thread;
+    synchronized (this.pacingLock) {
+      thread = this.pacingThread;
+      this.pacingThread = null;
+      this.capturing = false;
+    } 
+    if (thread == null)
+      return; 
+    LockSupport.unpark(thread);
+    thread.join();
+    if (this.replayTrace != null && this.frameIndex == this.replayTrace.size)
+      this.frameIndex = 0; 
+    Logging.d("FileVideoCapturer", "Frames delivered: " + this.framesDelivered + ", skipped to keep up: " + this.framesSkipped);
   }
   
   public void changeCaptureFormat(int width, int height, int framerate) {}
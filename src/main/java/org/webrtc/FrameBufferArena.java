@@ -0,0 +1,152 @@
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reuses the NV21/ARGB byte arrays and Bitmaps that snapshot conversion needs, so burst captures
+ * do not churn the Java heap. Byte arrays are kept in exact-size classes since a capture session
+ * produces the same few frame sizes over and over. Bitmaps are reused through
+ * Bitmap.reconfigure() on API 19+, and only on exact size matches below that. Everything retained
+ * is bounded by a byte budget and a Bitmap count. Thread safe.
+ */
+public class FrameBufferArena {
+  private static final String TAG = "FrameBufferArena";
+  public static final int DEFAULT_MAX_RETAINED_BYTES = 32 * 1024 * 1024;
+  public static final int DEFAULT_MAX_RETAINED_BITMAPS = 2;
+
+  /** Arena shared by YuvFrame and the snapshot pipeline. */
+  public static final FrameBufferArena INSTANCE =
+      new FrameBufferArena(DEFAULT_MAX_RETAINED_BYTES, DEFAULT_MAX_RETAINED_BITMAPS);
+
+  private final int maxRetainedBytes;
+  private final int maxRetainedBitmaps;
+  private final Object lock = new Object();
+  private final Map<Integer, ArrayDeque<byte[]>> freeArrays = new HashMap<>(); /* guarded by lock */
+  private final ArrayDeque<Bitmap> freeBitmaps = new ArrayDeque<>(); /* guarded by lock */
+  private long retainedBytes; /* guarded by lock */
+  private int hitCount; /* guarded by lock */
+  private int missCount; /* guarded by lock */
+
+  public FrameBufferArena(int maxRetainedBytes, int maxRetainedBitmaps) {
+    if (maxRetainedBytes < 0 || maxRetainedBitmaps < 0) {
+      throw new IllegalArgumentException("Arena limits must not be negative.");
+    }
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.maxRetainedBitmaps = maxRetainedBitmaps;
+  }
+
+  /** Returns an array of exactly |size| bytes. Its contents are undefined. */
+  public byte[] acquireBytes(int size) {
+    synchronized (lock) {
+      final ArrayDeque<byte[]> sizeClass = freeArrays.get(size);
+      if (sizeClass != null && !sizeClass.isEmpty()) {
+        ++hitCount;
+        retainedBytes -= size;
+        return sizeClass.pollFirst();
+      }
+      ++missCount;
+    }
+    return new byte[size];
+  }
+
+  /** Returns |array| to the arena. The caller must not touch it afterwards. */
+  public void releaseBytes(@Nullable byte[] array) {
+    if (array == null) {
+      return;
+    }
+    synchronized (lock) {
+      if (retainedBytes + array.length > maxRetainedBytes) {
+        return;
+      }
+      ArrayDeque<byte[]> sizeClass = freeArrays.get(array.length);
+      if (sizeClass == null) {
+        sizeClass = new ArrayDeque<>();
+        freeArrays.put(array.length, sizeClass);
+      }
+      sizeClass.addLast(array);
+      retainedBytes += array.length;
+    }
+  }
+
+  /** Returns a mutable ARGB_8888 Bitmap of the given size. Its contents are undefined. */
+  public Bitmap acquireBitmap(int width, int height) {
+    synchronized (lock) {
+      final Iterator<Bitmap> it = freeBitmaps.iterator();
+      while (it.hasNext()) {
+        final Bitmap bitmap = it.next();
+        if (canReuse(bitmap, width, height)) {
+          it.remove();
+          ++hitCount;
+          // canReuse() only allows a size change on API 19+, checked again here for lint.
+          if (Build.VERSION.SDK_INT >= 19
+              && (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+          }
+          return bitmap;
+        }
+      }
+      ++missCount;
+    }
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /**
+   * Returns |bitmap| to the arena for reuse. The caller must not use it afterwards. Bitmaps over
+   * the arena limit are recycled.
+   */
+  public void releaseBitmap(@Nullable Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+    synchronized (lock) {
+      if (bitmap.isMutable() && freeBitmaps.size() < maxRetainedBitmaps) {
+        freeBitmaps.addLast(bitmap);
+        return;
+      }
+    }
+    bitmap.recycle();
+  }
+
+  /** Drops everything the arena retains, e.g. on memory pressure. */
+  public void clear() {
+    synchronized (lock) {
+      Logging.d(TAG, "Clearing " + retainedBytes + " bytes and " + freeBitmaps.size() + " bitmaps");
+      freeArrays.clear();
+      retainedBytes = 0;
+      for (Bitmap bitmap : freeBitmaps) {
+        bitmap.recycle();
+      }
+      freeBitmaps.clear();
+    }
+  }
+
+  /** Number of acquire calls served from retained buffers. */
+  public int getHitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  /** Number of acquire calls that had to allocate. */
+  public int getMissCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  private static boolean canReuse(Bitmap bitmap, int width, int height) {
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      return false;
+    }
+    if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+      return true;
+    }
+    return Build.VERSION.SDK_INT >= 19 && bitmap.getAllocationByteCount() >= width * height * 4;
+  }
+}
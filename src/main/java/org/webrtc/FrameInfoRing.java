@@ -0,0 +1,99 @@
+package org.webrtc;
+
+/**
+ * FIFO of per-frame metadata for frames in flight through a MediaCodec, kept in primitive arrays so
+ * tracking them does not allocate once the ring has grown to the steady-state depth. Each entry
+ * holds a timestamp, a width, a height and a rotation; users leave fields they do not need at 0.
+ * Offers may come from any thread. poll() stores the removed entry in the polled* fields, which
+ * are only meant to be read by the single consumer thread that called it.
+ */
+class FrameInfoRing {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private final Object lock = new Object();
+  private long[] timestamps = new long[INITIAL_CAPACITY]; /* guarded by lock */
+  private int[] widths = new int[INITIAL_CAPACITY]; /* guarded by lock */
+  private int[] heights = new int[INITIAL_CAPACITY]; /* guarded by lock */
+  private int[] rotations = new int[INITIAL_CAPACITY]; /* guarded by lock */
+  private int head; /* guarded by lock */
+  private int size; /* guarded by lock */
+
+  // Entry removed by the last successful poll().
+  long polledTimestamp;
+  int polledWidth;
+  int polledHeight;
+  int polledRotation;
+
+  /** Appends an entry, growing the ring if it is full. */
+  void offer(long timestamp, int width, int height, int rotation) {
+    synchronized (lock) {
+      if (size == timestamps.length) {
+        grow();
+      }
+      final int tail = (head + size) % timestamps.length;
+      timestamps[tail] = timestamp;
+      widths[tail] = width;
+      heights[tail] = height;
+      rotations[tail] = rotation;
+      ++size;
+    }
+  }
+
+  /** Removes the oldest entry into the polled* fields. Returns false if the ring is empty. */
+  boolean poll() {
+    synchronized (lock) {
+      if (size == 0) {
+        return false;
+      }
+      polledTimestamp = timestamps[head];
+      polledWidth = widths[head];
+      polledHeight = heights[head];
+      polledRotation = rotations[head];
+      head = (head + 1) % timestamps.length;
+      --size;
+      return true;
+    }
+  }
+
+  /** Drops the newest entry, undoing an offer() whose frame did not make it into the codec. */
+  void removeLast() {
+    synchronized (lock) {
+      if (size > 0) {
+        --size;
+      }
+    }
+  }
+
+  int size() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+
+  void clear() {
+    synchronized (lock) {
+      head = 0;
+      size = 0;
+    }
+  }
+
+  private void grow() {
+    final int capacity = timestamps.length * 2;
+    final long[] newTimestamps = new long[capacity];
+    final int[] newWidths = new int[capacity];
+    final int[] newHeights = new int[capacity];
+    final int[] newRotations = new int[capacity];
+    for (int i = 0; i < size; ++i) {
+      final int index = (head + i) % timestamps.length;
+      newTimestamps[i] = timestamps[index];
+      newWidths[i] = widths[index];
+      newHeights[i] = heights[index];
+      newRotations[i] = rotations[index];
+    }
+    timestamps = newTimestamps;
+    widths = newWidths;
+    heights = newHeights;
+    rotations = newRotations;
+    head = 0;
+  }
+}
@@ -0,0 +1,204 @@
+package org.webrtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Serves SnapshotRequests from a stream of captured frames. Does no work per frame while nothing is
+ * pending; a matching frame is retained and converted to a YuvFrame on a dedicated worker thread,
+ * so the capture thread only pays for a retain() and a post. NV21 frames are copied instead of
+ * retained, which hands the camera callback buffer back right away. JPEG output is produced by a
+ * SnapshotEncoder.
+ */
+class FrameSnapshotter {
+  private static final String TAG = "FrameSnapshotter";
+
+  private static class PendingSnapshot {
+    final SnapshotRequest request;
+    final SnapshotCallback callback;
+
+    PendingSnapshot(SnapshotRequest request, SnapshotCallback callback) {
+      this.request = request;
+      this.callback = callback;
+    }
+  }
+
+  private final String threadName;
+  private final Object lock = new Object();
+  private final List<PendingSnapshot> pendingSnapshots = new ArrayList<>(); /* guarded by lock */
+  @Nullable private HandlerThread workerThread; /* guarded by lock */
+  @Nullable private Handler workerHandler; /* guarded by lock */
+  @Nullable private SnapshotEncoder encoder; /* guarded by lock */
+  private boolean ownsEncoder; /* guarded by lock */
+  private boolean disposed; /* guarded by lock */
+  // Read without the lock on every frame so the steady state stays free.
+  private volatile boolean hasPendingSnapshots;
+
+  FrameSnapshotter(String threadName) {
+    this.threadName = threadName;
+  }
+
+  void requestSnapshot(SnapshotRequest request, SnapshotCallback callback) {
+    if (request == null || callback == null) {
+      throw new IllegalArgumentException("Snapshot request and callback must be non-null.");
+    }
+    synchronized (lock) {
+      if (disposed) {
+        callback.onSnapshotError("Snapshotter is disposed.");
+        return;
+      }
+      if (workerThread == null) {
+        workerThread = new HandlerThread(threadName);
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+      }
+      pendingSnapshots.add(new PendingSnapshot(request, callback));
+      hasPendingSnapshots = true;
+    }
+  }
+
+  /**
+   * Offers a captured frame. Returns immediately when no snapshot is pending. The frame is retained
+   * for as long as the conversion takes, the caller keeps its own reference.
+   */
+  void onFrame(VideoFrame frame) {
+    if (!hasPendingSnapshots) {
+      return;
+    }
+    synchronized (lock) {
+      if (disposed) {
+        return;
+      }
+      final Iterator<PendingSnapshot> it = pendingSnapshots.iterator();
+      while (it.hasNext()) {
+        final PendingSnapshot snapshot = it.next();
+        if (!snapshot.request.matches(frame)) {
+          continue;
+        }
+        it.remove();
+        final VideoFrame.Buffer buffer = frame.getBuffer();
+        if (buffer instanceof NV21Buffer) {
+          final byte[] nv21 = ((NV21Buffer) buffer).copyData();
+          final int width = buffer.getWidth();
+          final int height = buffer.getHeight();
+          if (snapshot.request.jpegQuality > 0
+              && snapshot.request.processingFlags == YuvFrame.PROCESSING_NONE) {
+            getOrCreateEncoderLocked().encode(nv21, width, height, frame.getRotation(),
+                frame.getTimestampNs(), snapshot.request.jpegQuality, snapshot.callback);
+            continue;
+          }
+          final VideoFrame copiedFrame = new VideoFrame(new NV21Buffer(nv21, width, height,
+              () -> FrameBufferArena.INSTANCE.releaseBytes(nv21)), frame.getRotation(),
+              frame.getTimestampNs());
+          workerHandler.post(() -> convertFrame(copiedFrame, snapshot));
+        } else {
+          frame.retain();
+          workerHandler.post(() -> convertFrame(frame, snapshot));
+        }
+      }
+      hasPendingSnapshots = !pendingSnapshots.isEmpty();
+    }
+  }
+
+  /**
+   * Replaces the encoder used for JPEG snapshots. The caller keeps ownership of |encoder|; an
+   * encoder created internally is released here.
+   */
+  void setEncoder(SnapshotEncoder encoder) {
+    synchronized (lock) {
+      if (this.encoder != null && ownsEncoder) {
+        this.encoder.release();
+      }
+      this.encoder = encoder;
+      ownsEncoder = false;
+    }
+  }
+
+  /** Fails all snapshots that have not been matched to a frame yet. */
+  void cancelPendingSnapshots(String reason) {
+    final List<PendingSnapshot> cancelled;
+    synchronized (lock) {
+      cancelled = takePendingSnapshotsLocked();
+    }
+    failSnapshots(cancelled, reason);
+  }
+
+  /** Cancels pending snapshots and stops the worker once in-flight conversions are done. */
+  void dispose() {
+    final List<PendingSnapshot> cancelled;
+    synchronized (lock) {
+      disposed = true;
+      // Taken under the lock so no frame can match them once the worker is gone.
+      cancelled = takePendingSnapshotsLocked();
+      if (workerThread != null) {
+        // Quit from the worker itself so already posted conversions still release their frames.
+        final HandlerThread thread = workerThread;
+        workerHandler.post(thread::quit);
+        workerThread = null;
+        workerHandler = null;
+      }
+      if (encoder != null && ownsEncoder) {
+        encoder.release();
+      }
+      encoder = null;
+    }
+    failSnapshots(cancelled, "Snapshotter is disposed.");
+  }
+
+  private List<PendingSnapshot> takePendingSnapshotsLocked() {
+    final List<PendingSnapshot> taken = new ArrayList<>(pendingSnapshots);
+    pendingSnapshots.clear();
+    hasPendingSnapshots = false;
+    return taken;
+  }
+
+  // Runs the error callbacks outside the lock.
+  private static void failSnapshots(List<PendingSnapshot> snapshots, String reason) {
+    for (PendingSnapshot snapshot : snapshots) {
+      snapshot.callback.onSnapshotError(reason);
+    }
+  }
+
+  private SnapshotEncoder getOrCreateEncoderLocked() {
+    if (encoder == null) {
+      encoder = new SnapshotEncoder();
+      ownsEncoder = true;
+    }
+    return encoder;
+  }
+
+  // Runs on the worker thread.
+  private void convertFrame(VideoFrame frame, PendingSnapshot snapshot) {
+    final YuvFrame yuvFrame;
+    try {
+      yuvFrame = new YuvFrame(frame, snapshot.request.processingFlags, frame.getTimestampNs());
+    } finally {
+      frame.release();
+    }
+    if (!yuvFrame.hasData()) {
+      Logging.e(TAG, "Failed to convert frame for snapshot.");
+      snapshot.callback.onSnapshotError("Failed to convert frame.");
+      return;
+    }
+    if (snapshot.request.jpegQuality > 0) {
+      final SnapshotEncoder jpegEncoder;
+      synchronized (lock) {
+        jpegEncoder = disposed ? null : getOrCreateEncoderLocked();
+      }
+      if (jpegEncoder == null) {
+        snapshot.callback.onSnapshotError("Snapshotter is disposed.");
+        return;
+      }
+      // The YuvFrame is not handed out, so its NV21 array can go to the encoder without a copy.
+      jpegEncoder.encode(yuvFrame.nv21Buffer, yuvFrame.width, yuvFrame.height,
+          yuvFrame.rotationDegree, yuvFrame.timestamp, snapshot.request.jpegQuality,
+          snapshot.callback);
+      return;
+    }
+    snapshot.callback.onSnapshot(yuvFrame);
+  }
+}
@@ -0,0 +1,174 @@
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous RGBA readback of the bound framebuffer through a ring of GLES3 pixel pack buffers.
+ * readPixels() only queues the copy into a PBO and a fence, the data is mapped once the fence has
+ * signaled, typically while the next frame is being rendered. All methods must be called on the
+ * thread that owns the GL context, and callbacks run there too while the PBO is mapped.
+ */
+@TargetApi(18)
+public class GlPboReader {
+  private static final String TAG = "GlPboReader";
+
+  /** Receives a finished readback. */
+  public interface Callback {
+    /**
+     * |rgba| holds |width| * |height| tightly packed RGBA pixels, bottom row first as returned by
+     * glReadPixels. It is only valid during the call.
+     */
+    void onPixels(ByteBuffer rgba, int width, int height);
+
+    /** Called instead of onPixels() if the readback is dropped, e.g. by release(). */
+    default void onAbandoned() {}
+  }
+
+  private static class Slot {
+    int bufferId;
+    int capacity;
+    int width;
+    int height;
+    long fence;
+    @Nullable Callback callback;
+  }
+
+  private final Slot[] slots;
+  // Slots in use form a ring starting at |oldest|, in the order the readbacks were issued.
+  private int oldest;
+  private int pendingCount;
+
+  /**
+   * Returns true if the current context supports pixel pack buffers. Must be called with a current
+   * context.
+   */
+  public static boolean isSupported() {
+    return GlUtil.isGles3Context();
+  }
+
+  /** |slotCount| PBOs are kept in rotation, at least two so reading and mapping can overlap. */
+  public GlPboReader(int slotCount) {
+    if (slotCount < 2) {
+      throw new IllegalArgumentException("At least two slots are needed: " + slotCount);
+    }
+    slots = new Slot[slotCount];
+    for (int i = 0; i < slotCount; ++i) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * Queues a readback of the lower left |width| x |height| pixels of the bound framebuffer. If all
+   * slots are in flight the oldest one is completed first, which may block.
+   */
+  public void readPixels(int width, int height, Callback callback) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+    }
+    if (pendingCount == slots.length) {
+      completeOldest(true /* wait */);
+    }
+    final Slot slot = slots[(oldest + pendingCount) % slots.length];
+    final int size = width * height * 4;
+    if (slot.bufferId == 0) {
+      final int[] buffers = new int[1];
+      GLES20.glGenBuffers(1, buffers, 0);
+      slot.bufferId = buffers[0];
+    }
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.bufferId);
+    if (slot.capacity != size) {
+      GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+      slot.capacity = size;
+    }
+    GLES30.glReadPixels(
+        0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0 /* offset */);
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0 /* flags */);
+    GlUtil.checkNoGLES2Error("GlPboReader.readPixels");
+    slot.width = width;
+    slot.height = height;
+    slot.callback = callback;
+    ++pendingCount;
+  }
+
+  /** Returns true if readbacks are in flight. */
+  public boolean hasPendingReadbacks() {
+    return pendingCount > 0;
+  }
+
+  /**
+   * Delivers finished readbacks in issue order. Without |wait| it stops at the first one the GPU
+   * has not finished yet, with |wait| it blocks until all of them are delivered.
+   */
+  public void processReadbacks(boolean wait) {
+    while (pendingCount > 0 && completeOldest(wait)) {}
+  }
+
+  /** Deletes the PBOs. Pending readbacks are dropped and reported through onAbandoned(). */
+  public void release() {
+    final Callback[] abandoned = new Callback[pendingCount];
+    for (int i = 0; i < pendingCount; ++i) {
+      abandoned[i] = slots[(oldest + i) % slots.length].callback;
+    }
+    for (Slot slot : slots) {
+      if (slot.fence != 0) {
+        GLES30.glDeleteSync(slot.fence);
+        slot.fence = 0;
+      }
+      if (slot.bufferId != 0) {
+        GLES20.glDeleteBuffers(1, new int[] {slot.bufferId}, 0);
+        slot.bufferId = 0;
+      }
+      slot.capacity = 0;
+      slot.callback = null;
+    }
+    oldest = 0;
+    pendingCount = 0;
+    for (Callback callback : abandoned) {
+      callback.onAbandoned();
+    }
+  }
+
+  private boolean completeOldest(boolean wait) {
+    final Slot slot = slots[oldest];
+    final int status = GLES30.glClientWaitSync(slot.fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+        wait ? GLES30.GL_TIMEOUT_IGNORED : 0 /* timeout */);
+    if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+      return false;
+    }
+    GLES30.glDeleteSync(slot.fence);
+    slot.fence = 0;
+    final Callback callback = slot.callback;
+    slot.callback = null;
+    oldest = (oldest + 1) % slots.length;
+    --pendingCount;
+    if (status == GLES30.GL_WAIT_FAILED) {
+      Logging.e(TAG, "Waiting for readback fence failed: " + GLES20.glGetError());
+      callback.onAbandoned();
+      return true;
+    }
+
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.bufferId);
+    final ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, 0 /* offset */, slot.capacity, GLES30.GL_MAP_READ_BIT);
+    try {
+      if (pixels == null) {
+        Logging.e(TAG, "Mapping readback buffer failed: " + GLES20.glGetError());
+        callback.onAbandoned();
+        return true;
+      }
+      callback.onPixels(pixels, slot.width, slot.height);
+    } finally {
+      if (pixels != null) {
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      }
+      GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+    GlUtil.checkNoGLES2Error("GlPboReader.completeOldest");
+    return true;
+  }
+}
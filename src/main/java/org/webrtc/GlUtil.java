@@ -1,6 +1,7 @@
 package org.webrtc;
 
 import android.opengl.GLES20;
+import android.os.Build;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -20,6 +21,22 @@ public class GlUtil {
         new RuntimeException(msg + ": GLES20 error: " + error); 
   }
   
+  /**
+   * Returns true if the current context is OpenGL ES 3.0 or later and the GLES30 bindings are
+   * available. Must be called with a current context.
+   */
+  public static boolean isGles3Context() {
+    if (Build.VERSION.SDK_INT < 18)
+      return false; 
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    // The format is "OpenGL ES <major>.<minor> <vendor specific>".
+    String prefix = "OpenGL ES ";
+    if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length())
+      return false; 
+    char major = version.charAt(prefix.length());
+    return major >= '3' && major <= '9';
+  }
+  
   public static FloatBuffer createFloatBuffer(float[] coords) {
     ByteBuffer bb = ByteBuffer.allocateDirect(coords.length * 4);
     bb.order(ByteOrder.nativeOrder());
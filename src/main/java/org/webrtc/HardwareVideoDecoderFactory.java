@@ -30,6 +30,7 @@ public class HardwareVideoDecoderFactory extends MediaCodecVideoDecoderFactory {
   public HardwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
     super(sharedContext, 
         (codecAllowedPredicate == null) ? defaultAllowedPredicate : 
-        codecAllowedPredicate.and(defaultAllowedPredicate));
+        codecAllowedPredicate.and(defaultAllowedPredicate), 
+        (codecAllowedPredicate == null) ? "hardware_decoder" : null);
   }
 }
@@ -15,15 +15,19 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.webrtc.ThreadUtils.ThreadChecker;
 
 /**
@@ -54,6 +58,19 @@ class HardwareVideoEncoder implements VideoEncoder {
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
 
+  // Frames held while waiting for an input buffer in asynchronous mode. A burst beyond this drops
+  // the oldest waiting frame.
+  private static final int MAX_PENDING_FRAMES = 3;
+
+  /**
+   * A byte buffer frame waiting for a codec input buffer in asynchronous mode. Instances are
+   * recycled through spareFrames.
+   */
+  private static class PendingFrame {
+    VideoFrame frame;
+    int bufferSize;
+  }
+
   /**
    * Keeps track of the number of output buffers that have been passed down the pipeline and not yet
    * released. We need to wait for this to go down to zero before operations invalidating the output
@@ -115,13 +132,15 @@ class HardwareVideoEncoder implements VideoEncoder {
   private final BitrateAdjuster bitrateAdjuster;
   // EGL context shared with the application.  Used to access texture inputs.
   private final EglBase14.Context sharedContext;
+  // Whether to drive the codec through MediaCodec callbacks instead of polling it.
+  private final boolean useAsyncCodec;
 
   // Drawer used to draw input textures onto the codec's input surface.
   private final GlRectDrawer textureDrawer = new GlRectDrawer();
   private final VideoFrameDrawer videoFrameDrawer = new VideoFrameDrawer();
-  // A queue of EncodedImage.Builders that correspond to frames in the codec.  These builders are
-  // pre-populated with all the information that can't be sent through MediaCodec.
-  private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque<>();
+  // Metadata of the frames in the codec, in input order: the information that can't be sent
+  // through MediaCodec. Kept in primitive arrays so the per-frame path does not allocate.
+  private final FrameInfoRing outputFrameInfos = new FrameInfoRing();
 
   private final ThreadChecker encodeThreadChecker = new ThreadChecker();
   private final ThreadChecker outputThreadChecker = new ThreadChecker();
@@ -136,6 +155,9 @@ class HardwareVideoEncoder implements VideoEncoder {
   @Nullable private ByteBuffer[] outputBuffers;
   // Thread that delivers encoded frames to the user callback.
   @Nullable private Thread outputThread;
+  // Thread the codec callbacks run on in asynchronous mode, it takes the role of the output thread.
+  @Nullable private HandlerThread callbackThread;
+  @Nullable private Handler callbackHandler;
 
   // EGL base wrapping the shared texture context.  Holds hooks to both the shared context and the
   // input surface.  Making this base current allows textures from the context to be drawn onto the
@@ -151,11 +173,19 @@ class HardwareVideoEncoder implements VideoEncoder {
   // --- Only accessed from the encoding thread.
   // Presentation timestamp of the last requested (or forced) key frame.
   private long lastKeyFrameNs;
+  private final Bundle keyFrameRequestParams = new Bundle();
 
   // --- Only accessed on the output thread.
   // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
   @Nullable private ByteBuffer configBuffer;
   private int adjustedBitrate;
+  private final Bundle bitrateParams = new Bundle();
+  private final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+  private final EncodedImage.Builder outputBuilder = EncodedImage.builder();
+  private final CodecSpecificInfo codecSpecificInfo = new CodecSpecificInfo();
+  // Buffer H.264 key frames are assembled in, reused once the previous key frame was released.
+  @Nullable private ByteBuffer keyFrameBuffer;
+  private final AtomicBoolean keyFrameBufferInUse = new AtomicBoolean();
 
   // Whether the encoder is running.  Volatile so that the output thread can watch this value and
   // exit when the encoder stops.
@@ -163,6 +193,16 @@ class HardwareVideoEncoder implements VideoEncoder {
   // Any exception thrown during shutdown.  The output thread releases the MediaCodec and uses this
   // value to send exceptions thrown during release back to the encoder thread.
   @Nullable private volatile Exception shutdownException;
+  // Error reported by the codec callback in asynchronous mode. Once set, the codec is unusable.
+  @Nullable private volatile Exception asyncCodecError;
+
+  // --- Asynchronous mode input state, accessed on the encoding and the callback thread.
+  private final Object asyncInputLock = new Object();
+  // Input buffers handed out by onInputBufferAvailable and not yet filled.
+  private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>(); /* guarded by asyncInputLock */
+  // Retained frames waiting for an input buffer, oldest first.
+  private final ArrayDeque<PendingFrame> pendingFrames = new ArrayDeque<>(); /* guarded by asyncInputLock */
+  private final ArrayDeque<PendingFrame> spareFrames = new ArrayDeque<>(); /* guarded by asyncInputLock */
 
   /**
    * Creates a new HardwareVideoEncoder with the given codecName, codecType, colorFormat, key frame
@@ -183,6 +223,22 @@ class HardwareVideoEncoder implements VideoEncoder {
                               VideoCodecMimeType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
                               Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
                               BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext) {
+    this(mediaCodecWrapperFactory, codecName, codecType, surfaceColorFormat, yuvColorFormat, params,
+            keyFrameIntervalSec, forceKeyFrameIntervalMs, bitrateAdjuster, sharedContext,
+            false /* useAsyncCodec */);
+  }
+
+  /**
+   * Same as above. With |useAsyncCodec| the codec runs in MediaCodec's asynchronous mode: input
+   * buffers are queued as the codec frees them, byte buffer frames arriving while none is free
+   * wait in a small bounded queue instead of being dropped, and output is delivered from the codec
+   * callback instead of a polling thread. Ignored below Android M, which lacks a callback handler.
+   */
+  public HardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
+                              VideoCodecMimeType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
+                              Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
+                              BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext,
+                              boolean useAsyncCodec) {
     this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
     this.codecName = codecName;
     this.codecType = codecType;
@@ -194,6 +250,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     this.forcedKeyFrameNs = TimeUnit.MILLISECONDS.toNanos(forceKeyFrameIntervalMs);
     this.bitrateAdjuster = bitrateAdjuster;
     this.sharedContext = sharedContext;
+    this.useAsyncCodec = useAsyncCodec && Build.VERSION.SDK_INT >= 23;
 
     // Allow construction on a different thread.
     encodeThreadChecker.detachThread();
@@ -224,6 +281,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     encodeThreadChecker.checkIsOnValidThread();
 
     lastKeyFrameNs = -1;
+    asyncCodecError = null;
 
     try {
       codec = mediaCodecWrapperFactory.createByCodecName(codecName);
@@ -257,6 +315,16 @@ class HardwareVideoEncoder implements VideoEncoder {
         }
       }
       Logging.d(TAG, "Format: " + format);
+      if (useAsyncCodec) {
+        // The callback thread takes the role of the output thread from here on, also for releasing
+        // the codec if one of the calls below fails.
+        outputThreadChecker.detachThread();
+        // The callback has to be set before configure().
+        callbackThread = new HandlerThread(TAG + ".callback");
+        callbackThread.start();
+        callbackHandler = new Handler(callbackThread.getLooper());
+        codec.setCallback(createAsyncCallback(), callbackHandler);
+      }
       codec.configure(
               format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
@@ -267,6 +335,12 @@ class HardwareVideoEncoder implements VideoEncoder {
         textureEglBase.makeCurrent();
       }
 
+      if (useAsyncCodec) {
+        // Callbacks may arrive as soon as the codec is started.
+        running = true;
+        codec.start();
+        return VideoCodecStatus.OK;
+      }
       codec.start();
       outputBuffers = codec.getOutputBuffers();
     } catch (IllegalStateException e) {
@@ -288,7 +362,9 @@ class HardwareVideoEncoder implements VideoEncoder {
     encodeThreadChecker.checkIsOnValidThread();
 
     final VideoCodecStatus returnValue;
-    if (outputThread == null) {
+    if (callbackThread != null) {
+      returnValue = releaseAsyncCodec();
+    } else if (outputThread == null) {
       returnValue = VideoCodecStatus.OK;
     } else {
       // The outputThread actually stops and releases the codec once running is false.
@@ -315,11 +391,13 @@ class HardwareVideoEncoder implements VideoEncoder {
       textureInputSurface.release();
       textureInputSurface = null;
     }
-    outputBuilders.clear();
+    outputFrameInfos.clear();
 
     codec = null;
     outputBuffers = null;
     outputThread = null;
+    callbackThread = null;
+    callbackHandler = null;
 
     // Allow changing thread after release.
     encodeThreadChecker.detachThread();
@@ -333,6 +411,10 @@ class HardwareVideoEncoder implements VideoEncoder {
     if (codec == null) {
       return VideoCodecStatus.UNINITIALIZED;
     }
+    if (asyncCodecError != null) {
+      // Logged by the callback. The codec no longer takes input or produces output.
+      return VideoCodecStatus.FALLBACK_SOFTWARE;
+    }
 
     final VideoFrame.Buffer videoFrameBuffer = videoFrame.getBuffer();
     final boolean isTextureBuffer = videoFrameBuffer instanceof VideoFrame.TextureBuffer;
@@ -348,7 +430,9 @@ class HardwareVideoEncoder implements VideoEncoder {
       }
     }
 
-    if (outputBuilders.size() > MAX_ENCODER_Q_SIZE) {
+    // In asynchronous mode byte buffer frames wait for the codec in pendingFrames instead.
+    final boolean queueAsync = useAsyncCodec && !useSurfaceMode;
+    if (!queueAsync && outputFrameInfos.size() > MAX_ENCODER_Q_SIZE) {
       // Too many frames in the encoder.  Drop this frame.
       Logging.e(TAG, "Dropped frame, encoder queue full");
       return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
@@ -368,13 +452,10 @@ class HardwareVideoEncoder implements VideoEncoder {
     // Number of bytes in the video buffer. Y channel is sampled at one byte per pixel; U and V are
     // subsampled at one byte per four pixels.
     int bufferSize = videoFrameBuffer.getHeight() * videoFrameBuffer.getWidth() * 3 / 2;
-    EncodedImage.Builder builder = EncodedImage.builder()
-            .setCaptureTimeNs(videoFrame.getTimestampNs())
-            .setCompleteFrame(true)
-            .setEncodedWidth(videoFrame.getBuffer().getWidth())
-            .setEncodedHeight(videoFrame.getBuffer().getHeight())
-            .setRotation(videoFrame.getRotation());
-    outputBuilders.offer(builder);
+    if (queueAsync) {
+      return queueFrameAsync(videoFrame, bufferSize);
+    }
+    offerOutputFrameInfo(videoFrame);
 
     final VideoCodecStatus returnValue;
     if (useSurfaceMode) {
@@ -385,13 +466,18 @@ class HardwareVideoEncoder implements VideoEncoder {
 
     // Check if the queue was successful.
     if (returnValue != VideoCodecStatus.OK) {
-      // Keep the output builders in sync with buffers in the codec.
-      outputBuilders.pollLast();
+      // Keep the output frame infos in sync with buffers in the codec.
+      outputFrameInfos.removeLast();
     }
 
     return returnValue;
   }
 
+  private void offerOutputFrameInfo(VideoFrame videoFrame) {
+    outputFrameInfos.offer(videoFrame.getTimestampNs(), videoFrame.getBuffer().getWidth(),
+            videoFrame.getBuffer().getHeight(), videoFrame.getRotation());
+  }
+
   private VideoCodecStatus encodeTextureBuffer(VideoFrame videoFrame) {
     encodeThreadChecker.checkIsOnValidThread();
     try {
@@ -451,6 +537,70 @@ class HardwareVideoEncoder implements VideoEncoder {
     return VideoCodecStatus.OK;
   }
 
+  private VideoCodecStatus queueFrameAsync(VideoFrame videoFrame, int bufferSize) {
+    encodeThreadChecker.checkIsOnValidThread();
+    synchronized (asyncInputLock) {
+      if (pendingFrames.size() >= MAX_PENDING_FRAMES) {
+        // Drop the oldest frame, it would be the most outdated one by the time it is encoded.
+        Logging.d(TAG, "Dropped frame, pending frame queue full");
+        recyclePendingFrameLocked(pendingFrames.pollFirst());
+      }
+      PendingFrame pendingFrame = spareFrames.pollFirst();
+      if (pendingFrame == null) {
+        pendingFrame = new PendingFrame();
+      }
+      videoFrame.retain();
+      pendingFrame.frame = videoFrame;
+      pendingFrame.bufferSize = bufferSize;
+      pendingFrames.addLast(pendingFrame);
+      return feedPendingFramesLocked() ? VideoCodecStatus.OK : VideoCodecStatus.ERROR;
+    }
+  }
+
+  /**
+   * Copies pending frames into free input buffers and queues them, oldest first. Called on the
+   * encoding thread when a frame arrives and on the callback thread when a buffer frees up. Returns
+   * false if the codec failed.
+   */
+  private boolean feedPendingFramesLocked() {
+    while (!pendingFrames.isEmpty() && !freeInputBuffers.isEmpty()) {
+      final PendingFrame pendingFrame = pendingFrames.pollFirst();
+      final int index = freeInputBuffers.pollFirst();
+      final VideoFrame frame = pendingFrame.frame;
+      boolean frameInfoQueued = false;
+      try {
+        final ByteBuffer buffer = codec.getInputBuffer(index);
+        if (buffer == null) {
+          Logging.e(TAG, "getInputBuffer returned null for index " + index);
+          return false;
+        }
+        fillInputBuffer(buffer, frame.getBuffer());
+        // Output for this frame may arrive on the callback thread right after it is queued.
+        offerOutputFrameInfo(frame);
+        frameInfoQueued = true;
+        // Frame timestamp rounded to the nearest microsecond.
+        codec.queueInputBuffer(index, 0 /* offset */, pendingFrame.bufferSize,
+                (frame.getTimestampNs() + 500) / 1000, 0 /* flags */);
+      } catch (IllegalStateException e) {
+        Logging.e(TAG, "queueInputBuffer failed", e);
+        if (frameInfoQueued) {
+          // Keep the output frame infos in sync with buffers in the codec.
+          outputFrameInfos.removeLast();
+        }
+        return false;
+      } finally {
+        recyclePendingFrameLocked(pendingFrame);
+      }
+    }
+    return true;
+  }
+
+  private void recyclePendingFrameLocked(PendingFrame pendingFrame) {
+    pendingFrame.frame.release();
+    pendingFrame.frame = null;
+    spareFrames.addLast(pendingFrame);
+  }
+
   @Override
   public VideoCodecStatus setRateAllocation(BitrateAllocation bitrateAllocation, int framerate) {
     encodeThreadChecker.checkIsOnValidThread();
@@ -507,9 +657,8 @@ class HardwareVideoEncoder implements VideoEncoder {
     // be encoded as a key frame, but sadly that flag is ignored.  Instead,
     // we request a key frame "soon".
     try {
-      Bundle b = new Bundle();
-      b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-      codec.setParameters(b);
+      keyFrameRequestParams.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+      codec.setParameters(keyFrameRequestParams);
     } catch (IllegalStateException e) {
       Logging.e(TAG, "requestKeyFrame failed", e);
       return;
@@ -529,11 +678,90 @@ class HardwareVideoEncoder implements VideoEncoder {
     };
   }
 
+  private MediaCodecWrapper.AsyncCallback createAsyncCallback() {
+    return new MediaCodecWrapper.AsyncCallback() {
+      @Override
+      public void onInputBufferAvailable(int index) {
+        synchronized (asyncInputLock) {
+          // Buffers handed out while stopping are reclaimed by codec.stop().
+          if (!running) {
+            return;
+          }
+          freeInputBuffers.addLast(index);
+          if (!feedPendingFramesLocked()) {
+            Logging.e(TAG, "Failed to queue pending frame");
+          }
+        }
+      }
+
+      @Override
+      public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        if (!running) {
+          return;
+        }
+        try {
+          deliverOutputBuffer(index, info, codec.getOutputBuffer(index));
+        } catch (IllegalStateException e) {
+          Logging.e(TAG, "deliverOutput failed", e);
+        }
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaFormat format) {
+        Logging.d(TAG, "Output format changed: " + format);
+      }
+
+      @Override
+      public void onError(Exception e) {
+        if (e instanceof MediaCodec.CodecException
+                && ((MediaCodec.CodecException) e).isTransient()) {
+          // The codec recovers by itself, e.g. once resources it was short of are available again.
+          Logging.w(TAG, "Transient media encoder error", e);
+          return;
+        }
+        Logging.e(TAG, "Media encoder error", e);
+        asyncCodecError = e;
+      }
+    };
+  }
+
+  /**
+   * Stops an asynchronous mode codec: drops the frames still waiting for input, then stops and
+   * releases the codec on the callback thread so no callback runs concurrently with it.
+   */
+  private VideoCodecStatus releaseAsyncCodec() {
+    encodeThreadChecker.checkIsOnValidThread();
+    synchronized (asyncInputLock) {
+      running = false;
+      while (!pendingFrames.isEmpty()) {
+        recyclePendingFrameLocked(pendingFrames.pollFirst());
+      }
+      freeInputBuffers.clear();
+    }
+
+    final CountDownLatch releaseDone = new CountDownLatch(1);
+    callbackHandler.post(() -> {
+      releaseCodecOnOutputThread();
+      releaseDone.countDown();
+    });
+    callbackThread.quitSafely();
+
+    if (!ThreadUtils.awaitUninterruptibly(releaseDone, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
+      Logging.e(TAG, "Media encoder release timeout");
+      return VideoCodecStatus.TIMEOUT;
+    }
+    if (shutdownException != null) {
+      Logging.e(TAG, "Media encoder release exception", shutdownException);
+      return VideoCodecStatus.ERROR;
+    }
+    return VideoCodecStatus.OK;
+  }
+
   // Visible for testing.
   protected void deliverEncodedImage() {
     outputThreadChecker.checkIsOnValidThread();
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      final MediaCodec.BufferInfo info = outputBufferInfo;
       int index = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
       if (index < 0) {
         if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -543,68 +771,102 @@ class HardwareVideoEncoder implements VideoEncoder {
         return;
       }
 
-      ByteBuffer codecOutputBuffer = outputBuffers[index];
-      codecOutputBuffer.position(info.offset);
-      codecOutputBuffer.limit(info.offset + info.size);
+      deliverOutputBuffer(index, info, outputBuffers[index]);
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "deliverOutput failed", e);
+    }
+  }
 
-      if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-        Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-        configBuffer = ByteBuffer.allocateDirect(info.size);
-        configBuffer.put(codecOutputBuffer);
-      } else {
-        bitrateAdjuster.reportEncodedFrame(info.size);
-        if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
-          updateBitrate();
-        }
+  private void deliverOutputBuffer(
+          int index, MediaCodec.BufferInfo info, ByteBuffer codecOutputBuffer) {
+    outputThreadChecker.checkIsOnValidThread();
+    codecOutputBuffer.position(info.offset);
+    codecOutputBuffer.limit(info.offset + info.size);
 
-        final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        if (isKeyFrame) {
-          Logging.d(TAG, "Sync frame generated");
-        }
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
+      configBuffer = ByteBuffer.allocateDirect(info.size);
+      configBuffer.put(codecOutputBuffer);
+    } else {
+      if (!outputFrameInfos.poll()) {
+        Logging.e(TAG, "Dropping output buffer without a matching input frame");
+        codec.releaseOutputBuffer(index, false);
+        return;
+      }
+      bitrateAdjuster.reportEncodedFrame(info.size);
+      if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
+        updateBitrate();
+      }
+
+      final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+      if (isKeyFrame) {
+        Logging.d(TAG, "Sync frame generated");
+      }
 
-        final ByteBuffer frameBuffer;
-        if (isKeyFrame && codecType == VideoCodecMimeType.H264) {
-          Logging.d(TAG,
-                  "Prepending config frame of size " + configBuffer.capacity()
-                          + " to output buffer with offset " + info.offset + ", size " + info.size);
-          // For H.264 key frame prepend SPS and PPS NALs at the start.
-          frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
-          configBuffer.rewind();
-          frameBuffer.put(configBuffer);
-          frameBuffer.put(codecOutputBuffer);
-          frameBuffer.rewind();
+      final ByteBuffer frameBuffer;
+      boolean reusesKeyFrameBuffer = false;
+      if (isKeyFrame && codecType == VideoCodecMimeType.H264) {
+        Logging.d(TAG,
+                "Prepending config frame of size " + configBuffer.capacity()
+                        + " to output buffer with offset " + info.offset + ", size " + info.size);
+        // For H.264 key frame prepend SPS and PPS NALs at the start.
+        final int frameSize = info.size + configBuffer.capacity();
+        final ByteBuffer keyFrame;
+        if (keyFrameBufferInUse.compareAndSet(false, true)) {
+          if (keyFrameBuffer == null || keyFrameBuffer.capacity() < frameSize) {
+            keyFrameBuffer = ByteBuffer.allocateDirect(frameSize);
+          }
+          keyFrame = keyFrameBuffer;
+          reusesKeyFrameBuffer = true;
         } else {
-          frameBuffer = codecOutputBuffer.slice();
+          // The previous key frame is still held downstream.
+          keyFrame = ByteBuffer.allocateDirect(frameSize);
         }
-
-        final EncodedImage.FrameType frameType = isKeyFrame
-                ? EncodedImage.FrameType.VideoFrameKey
-                : EncodedImage.FrameType.VideoFrameDelta;
-
-        outputBuffersBusyCount.increment();
-        EncodedImage.Builder builder = outputBuilders.poll();
-        EncodedImage encodedImage = builder
-                .setBuffer(frameBuffer,
-                        () -> {
-                          // This callback should not throw any exceptions since
-                          // it may be called on an arbitrary thread.
-                          // Check bug webrtc:11230 for more details.
-                          try {
-                            codec.releaseOutputBuffer(index, false);
-                          } catch (Exception e) {
-                            Logging.e(TAG, "releaseOutputBuffer failed", e);
-                          }
-                          outputBuffersBusyCount.decrement();
-                        })
-                .setFrameType(frameType)
-                .createEncodedImage();
-        // TODO(mellem):  Set codec-specific info.
-        callback.onEncodedFrame(encodedImage, new CodecSpecificInfo());
-        // Note that the callback may have retained the image.
-        encodedImage.release();
+        keyFrame.clear();
+        configBuffer.rewind();
+        keyFrame.put(configBuffer);
+        keyFrame.put(codecOutputBuffer);
+        keyFrame.flip();
+        // Native code takes the frame size from the buffer capacity, so a reused buffer that is
+        // larger than this frame must not be passed on whole.
+        frameBuffer = keyFrame.slice();
+      } else {
+        frameBuffer = codecOutputBuffer.slice();
       }
-    } catch (IllegalStateException e) {
-      Logging.e(TAG, "deliverOutput failed", e);
+
+      final EncodedImage.FrameType frameType = isKeyFrame
+              ? EncodedImage.FrameType.VideoFrameKey
+              : EncodedImage.FrameType.VideoFrameDelta;
+
+      outputBuffersBusyCount.increment();
+      final boolean releasesKeyFrameBuffer = reusesKeyFrameBuffer;
+      EncodedImage encodedImage = outputBuilder
+              .setCaptureTimeNs(outputFrameInfos.polledTimestamp)
+              .setCompleteFrame(true)
+              .setEncodedWidth(outputFrameInfos.polledWidth)
+              .setEncodedHeight(outputFrameInfos.polledHeight)
+              .setRotation(outputFrameInfos.polledRotation)
+              .setBuffer(frameBuffer,
+                      () -> {
+                        // This callback should not throw any exceptions since
+                        // it may be called on an arbitrary thread.
+                        // Check bug webrtc:11230 for more details.
+                        try {
+                          codec.releaseOutputBuffer(index, false);
+                        } catch (Exception e) {
+                          Logging.e(TAG, "releaseOutputBuffer failed", e);
+                        }
+                        if (releasesKeyFrameBuffer) {
+                          keyFrameBufferInUse.set(false);
+                        }
+                        outputBuffersBusyCount.decrement();
+                      })
+              .setFrameType(frameType)
+              .createEncodedImage();
+      // TODO(mellem):  Set codec-specific info.
+      callback.onEncodedFrame(encodedImage, codecSpecificInfo);
+      // Note that the callback may have retained the image.
+      encodedImage.release();
     }
   }
 
@@ -632,9 +894,8 @@ class HardwareVideoEncoder implements VideoEncoder {
     outputThreadChecker.checkIsOnValidThread();
     adjustedBitrate = bitrateAdjuster.getAdjustedBitrateBps();
     try {
-      Bundle params = new Bundle();
-      params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, adjustedBitrate);
-      codec.setParameters(params);
+      bitrateParams.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, adjustedBitrate);
+      codec.setParameters(bitrateParams);
       return VideoCodecStatus.OK;
     } catch (IllegalStateException e) {
       Logging.e(TAG, "updateBitrate failed", e);
@@ -667,6 +928,15 @@ class HardwareVideoEncoder implements VideoEncoder {
     NV12 {
       @Override
       void fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer) {
+        // Semi-planar sources go straight into the codec buffer instead of via an I420 copy.
+        if (srcBuffer instanceof NV12Buffer) {
+          ((NV12Buffer) srcBuffer).copyToNV12(dstBuffer);
+          return;
+        }
+        if (srcBuffer instanceof NV21Buffer) {
+          ((NV21Buffer) srcBuffer).copyToNV12(dstBuffer);
+          return;
+        }
         VideoFrame.I420Buffer i420 = srcBuffer.toI420();
         YuvHelper.I420ToNV12(i420.getDataY(), i420.getStrideY(), i420.getDataU(), i420.getStrideU(),
                 i420.getDataV(), i420.getStrideV(), dstBuffer, i420.getWidth(), i420.getHeight());
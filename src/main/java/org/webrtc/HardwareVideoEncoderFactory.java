@@ -29,6 +29,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   @Nullable
   private final Predicate<MediaCodecInfo> codecAllowedPredicate;
   
+  private boolean useAsyncCodec;
+  
   public HardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder, boolean enableH264HighProfile) {
     this(sharedContext, enableIntelVp8Encoder, enableH264HighProfile, null);
   }
@@ -50,6 +52,16 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     this(null, enableIntelVp8Encoder, enableH264HighProfile);
   }
   
+  /**
+   * Makes encoders created afterwards drive MediaCodec through its asynchronous callbacks instead
+   * of a polling output thread. Byte buffer frames that arrive while the codec has no free input
+   * buffer then wait in a small bounded queue rather than being dropped. Only takes effect on
+   * Android M and above.
+   */
+  public void setAsyncCodecMode(boolean useAsyncCodec) {
+    this.useAsyncCodec = useAsyncCodec;
+  }
+  
   @Nullable
   public VideoEncoder createEncoder(VideoCodecInfo input) {
     if (Build.VERSION.SDK_INT < 19)
@@ -76,12 +88,19 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     } 
     return new HardwareVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type, surfaceColorFormat, yuvColorFormat, input.params, 
         getKeyFrameIntervalSec(type), 
-        getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName), this.sharedContext);
+        getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName), this.sharedContext, this.useAsyncCodec);
   }
   
   public VideoCodecInfo[] getSupportedCodecs() {
     if (Build.VERSION.SDK_INT < 19)
       return new VideoCodecInfo[0]; 
+    // A custom predicate cannot be part of the cache key, so only the default selection is cached.
+    List<VideoCodecInfo> supportedCodecInfos = (this.codecAllowedPredicate != null) ? findSupportedCodecs() : 
+      DeviceCapabilityCache.getInstance().getSupportedCodecs("encoder/" + this.enableIntelVp8Encoder + "/" + this.enableH264HighProfile, this::findSupportedCodecs);
+    return supportedCodecInfos.<VideoCodecInfo>toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+  }
+  
+  private List<VideoCodecInfo> findSupportedCodecs() {
     List<VideoCodecInfo> supportedCodecInfos = new ArrayList<>();
     for (VideoCodecMimeType type : new VideoCodecMimeType[] { VideoCodecMimeType.VP8, VideoCodecMimeType.VP9, VideoCodecMimeType.H264 }) {
       MediaCodecInfo codec = findCodecForType(type);
@@ -94,7 +113,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
               MediaCodecUtils.getCodecProperties(type, false)));
       } 
     } 
-    return supportedCodecInfos.<VideoCodecInfo>toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+    return supportedCodecInfos;
   }
   
   @Nullable
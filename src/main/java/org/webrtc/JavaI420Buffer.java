@@ -75,7 +75,10 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
             width, height, dataY, strideY, dataU, strideU, dataV, strideV, releaseCallback);
   }
 
-  /** Allocates an empty I420Buffer suitable for an image of the given dimensions. */
+  /**
+   * Allocates an empty I420Buffer suitable for an image of the given dimensions. The memory comes
+   * from NativeByteBufferPool.INSTANCE and goes back there when the buffer is released.
+   */
   public static JavaI420Buffer allocate(int width, int height) {
     int chromaHeight = (height + 1) / 2;
     int strideUV = (width + 1) / 2;
@@ -84,7 +87,7 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
     int vPos = uPos + strideUV * chromaHeight;
 
     ByteBuffer buffer =
-            JniCommon.nativeAllocateByteBuffer(width * height + 2 * strideUV * chromaHeight);
+            NativeByteBufferPool.INSTANCE.acquire(width * height + 2 * strideUV * chromaHeight);
 
     buffer.position(yPos);
     buffer.limit(uPos);
@@ -99,7 +102,7 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
     ByteBuffer dataV = buffer.slice();
 
     return new JavaI420Buffer(width, height, dataY, width, dataU, strideUV, dataV, strideUV,
-            () -> { JniCommon.nativeFreeByteBuffer(buffer); });
+            () -> { NativeByteBufferPool.INSTANCE.release(buffer); });
   }
 
   @Override
@@ -0,0 +1,230 @@
+package org.webrtc;
+
+/**
+ * Pure Java YUV to RGB converter, used when the native libyuv is not available and as a reference
+ * implementation off-device. Uses BT.601 limited range coefficients in 10 bit fixed point, all
+ * taken from precomputed tables, and converts two rows per iteration so each chroma sample is
+ * fetched once for the four luma samples it covers.
+ *
+ * Input is packed, a |width| luma stride and the chroma layout implied by the YuvFormat, or has
+ * explicit row strides. Output format names follow libyuv, i.e. they describe a little-endian 32
+ * bit word: ABGR is stored as R, G, B, A bytes, which is what Bitmap.copyPixelsFromBuffer expects
+ * for ARGB_8888.
+ */
+public final class JavaYuvConverter {
+  public enum RgbFormat {
+    /** B, G, R, A bytes. */
+    ARGB(4),
+    /** R, G, B, A bytes. */
+    ABGR(4),
+    /** 16 bit little-endian RGB 5:6:5. */
+    RGB565(2);
+
+    public final int bytesPerPixel;
+
+    RgbFormat(int bytesPerPixel) {
+      this.bytesPerPixel = bytesPerPixel;
+    }
+  }
+
+  private static final int SHIFT = 10;
+  private static final int ROUND = 1 << (SHIFT - 1);
+  // Range of (luma + chroma terms) >> SHIFT is roughly [-280, 535].
+  private static final int CLIP_OFFSET = 384;
+
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+  private static final byte[] CLIP_TABLE = new byte[CLIP_OFFSET * 2 + 256];
+
+  static {
+    final double scale = 1 << SHIFT;
+    for (int i = 0; i < 256; ++i) {
+      Y_TABLE[i] = (int) Math.round(1.164 * (i - 16) * scale) + ROUND;
+      RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * scale);
+      GU_TABLE[i] = (int) Math.round(0.391 * (i - 128) * scale);
+      GV_TABLE[i] = (int) Math.round(0.813 * (i - 128) * scale);
+      BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * scale);
+    }
+    for (int i = 0; i < CLIP_TABLE.length; ++i) {
+      CLIP_TABLE[i] = (byte) Math.min(255, Math.max(0, i - CLIP_OFFSET));
+    }
+  }
+
+  private JavaYuvConverter() {}
+
+  /**
+   * Converts a packed |yuvFormat| frame into |dst|, which must hold at least width * height *
+   * rgbFormat.bytesPerPixel bytes.
+   */
+  public static void convert(byte[] yuv, YuvFormat yuvFormat, int width, int height, byte[] dst,
+      RgbFormat rgbFormat) {
+    final int chromaWidth = (width + 1) / 2;
+    convert(yuv, yuvFormat, width, height, width,
+        yuvFormat == YuvFormat.I420 ? chromaWidth : 2 * chromaWidth, dst,
+        width * rgbFormat.bytesPerPixel, rgbFormat);
+  }
+
+  /**
+   * Converts a |yuvFormat| frame with padded rows into |dst|. |strideY| is the luma row stride,
+   * |strideUV| the row stride of each chroma plane for I420 and of the interleaved chroma plane
+   * for NV21 and NV12. The chroma data follows the luma plane at |strideY| * height. |dstStride|
+   * is the destination row stride in bytes, padding bytes are left untouched.
+   */
+  public static void convert(byte[] yuv, YuvFormat yuvFormat, int width, int height, int strideY,
+      int strideUV, byte[] dst, int dstStride, RgbFormat rgbFormat) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int chromaBase = strideY * height;
+    // Byte offset of the U and V sample of chroma column 0 and the step between columns.
+    final int uBase;
+    final int vBase;
+    final int chromaStep;
+    final int chromaPlanes;
+    switch (yuvFormat) {
+      case NV21:
+        vBase = chromaBase;
+        uBase = chromaBase + 1;
+        chromaStep = 2;
+        chromaPlanes = 1;
+        break;
+      case NV12:
+        uBase = chromaBase;
+        vBase = chromaBase + 1;
+        chromaStep = 2;
+        chromaPlanes = 1;
+        break;
+      case I420:
+        uBase = chromaBase;
+        vBase = chromaBase + strideUV * chromaHeight;
+        chromaStep = 1;
+        chromaPlanes = 2;
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported format: " + yuvFormat);
+    }
+    if (strideY < width || strideUV < chromaStep * chromaWidth
+        || dstStride < width * rgbFormat.bytesPerPixel) {
+      throw new IllegalArgumentException("Strides " + strideY + ", " + strideUV + " and "
+          + dstStride + " are too small for a " + width + "x" + height + " " + yuvFormat + " to "
+          + rgbFormat + " conversion");
+    }
+    if (yuv.length < chromaBase + chromaPlanes * strideUV * chromaHeight) {
+      throw new IllegalArgumentException("Source is too small for a " + width + "x" + height
+          + " " + yuvFormat + " frame: " + yuv.length);
+    }
+    if (dst.length < dstStride * height) {
+      throw new IllegalArgumentException("Destination is too small for a " + width + "x" + height
+          + " " + rgbFormat + " frame: " + dst.length);
+    }
+
+    // Picks the loop once per frame, so the pixel writes do not branch on the format.
+    switch (rgbFormat) {
+      case ABGR:
+        convertTo8888(yuv, width, height, strideY, uBase, vBase, chromaStep, strideUV, dst,
+            dstStride, 0 /* rIndex */, 2 /* bIndex */);
+        break;
+      case ARGB:
+        convertTo8888(yuv, width, height, strideY, uBase, vBase, chromaStep, strideUV, dst,
+            dstStride, 2 /* rIndex */, 0 /* bIndex */);
+        break;
+      case RGB565:
+        convertToRgb565(
+            yuv, width, height, strideY, uBase, vBase, chromaStep, strideUV, dst, dstStride);
+        break;
+    }
+  }
+
+  /** Writes 4 byte pixels with red at |rIndex|, green at 1, blue at |bIndex| and alpha at 3. */
+  private static void convertTo8888(byte[] yuv, int width, int height, int strideY, int uBase,
+      int vBase, int chromaStep, int chromaStride, byte[] dst, int dstStride, int rIndex,
+      int bIndex) {
+    for (int y = 0; y < height; y += 2) {
+      final boolean hasSecondRow = y + 1 < height;
+      final int row0 = y * strideY;
+      final int row1 = hasSecondRow ? row0 + strideY : row0;
+      final int dstRow0 = y * dstStride;
+      final int dstRow1 = hasSecondRow ? dstRow0 + dstStride : dstRow0;
+      final int chromaRow = (y / 2) * chromaStride;
+      for (int x = 0; x < width; x += 2) {
+        final int chroma = chromaRow + (x / 2) * chromaStep;
+        final int u = yuv[uBase + chroma] & 0xFF;
+        final int v = yuv[vBase + chroma] & 0xFF;
+        final int rOffset = RV_TABLE[v];
+        final int gOffset = -GU_TABLE[u] - GV_TABLE[v];
+        final int bOffset = BU_TABLE[u];
+        final boolean hasSecondColumn = x + 1 < width;
+
+        put8888(dst, dstRow0 + 4 * x, Y_TABLE[yuv[row0 + x] & 0xFF], rOffset, gOffset, bOffset,
+            rIndex, bIndex);
+        if (hasSecondColumn) {
+          put8888(dst, dstRow0 + 4 * x + 4, Y_TABLE[yuv[row0 + x + 1] & 0xFF], rOffset, gOffset,
+              bOffset, rIndex, bIndex);
+        }
+        if (hasSecondRow) {
+          put8888(dst, dstRow1 + 4 * x, Y_TABLE[yuv[row1 + x] & 0xFF], rOffset, gOffset,
+              bOffset, rIndex, bIndex);
+          if (hasSecondColumn) {
+            put8888(dst, dstRow1 + 4 * x + 4, Y_TABLE[yuv[row1 + x + 1] & 0xFF], rOffset,
+                gOffset, bOffset, rIndex, bIndex);
+          }
+        }
+      }
+    }
+  }
+
+  private static void convertToRgb565(byte[] yuv, int width, int height, int strideY, int uBase,
+      int vBase, int chromaStep, int chromaStride, byte[] dst, int dstStride) {
+    for (int y = 0; y < height; y += 2) {
+      final boolean hasSecondRow = y + 1 < height;
+      final int row0 = y * strideY;
+      final int row1 = hasSecondRow ? row0 + strideY : row0;
+      final int dstRow0 = y * dstStride;
+      final int dstRow1 = hasSecondRow ? dstRow0 + dstStride : dstRow0;
+      final int chromaRow = (y / 2) * chromaStride;
+      for (int x = 0; x < width; x += 2) {
+        final int chroma = chromaRow + (x / 2) * chromaStep;
+        final int u = yuv[uBase + chroma] & 0xFF;
+        final int v = yuv[vBase + chroma] & 0xFF;
+        final int rOffset = RV_TABLE[v];
+        final int gOffset = -GU_TABLE[u] - GV_TABLE[v];
+        final int bOffset = BU_TABLE[u];
+        final boolean hasSecondColumn = x + 1 < width;
+
+        putRgb565(dst, dstRow0 + 2 * x, Y_TABLE[yuv[row0 + x] & 0xFF], rOffset, gOffset, bOffset);
+        if (hasSecondColumn) {
+          putRgb565(dst, dstRow0 + 2 * x + 2, Y_TABLE[yuv[row0 + x + 1] & 0xFF], rOffset, gOffset,
+              bOffset);
+        }
+        if (hasSecondRow) {
+          putRgb565(dst, dstRow1 + 2 * x, Y_TABLE[yuv[row1 + x] & 0xFF], rOffset, gOffset,
+              bOffset);
+          if (hasSecondColumn) {
+            putRgb565(dst, dstRow1 + 2 * x + 2, Y_TABLE[yuv[row1 + x + 1] & 0xFF], rOffset,
+                gOffset, bOffset);
+          }
+        }
+      }
+    }
+  }
+
+  private static void put8888(byte[] dst, int offset, int luma, int rOffset, int gOffset,
+      int bOffset, int rIndex, int bIndex) {
+    dst[offset + rIndex] = CLIP_TABLE[((luma + rOffset) >> SHIFT) + CLIP_OFFSET];
+    dst[offset + 1] = CLIP_TABLE[((luma + gOffset) >> SHIFT) + CLIP_OFFSET];
+    dst[offset + bIndex] = CLIP_TABLE[((luma + bOffset) >> SHIFT) + CLIP_OFFSET];
+    dst[offset + 3] = (byte) 0xFF;
+  }
+
+  private static void putRgb565(
+      byte[] dst, int offset, int luma, int rOffset, int gOffset, int bOffset) {
+    final int r = CLIP_TABLE[((luma + rOffset) >> SHIFT) + CLIP_OFFSET] & 0xF8;
+    final int g = CLIP_TABLE[((luma + gOffset) >> SHIFT) + CLIP_OFFSET] & 0xFC;
+    final int b = CLIP_TABLE[((luma + bOffset) >> SHIFT) + CLIP_OFFSET] & 0xFF;
+    final int rgb565 = (r << 8) | (g << 3) | (b >> 3);
+    dst[offset] = (byte) rgb565;
+    dst[offset + 1] = (byte) (rgb565 >> 8);
+  }
+}
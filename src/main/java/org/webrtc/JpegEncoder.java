@@ -0,0 +1,630 @@
+package org.webrtc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Baseline JPEG encoder that reads YUV 4:2:0 planes directly, since JPEG itself stores YCbCr
+ * 4:2:0. There is no RGB conversion and no Bitmap: frames are read one MCU row at a time and
+ * streamed to an OutputStream in 4 KB chunks. Rotation is recorded as an EXIF orientation tag
+ * instead of being applied to the pixels, and the frame can be downscaled by an integer divisor on
+ * the way in. Not thread safe, use one instance per thread. Has no Android dependencies.
+ */
+public class JpegEncoder {
+  private static final int[] ZIGZAG = {
+      0, 1, 5, 6, 14, 15, 27, 28,
+      2, 4, 7, 13, 16, 26, 29, 42,
+      3, 8, 12, 17, 25, 30, 41, 43,
+      9, 11, 18, 24, 31, 40, 44, 53,
+      10, 19, 23, 32, 39, 45, 52, 54,
+      20, 22, 33, 38, 46, 51, 55, 60,
+      21, 34, 37, 47, 50, 56, 59, 61,
+      35, 36, 48, 49, 57, 58, 62, 63};
+
+  // ITU-T T.81 Annex K quantization tables, natural order.
+  private static final int[] LUMINANCE_QUANT = {
+      16, 11, 10, 16, 24, 40, 51, 61,
+      12, 12, 14, 19, 26, 58, 60, 55,
+      14, 13, 16, 24, 40, 57, 69, 56,
+      14, 17, 22, 29, 51, 87, 80, 62,
+      18, 22, 37, 56, 68, 109, 103, 77,
+      24, 35, 55, 64, 81, 104, 113, 92,
+      49, 64, 78, 87, 103, 121, 120, 101,
+      72, 92, 95, 98, 112, 100, 103, 99};
+  private static final int[] CHROMINANCE_QUANT = {
+      17, 18, 24, 47, 99, 99, 99, 99,
+      18, 21, 26, 66, 99, 99, 99, 99,
+      24, 26, 56, 99, 99, 99, 99, 99,
+      47, 66, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99};
+
+  // ITU-T T.81 Annex K Huffman tables.
+  private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+  private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+  private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+  private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+  private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+  private static final int[] AC_LUMINANCE_VALUES = {
+      0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06,
+      0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+      0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+      0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+      0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+      0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+      0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+      0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+      0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+      0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+      0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+      0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+      0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4,
+      0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+  private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+  private static final int[] AC_CHROMINANCE_VALUES = {
+      0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41,
+      0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+      0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+      0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+      0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+      0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+      0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+      0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+      0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+      0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+      0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+      0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+      0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4,
+      0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+
+  // Output is collected in chunks of this size instead of being written a byte at a time.
+  private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+  private static final double[] AAN_SCALE = {1.0, 1.387039845, 1.306562965, 1.175875602, 1.0,
+      0.785694958, 0.541196100, 0.275899379};
+
+  private static final int[][] DC_LUMINANCE_TABLE =
+      buildHuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+  private static final int[][] AC_LUMINANCE_TABLE =
+      buildHuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+  private static final int[][] DC_CHROMINANCE_TABLE =
+      buildHuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+  private static final int[][] AC_CHROMINANCE_TABLE =
+      buildHuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+  /** Reads source rows into scratch arrays, one row of each plane at a time. */
+  private interface PlaneSource {
+    int getWidth();
+    int getHeight();
+    void readLumaRow(int y, byte[] dst);
+    void readChromaRows(int chromaY, byte[] dstU, byte[] dstV);
+  }
+
+  private final int quality;
+  // Quantization tables in zigzag order, as written to the DQT segment.
+  private final int[] luminanceQuant = new int[64];
+  private final int[] chrominanceQuant = new int[64];
+  // Reciprocals of the quantizers with the AAN scale folded in, natural order.
+  private final float[] luminanceDivisors = new float[64];
+  private final float[] chrominanceDivisors = new float[64];
+
+  // Per-encode scratch, reused across encodes of the same size.
+  private final float[] block = new float[64];
+  private final int[] quantized = new int[64];
+  private byte[] sourceRow = new byte[0];
+  private byte[] sourceRowU = new byte[0];
+  private byte[] sourceRowV = new byte[0];
+  private int[] rowSums = new int[0];
+  private int[] rowSumsU = new int[0];
+  private int[] rowSumsV = new int[0];
+  private float[][] mcuY = new float[16][0];
+  private float[][] mcuU = new float[8][0];
+  private float[][] mcuV = new float[8][0];
+
+  private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+  private int outputLength;
+  private OutputStream out;
+  private int bitBuffer;
+  private int bitCount;
+  private int lastDcY;
+  private int lastDcU;
+  private int lastDcV;
+
+  /** @param quality JPEG quality in [1, 100], scaled the same way as libjpeg. */
+  public JpegEncoder(int quality) {
+    if (quality < 1 || quality > 100) {
+      throw new IllegalArgumentException("JPEG quality must be in [1, 100]: " + quality);
+    }
+    this.quality = quality;
+    final int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+    for (int i = 0; i < 64; ++i) {
+      final int lum = clamp((LUMINANCE_QUANT[i] * scale + 50) / 100, 1, 255);
+      final int chrom = clamp((CHROMINANCE_QUANT[i] * scale + 50) / 100, 1, 255);
+      luminanceQuant[ZIGZAG[i]] = lum;
+      chrominanceQuant[ZIGZAG[i]] = chrom;
+      final double aan = AAN_SCALE[i / 8] * AAN_SCALE[i % 8] * 8.0;
+      luminanceDivisors[i] = (float) (1.0 / (lum * aan));
+      chrominanceDivisors[i] = (float) (1.0 / (chrom * aan));
+    }
+  }
+
+  public int getQuality() {
+    return quality;
+  }
+
+  /**
+   * Encodes an I420 buffer.
+   * @param rotation Clockwise rotation in degrees, stored as EXIF orientation.
+   * @param scaleDivisor Integer downscale factor, 1 keeps the full resolution.
+   */
+  public void encode(VideoFrame.I420Buffer buffer, int rotation, int scaleDivisor, OutputStream out)
+      throws IOException {
+    final ByteBuffer dataY = buffer.getDataY();
+    final ByteBuffer dataU = buffer.getDataU();
+    final ByteBuffer dataV = buffer.getDataV();
+    final int strideY = buffer.getStrideY();
+    final int strideU = buffer.getStrideU();
+    final int strideV = buffer.getStrideV();
+    final int width = buffer.getWidth();
+    final int height = buffer.getHeight();
+    final int chromaWidth = (width + 1) / 2;
+    encode(new PlaneSource() {
+      @Override
+      public int getWidth() {
+        return width;
+      }
+
+      @Override
+      public int getHeight() {
+        return height;
+      }
+
+      @Override
+      public void readLumaRow(int y, byte[] dst) {
+        dataY.position(y * strideY);
+        dataY.get(dst, 0, width);
+      }
+
+      @Override
+      public void readChromaRows(int chromaY, byte[] dstU, byte[] dstV) {
+        dataU.position(chromaY * strideU);
+        dataU.get(dstU, 0, chromaWidth);
+        dataV.position(chromaY * strideV);
+        dataV.get(dstV, 0, chromaWidth);
+      }
+    }, rotation, scaleDivisor, out);
+  }
+
+  /**
+   * Encodes a packed NV21 or NV12 frame, as produced by YuvFrame and the Camera1 preview callback.
+   * @param rotation Clockwise rotation in degrees, stored as EXIF orientation.
+   * @param scaleDivisor Integer downscale factor, 1 keeps the full resolution.
+   */
+  public void encode(byte[] data, YuvFormat format, int width, int height, int rotation,
+      int scaleDivisor, OutputStream out) throws IOException {
+    if (format == YuvFormat.I420) {
+      throw new IllegalArgumentException("Use encode(VideoFrame.I420Buffer, ...) for I420.");
+    }
+    if (data.length < format.getDataSize(width, height)) {
+      throw new IllegalArgumentException("Data is too small for a " + width + "x" + height + " "
+          + format + " frame: " + data.length);
+    }
+    final int chromaWidth = (width + 1) / 2;
+    final int uOffset = format == YuvFormat.NV12 ? 0 : 1;
+    final int vOffset = 1 - uOffset;
+    encode(new PlaneSource() {
+      @Override
+      public int getWidth() {
+        return width;
+      }
+
+      @Override
+      public int getHeight() {
+        return height;
+      }
+
+      @Override
+      public void readLumaRow(int y, byte[] dst) {
+        System.arraycopy(data, y * width, dst, 0, width);
+      }
+
+      @Override
+      public void readChromaRows(int chromaY, byte[] dstU, byte[] dstV) {
+        final int row = width * height + chromaY * 2 * chromaWidth;
+        for (int x = 0; x < chromaWidth; ++x) {
+          dstU[x] = data[row + 2 * x + uOffset];
+          dstV[x] = data[row + 2 * x + vOffset];
+        }
+      }
+    }, rotation, scaleDivisor, out);
+  }
+
+  private void encode(PlaneSource source, int rotation, int scaleDivisor, OutputStream out)
+      throws IOException {
+    if (scaleDivisor < 1) {
+      throw new IllegalArgumentException("Scale divisor must be positive: " + scaleDivisor);
+    }
+    final int width = Math.max(1, source.getWidth() / scaleDivisor);
+    final int height = Math.max(1, source.getHeight() / scaleDivisor);
+    final int chromaWidth = (width + 1) / 2;
+    final int mcuColumns = (width + 15) / 16;
+    final int mcuRows = (height + 15) / 16;
+    allocateScratch(source.getWidth(), mcuColumns * 16);
+
+    this.out = out;
+    outputLength = 0;
+    bitBuffer = 0;
+    bitCount = 0;
+    lastDcY = 0;
+    lastDcU = 0;
+    lastDcV = 0;
+    try {
+      writeHeaders(width, height, rotation);
+      for (int mcuRow = 0; mcuRow < mcuRows; ++mcuRow) {
+        for (int r = 0; r < 16; ++r) {
+          fillLumaRow(source, scaleDivisor, Math.min(mcuRow * 16 + r, height - 1), width,
+              mcuY[r]);
+        }
+        final int chromaHeight = (height + 1) / 2;
+        for (int r = 0; r < 8; ++r) {
+          fillChromaRows(source, scaleDivisor, Math.min(mcuRow * 8 + r, chromaHeight - 1),
+              chromaWidth, mcuU[r], mcuV[r]);
+        }
+        for (int mcuColumn = 0; mcuColumn < mcuColumns; ++mcuColumn) {
+          final int x = mcuColumn * 16;
+          lastDcY = encodeBlock(mcuY, 0, x, luminanceDivisors, lastDcY, DC_LUMINANCE_TABLE,
+              AC_LUMINANCE_TABLE);
+          lastDcY = encodeBlock(mcuY, 0, x + 8, luminanceDivisors, lastDcY, DC_LUMINANCE_TABLE,
+              AC_LUMINANCE_TABLE);
+          lastDcY = encodeBlock(mcuY, 8, x, luminanceDivisors, lastDcY, DC_LUMINANCE_TABLE,
+              AC_LUMINANCE_TABLE);
+          lastDcY = encodeBlock(mcuY, 8, x + 8, luminanceDivisors, lastDcY, DC_LUMINANCE_TABLE,
+              AC_LUMINANCE_TABLE);
+          lastDcU = encodeBlock(mcuU, 0, x / 2, chrominanceDivisors, lastDcU,
+              DC_CHROMINANCE_TABLE, AC_CHROMINANCE_TABLE);
+          lastDcV = encodeBlock(mcuV, 0, x / 2, chrominanceDivisors, lastDcV,
+              DC_CHROMINANCE_TABLE, AC_CHROMINANCE_TABLE);
+        }
+      }
+      flushBits();
+      writeByte(0xFF);
+      writeByte(0xD9);
+      flushOutput();
+    } finally {
+      this.out = null;
+      outputLength = 0;
+    }
+  }
+
+  private void allocateScratch(int sourceWidth, int paddedWidth) {
+    final int sourceChromaWidth = (sourceWidth + 1) / 2;
+    if (sourceRow.length < sourceWidth) {
+      sourceRow = new byte[sourceWidth];
+      rowSums = new int[sourceWidth];
+    }
+    if (sourceRowU.length < sourceChromaWidth) {
+      sourceRowU = new byte[sourceChromaWidth];
+      sourceRowV = new byte[sourceChromaWidth];
+      rowSumsU = new int[sourceChromaWidth];
+      rowSumsV = new int[sourceChromaWidth];
+    }
+    if (mcuY[0].length < paddedWidth) {
+      mcuY = new float[16][paddedWidth];
+      mcuU = new float[8][paddedWidth / 2];
+      mcuV = new float[8][paddedWidth / 2];
+    }
+  }
+
+  // Produces one level-shifted output luma row, box-filtering |scale| x |scale| source pixels and
+  // replicating the last pixel into the MCU padding.
+  private void fillLumaRow(PlaneSource source, int scale, int y, int width, float[] dst) {
+    final int sourceWidth = source.getWidth();
+    final int sourceHeight = source.getHeight();
+    if (scale == 1) {
+      source.readLumaRow(y, sourceRow);
+      for (int x = 0; x < width; ++x) {
+        dst[x] = (sourceRow[x] & 0xFF) - 128;
+      }
+    } else {
+      Arrays.fill(rowSums, 0, sourceWidth, 0);
+      for (int i = 0; i < scale; ++i) {
+        source.readLumaRow(Math.min(y * scale + i, sourceHeight - 1), sourceRow);
+        for (int x = 0; x < sourceWidth; ++x) {
+          rowSums[x] += sourceRow[x] & 0xFF;
+        }
+      }
+      final float norm = 1.0f / (scale * scale);
+      for (int x = 0; x < width; ++x) {
+        int sum = 0;
+        for (int i = 0; i < scale; ++i) {
+          sum += rowSums[Math.min(x * scale + i, sourceWidth - 1)];
+        }
+        dst[x] = sum * norm - 128;
+      }
+    }
+    for (int x = width; x < dst.length; ++x) {
+      dst[x] = dst[width - 1];
+    }
+  }
+
+  private void fillChromaRows(PlaneSource source, int scale, int chromaY, int chromaWidth,
+      float[] dstU, float[] dstV) {
+    final int sourceChromaWidth = (source.getWidth() + 1) / 2;
+    final int sourceChromaHeight = (source.getHeight() + 1) / 2;
+    if (scale == 1) {
+      source.readChromaRows(chromaY, sourceRowU, sourceRowV);
+      for (int x = 0; x < chromaWidth; ++x) {
+        dstU[x] = (sourceRowU[x] & 0xFF) - 128;
+        dstV[x] = (sourceRowV[x] & 0xFF) - 128;
+      }
+    } else {
+      Arrays.fill(rowSumsU, 0, sourceChromaWidth, 0);
+      Arrays.fill(rowSumsV, 0, sourceChromaWidth, 0);
+      for (int i = 0; i < scale; ++i) {
+        source.readChromaRows(
+            Math.min(chromaY * scale + i, sourceChromaHeight - 1), sourceRowU, sourceRowV);
+        for (int x = 0; x < sourceChromaWidth; ++x) {
+          rowSumsU[x] += sourceRowU[x] & 0xFF;
+          rowSumsV[x] += sourceRowV[x] & 0xFF;
+        }
+      }
+      final float norm = 1.0f / (scale * scale);
+      for (int x = 0; x < chromaWidth; ++x) {
+        int sumU = 0;
+        int sumV = 0;
+        for (int i = 0; i < scale; ++i) {
+          final int sourceX = Math.min(x * scale + i, sourceChromaWidth - 1);
+          sumU += rowSumsU[sourceX];
+          sumV += rowSumsV[sourceX];
+        }
+        dstU[x] = sumU * norm - 128;
+        dstV[x] = sumV * norm - 128;
+      }
+    }
+    for (int x = chromaWidth; x < dstU.length; ++x) {
+      dstU[x] = dstU[chromaWidth - 1];
+      dstV[x] = dstV[chromaWidth - 1];
+    }
+  }
+
+  private int encodeBlock(float[][] rows, int rowOffset, int x, float[] divisors, int lastDc,
+      int[][] dcTable, int[][] acTable) throws IOException {
+    for (int r = 0; r < 8; ++r) {
+      System.arraycopy(rows[rowOffset + r], x, block, r * 8, 8);
+    }
+    forwardDct(block);
+    for (int i = 0; i < 64; ++i) {
+      quantized[ZIGZAG[i]] = Math.round(block[i] * divisors[i]);
+    }
+
+    final int dc = quantized[0];
+    final int diff = dc - lastDc;
+    if (diff == 0) {
+      writeBits(dcTable[0][0], dcTable[1][0]);
+    } else {
+      final int category = bitLength(diff);
+      writeBits(dcTable[0][category], dcTable[1][category]);
+      writeBits(diff < 0 ? diff - 1 : diff, category);
+    }
+
+    int run = 0;
+    for (int k = 1; k < 64; ++k) {
+      final int value = quantized[k];
+      if (value == 0) {
+        ++run;
+        continue;
+      }
+      while (run > 15) {
+        writeBits(acTable[0][0xF0], acTable[1][0xF0]);
+        run -= 16;
+      }
+      final int category = bitLength(value);
+      final int symbol = (run << 4) | category;
+      writeBits(acTable[0][symbol], acTable[1][symbol]);
+      writeBits(value < 0 ? value - 1 : value, category);
+      run = 0;
+    }
+    if (run > 0) {
+      writeBits(acTable[0][0x00], acTable[1][0x00]);
+    }
+    return dc;
+  }
+
+  // Arai, Agui and Nakajima scaled DCT; the output scale factors live in the divisors.
+  private static void forwardDct(float[] data) {
+    for (int pass = 0; pass < 2; ++pass) {
+      final int step = pass == 0 ? 1 : 8;
+      final int lineStep = pass == 0 ? 8 : 1;
+      for (int line = 0; line < 8; ++line) {
+        final int o = line * lineStep;
+        final float tmp0 = data[o] + data[o + 7 * step];
+        final float tmp7 = data[o] - data[o + 7 * step];
+        final float tmp1 = data[o + step] + data[o + 6 * step];
+        final float tmp6 = data[o + step] - data[o + 6 * step];
+        final float tmp2 = data[o + 2 * step] + data[o + 5 * step];
+        final float tmp5 = data[o + 2 * step] - data[o + 5 * step];
+        final float tmp3 = data[o + 3 * step] + data[o + 4 * step];
+        final float tmp4 = data[o + 3 * step] - data[o + 4 * step];
+
+        // Even part.
+        float tmp10 = tmp0 + tmp3;
+        final float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+        data[o] = tmp10 + tmp11;
+        data[o + 4 * step] = tmp10 - tmp11;
+        final float z1 = (tmp12 + tmp13) * 0.707106781f;
+        data[o + 2 * step] = tmp13 + z1;
+        data[o + 6 * step] = tmp13 - z1;
+
+        // Odd part.
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+        final float z5 = (tmp10 - tmp12) * 0.382683433f;
+        final float z2 = 0.541196100f * tmp10 + z5;
+        final float z4 = 1.306562965f * tmp12 + z5;
+        final float z3 = tmp11 * 0.707106781f;
+        final float z11 = tmp7 + z3;
+        final float z13 = tmp7 - z3;
+        data[o + 5 * step] = z13 + z2;
+        data[o + 3 * step] = z13 - z2;
+        data[o + step] = z11 + z4;
+        data[o + 7 * step] = z11 - z4;
+      }
+    }
+  }
+
+  private void writeHeaders(int width, int height, int rotation) throws IOException {
+    // SOI.
+    writeByte(0xFF);
+    writeByte(0xD8);
+
+    final int orientation = exifOrientation(rotation);
+    if (orientation == 1) {
+      // APP0 JFIF, version 1.1, no density, no thumbnail.
+      writeMarker(0xE0, 16);
+      writeBytes(new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+    } else {
+      // APP1 Exif: big-endian TIFF header and a single IFD0 entry holding the orientation.
+      writeMarker(0xE1, 34);
+      writeBytes(new byte[] {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 0x2A, 0, 0, 0, 8, 0, 1,
+          0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, 0, 0, 0, 0});
+    }
+
+    // DQT, both tables.
+    writeMarker(0xDB, 2 + 2 * 65);
+    writeByte(0);
+    for (int i = 0; i < 64; ++i) {
+      writeByte(luminanceQuant[i]);
+    }
+    writeByte(1);
+    for (int i = 0; i < 64; ++i) {
+      writeByte(chrominanceQuant[i]);
+    }
+
+    // SOF0: 8 bit, Y at 2x2 sampling, Cb and Cr at 1x1.
+    writeMarker(0xC0, 17);
+    writeByte(8);
+    writeShort(height);
+    writeShort(width);
+    writeByte(3);
+    writeBytes(new byte[] {1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+    // DHT.
+    writeMarker(0xC4, 2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+        + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+    writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    // SOS.
+    writeMarker(0xDA, 12);
+    writeBytes(new byte[] {3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+  }
+
+  private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+    writeByte(classAndId);
+    for (int count : bits) {
+      writeByte(count);
+    }
+    for (int value : values) {
+      writeByte(value);
+    }
+  }
+
+  private void writeByte(int b) throws IOException {
+    if (outputLength == outputBuffer.length) {
+      flushOutput();
+    }
+    outputBuffer[outputLength++] = (byte) b;
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    for (byte b : bytes) {
+      writeByte(b);
+    }
+  }
+
+  private void flushOutput() throws IOException {
+    out.write(outputBuffer, 0, outputLength);
+    outputLength = 0;
+  }
+
+  private void writeMarker(int marker, int length) throws IOException {
+    writeByte(0xFF);
+    writeByte(marker);
+    writeShort(length);
+  }
+
+  private void writeShort(int value) throws IOException {
+    writeByte((value >> 8) & 0xFF);
+    writeByte(value & 0xFF);
+  }
+
+  // Appends the low |length| bits of |value| to the entropy-coded segment, stuffing a zero byte
+  // after every 0xFF.
+  private void writeBits(int value, int length) throws IOException {
+    bitBuffer = (bitBuffer << length) | (value & ((1 << length) - 1));
+    bitCount += length;
+    while (bitCount >= 8) {
+      final int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+      writeByte(b);
+      if (b == 0xFF) {
+        writeByte(0);
+      }
+      bitCount -= 8;
+    }
+  }
+
+  private void flushBits() throws IOException {
+    if (bitCount > 0) {
+      // Pad the last byte with ones.
+      writeBits(0x7F, 8 - bitCount);
+    }
+  }
+
+  private static int exifOrientation(int rotation) {
+    switch (((rotation % 360) + 360) % 360) {
+      case 90:
+        return 6;
+      case 180:
+        return 3;
+      case 270:
+        return 8;
+      default:
+        return 1;
+    }
+  }
+
+  private static int bitLength(int value) {
+    return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  // Returns {codes, lengths}, each indexed by symbol.
+  private static int[][] buildHuffmanTable(int[] bits, int[] values) {
+    final int[] codes = new int[256];
+    final int[] lengths = new int[256];
+    int code = 0;
+    int k = 0;
+    for (int length = 1; length <= 16; ++length) {
+      for (int i = 0; i < bits[length - 1]; ++i) {
+        codes[values[k]] = code;
+        lengths[values[k]] = length;
+        ++code;
+        ++k;
+      }
+      code <<= 1;
+    }
+    return new int[][] {codes, lengths};
+  }
+}
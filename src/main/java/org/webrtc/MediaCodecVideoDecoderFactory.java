@@ -16,9 +16,54 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
   @Nullable
   private final Predicate<MediaCodecInfo> codecAllowedPredicate;
   
+  @Nullable
+  private final String capabilityCacheKey;
+  
+  private int maxBorrowedOutputBuffers;
+  
+  private int maxQueuedInputFrames;
+  
+  private long inputWaitBudgetUs;
+  
   public MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(sharedContext, codecAllowedPredicate, null);
+  }
+  
+  /**
+   * |capabilityCacheKey| identifies |codecAllowedPredicate| in the DeviceCapabilityCache, null
+   * disables caching for predicates supplied by the application.
+   */
+  MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate, @Nullable String capabilityCacheKey) {
     this.sharedContext = sharedContext;
     this.codecAllowedPredicate = codecAllowedPredicate;
+    this.capabilityCacheKey = capabilityCacheKey;
+  }
+  
+  /**
+   * Lets decoders created afterwards hand byte buffer output to the sink without copying, by
+   * wrapping the MediaCodec output buffer and returning it to the codec once the frame is
+   * released. Frames beyond |maxBuffersInFlight| still held downstream are copied as before so the
+   * codec does not run out of output buffers. Sinks must release such frames promptly: a decoder
+   * being released waits only half a second for them before freeing the codec. 0, the default,
+   * always copies. Has no effect on decoders that output to a texture.
+   */
+  public void setMaxZeroCopyOutputBuffers(int maxBuffersInFlight) {
+    if (maxBuffersInFlight < 0)
+      throw new IllegalArgumentException("Invalid buffer count: " + maxBuffersInFlight); 
+    this.maxBorrowedOutputBuffers = maxBuffersInFlight;
+  }
+  
+  /**
+   * Makes decoders created afterwards wait at most |maxWaitUs| in decode() for a codec input
+   * buffer. Frames that find none are kept, up to |maxQueuedFrames| of them, and fed to the codec
+   * as input buffers free up. If the queue overflows it is dropped and a key frame is requested.
+   * 0 frames, the default, keeps the blocking behavior.
+   */
+  public void setNonBlockingInput(int maxQueuedFrames, long maxWaitUs) {
+    if (maxQueuedFrames < 0 || maxWaitUs < 0L)
+      throw new IllegalArgumentException("Invalid queue size or wait time: " + maxQueuedFrames + ", " + maxWaitUs); 
+    this.maxQueuedInputFrames = maxQueuedFrames;
+    this.inputWaitBudgetUs = maxWaitUs;
   }
   
   @Nullable
@@ -29,10 +74,16 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
       return null; 
     MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(type.mimeType());
     return new AndroidVideoDecoder(new MediaCodecWrapperFactoryImpl(), info.getName(), type, 
-        MediaCodecUtils.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, capabilities).intValue(), this.sharedContext);
+        MediaCodecUtils.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, capabilities).intValue(), this.sharedContext, this.maxBorrowedOutputBuffers, this.maxQueuedInputFrames, this.inputWaitBudgetUs);
   }
   
   public VideoCodecInfo[] getSupportedCodecs() {
+    List<VideoCodecInfo> supportedCodecInfos = (this.capabilityCacheKey == null) ? findSupportedCodecs() : 
+      DeviceCapabilityCache.getInstance().getSupportedCodecs(this.capabilityCacheKey, this::findSupportedCodecs);
+    return supportedCodecInfos.<VideoCodecInfo>toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+  }
+  
+  private List<VideoCodecInfo> findSupportedCodecs() {
     List<VideoCodecInfo> supportedCodecInfos = new ArrayList<>();
     for (VideoCodecMimeType type : new VideoCodecMimeType[] { VideoCodecMimeType.VP8, VideoCodecMimeType.VP9, VideoCodecMimeType.H264 }) {
       MediaCodecInfo codec = findCodecForType(type);
@@ -45,7 +96,7 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
               MediaCodecUtils.getCodecProperties(type, false)));
       } 
     } 
-    return supportedCodecInfos.<VideoCodecInfo>toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+    return supportedCodecInfos;
   }
   
   @Nullable
@@ -4,10 +4,22 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 
 interface MediaCodecWrapper {
+  /** Mirrors MediaCodec.Callback so asynchronous mode can be used without a real codec. */
+  interface AsyncCallback {
+    void onInputBufferAvailable(int index);
+    
+    void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+    
+    void onOutputFormatChanged(MediaFormat format);
+    
+    void onError(Exception e);
+  }
+  
   void configure(MediaFormat paramMediaFormat, Surface paramSurface, MediaCrypto paramMediaCrypto, int paramInt);
   
   void start();
@@ -35,4 +47,10 @@ interface MediaCodecWrapper {
   Surface createInputSurface();
   
   void setParameters(Bundle paramBundle);
+  
+  void setCallback(AsyncCallback paramAsyncCallback, Handler paramHandler);
+  
+  ByteBuffer getInputBuffer(int paramInt);
+  
+  ByteBuffer getOutputBuffer(int paramInt);
 }
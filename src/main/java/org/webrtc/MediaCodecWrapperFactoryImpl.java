@@ -5,6 +5,7 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -74,6 +75,37 @@ class MediaCodecWrapperFactoryImpl implements MediaCodecWrapperFactory {
     public void setParameters(Bundle params) {
       this.mediaCodec.setParameters(params);
     }
+    
+    @TargetApi(23)
+    public void setCallback(final MediaCodecWrapper.AsyncCallback callback, Handler handler) {
+      this.mediaCodec.setCallback(new MediaCodec.Callback() {
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+              callback.onInputBufferAvailable(index);
+            }
+            
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+              callback.onOutputBufferAvailable(index, info);
+            }
+            
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+              callback.onOutputFormatChanged(format);
+            }
+            
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+              callback.onError(e);
+            }
+          }, handler);
+    }
+    
+    @TargetApi(21)
+    public ByteBuffer getInputBuffer(int index) {
+      return this.mediaCodec.getInputBuffer(index);
+    }
+    
+    @TargetApi(21)
+    public ByteBuffer getOutputBuffer(int index) {
+      return this.mediaCodec.getOutputBuffer(index);
+    }
   }
   
   public MediaCodecWrapper createByCodecName(String name) throws IOException {
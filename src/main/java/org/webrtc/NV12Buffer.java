@@ -45,6 +45,39 @@ public class NV12Buffer implements VideoFrame.Buffer {
     this.refCountDelegate.release();
   }
   
+  /**
+   * Writes this frame into |dst| as packed NV12: |width| luma rows followed by interleaved UV rows
+   * of 2 * chromaWidth bytes, which is the layout MediaCodec semi-planar inputs take. Both planes
+   * are copied as they are, without an intermediate I420 frame.
+   */
+  void copyToNV12(ByteBuffer dst) {
+    int chromaWidth = (this.width + 1) / 2;
+    int chromaHeight = (this.height + 1) / 2;
+    int uvOffset = this.width * this.height;
+    if (dst.capacity() < uvOffset + 2 * chromaWidth * chromaHeight)
+      throw new IllegalArgumentException("Destination is too small for a " + this.width + "x" + this.height + " NV12 frame: " + dst.capacity()); 
+    copyPlane(this.buffer, 0, this.stride, dst, 0, this.width, this.width, this.height);
+    copyPlane(this.buffer, this.stride * this.sliceHeight, this.stride, dst, uvOffset, 2 * chromaWidth, 2 * chromaWidth, chromaHeight);
+  }
+  
+  private static void copyPlane(ByteBuffer src, int srcOffset, int srcStride, ByteBuffer dst, int dstOffset, int dstStride, int width, int height) {
+    ByteBuffer in = src.duplicate();
+    ByteBuffer out = dst.duplicate();
+    in.position(srcOffset);
+    out.position(dstOffset);
+    if (in.isDirect() && out.isDirect()) {
+      YuvHelper.copyPlane(in.slice(), srcStride, out.slice(), dstStride, width, height);
+      return;
+    } 
+    for (int y = 0; y < height; y++) {
+      ByteBuffer row = in.duplicate();
+      row.position(srcOffset + y * srcStride);
+      row.limit(srcOffset + y * srcStride + width);
+      out.position(dstOffset + y * dstStride);
+      out.put(row);
+    } 
+  }
+  
   public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
     JavaI420Buffer newBuffer = JavaI420Buffer.allocate(scaleWidth, scaleHeight);
     nativeCropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight, this.buffer, this.width, this.height, this.stride, this.sliceHeight, newBuffer
@@ -27,6 +27,17 @@ public class NV21Buffer implements VideoFrame.Buffer {
     return this.height;
   }
   
+  /**
+   * Returns a copy of the NV21 data that stays valid after this buffer is released. The copy is
+   * borrowed from FrameBufferArena.INSTANCE.
+   */
+  byte[] copyData() {
+    final int size = YuvFormat.NV21.getDataSize(this.width, this.height);
+    final byte[] copy = FrameBufferArena.INSTANCE.acquireBytes(size);
+    System.arraycopy(this.data, 0, copy, 0, size);
+    return copy;
+  }
+  
   public VideoFrame.I420Buffer toI420() {
     return (VideoFrame.I420Buffer)cropAndScale(0, 0, this.width, this.height, this.width, this.height);
   }
@@ -39,6 +50,34 @@ public class NV21Buffer implements VideoFrame.Buffer {
     this.refCountDelegate.release();
   }
   
+  /**
+   * Writes this frame into |dst| as packed NV12, the layout MediaCodec semi-planar inputs take.
+   * The luma plane is copied in one transfer and the VU pairs are swapped row by row, without an
+   * intermediate I420 frame. The row scratch array is borrowed from FrameBufferArena.INSTANCE: a
+   * bulk put per row is several times faster than an absolute put per byte into a direct buffer.
+   */
+  void copyToNV12(ByteBuffer dst) {
+    int chromaWidth = (this.width + 1) / 2;
+    int chromaHeight = (this.height + 1) / 2;
+    int uvOffset = this.width * this.height;
+    int uvRowSize = 2 * chromaWidth;
+    if (dst.capacity() < uvOffset + uvRowSize * chromaHeight)
+      throw new IllegalArgumentException("Destination is too small for a " + this.width + "x" + this.height + " NV12 frame: " + dst.capacity()); 
+    ByteBuffer out = dst.duplicate();
+    out.clear();
+    out.put(this.data, 0, uvOffset);
+    byte[] row = FrameBufferArena.INSTANCE.acquireBytes(uvRowSize);
+    for (int y = 0; y < chromaHeight; y++) {
+      int rowStart = uvOffset + y * uvRowSize;
+      for (int x = 0; x < uvRowSize; x += 2) {
+        row[x] = this.data[rowStart + x + 1];
+        row[x + 1] = this.data[rowStart + x];
+      } 
+      out.put(row);
+    } 
+    FrameBufferArena.INSTANCE.releaseBytes(row);
+  }
+  
   public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
     JavaI420Buffer newBuffer = JavaI420Buffer.allocate(scaleWidth, scaleHeight);
     nativeCropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight, this.data, this.width, this.height, newBuffer
@@ -0,0 +1,198 @@
+package org.webrtc;
+
+import android.content.ComponentCallbacks2;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of native direct ByteBuffers from JniCommon.nativeAllocateByteBuffer, so per-frame I420
+ * allocations do not cost a malloc/free JNI round trip each. Requests are rounded up to size
+ * classes with four steps per power of two, which wastes at most 25% and lets nearby resolutions
+ * share buffers. With exact size classes every resolution gets its own bucket instead. Idle
+ * buffers above the high-water mark are freed right away. Thread safe.
+ */
+public class NativeByteBufferPool {
+  private static final String TAG = "NativeByteBufferPool";
+  public static final long DEFAULT_MAX_IDLE_BYTES = 32 * 1024 * 1024;
+  private static final int MIN_SIZE_CLASS = 4096;
+
+  /** Pool behind JavaI420Buffer.allocate(). */
+  public static final NativeByteBufferPool INSTANCE =
+      new NativeByteBufferPool(DEFAULT_MAX_IDLE_BYTES);
+
+  private final Object lock = new Object();
+  // Idle buffers keyed by capacity.
+  private final Map<Integer, ArrayDeque<ByteBuffer>> idleBuffers =
+      new HashMap<>(); /* guarded by lock */
+  private long maxIdleBytes; /* guarded by lock */
+  private boolean exactSizeClasses; /* guarded by lock */
+  private long idleBytes; /* guarded by lock */
+  private long bytesInUse; /* guarded by lock */
+  private long peakBytesInUse; /* guarded by lock */
+  private int hitCount; /* guarded by lock */
+  private int missCount; /* guarded by lock */
+
+  public NativeByteBufferPool(long maxIdleBytes) {
+    if (maxIdleBytes < 0) {
+      throw new IllegalArgumentException("Max idle bytes must not be negative: " + maxIdleBytes);
+    }
+    this.maxIdleBytes = maxIdleBytes;
+  }
+
+  /**
+   * Returns a native direct buffer of at least |size| bytes, with position 0 and limit |size|. It
+   * must be handed back through release(), never freed directly. Its contents are undefined.
+   */
+  public ByteBuffer acquire(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    ByteBuffer buffer = null;
+    final int capacity;
+    synchronized (lock) {
+      capacity = exactSizeClasses ? size : sizeClass(size);
+      final ArrayDeque<ByteBuffer> bucket = idleBuffers.get(capacity);
+      if (bucket != null && !bucket.isEmpty()) {
+        buffer = bucket.pollFirst();
+        idleBytes -= capacity;
+        ++hitCount;
+      } else {
+        ++missCount;
+      }
+      bytesInUse += capacity;
+      peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+    }
+    if (buffer == null) {
+      buffer = JniCommon.nativeAllocateByteBuffer(capacity);
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /** Returns a buffer obtained from acquire(). The caller must not touch it afterwards. */
+  public void release(ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+    synchronized (lock) {
+      bytesInUse -= capacity;
+      if (idleBytes + capacity <= maxIdleBytes) {
+        ArrayDeque<ByteBuffer> bucket = idleBuffers.get(capacity);
+        if (bucket == null) {
+          bucket = new ArrayDeque<>();
+          idleBuffers.put(capacity, bucket);
+        }
+        bucket.addLast(buffer);
+        idleBytes += capacity;
+        return;
+      }
+    }
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+
+  /**
+   * Sets the high-water mark for idle buffers. Buffers released while the pool already holds this
+   * many idle bytes are freed, and lowering the mark trims the pool right away.
+   */
+  public void setMaxIdleBytes(long maxIdleBytes) {
+    if (maxIdleBytes < 0) {
+      throw new IllegalArgumentException("Max idle bytes must not be negative: " + maxIdleBytes);
+    }
+    synchronized (lock) {
+      this.maxIdleBytes = maxIdleBytes;
+    }
+    trimToSize(maxIdleBytes);
+  }
+
+  /**
+   * Enables one bucket per exact buffer size instead of shared size classes. Useful when a fixed
+   * set of resolutions is used and the rounding overhead is not wanted.
+   */
+  public void setExactSizeClasses(boolean exactSizeClasses) {
+    synchronized (lock) {
+      this.exactSizeClasses = exactSizeClasses;
+    }
+  }
+
+  /** Frees idle buffers until at most |maxBytes| idle bytes remain, largest buffers first. */
+  public void trimToSize(long maxBytes) {
+    final List<ByteBuffer> freed = new ArrayList<>();
+    synchronized (lock) {
+      while (idleBytes > maxBytes) {
+        int largest = 0;
+        for (Integer capacity : idleBuffers.keySet()) {
+          largest = Math.max(largest, capacity);
+        }
+        final ArrayDeque<ByteBuffer> bucket = idleBuffers.get(largest);
+        freed.add(bucket.pollFirst());
+        idleBytes -= largest;
+        if (bucket.isEmpty()) {
+          idleBuffers.remove(largest);
+        }
+      }
+    }
+    if (!freed.isEmpty()) {
+      Logging.d(TAG, "Freeing " + freed.size() + " idle buffers");
+    }
+    for (ByteBuffer buffer : freed) {
+      JniCommon.nativeFreeByteBuffer(buffer);
+    }
+  }
+
+  /** Frees all idle buffers. Buffers in use are freed when released if over the mark. */
+  public void clear() {
+    trimToSize(0);
+  }
+
+  /**
+   * Reacts to a ComponentCallbacks2.onTrimMemory() level: halves the idle buffers under moderate
+   * pressure and drops them all when memory runs low or the UI is no longer visible.
+   */
+  public void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      clear();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      trimToSize(getIdleBytes() / 2);
+    }
+  }
+
+  /** Number of acquire calls served from idle buffers. */
+  public int getHitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  /** Number of acquire calls that had to allocate. */
+  public int getMissCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  /** Bytes held in idle buffers. */
+  public long getIdleBytes() {
+    synchronized (lock) {
+      return idleBytes;
+    }
+  }
+
+  /** Largest number of bytes handed out at the same time, a hint for the high-water mark. */
+  public long getPeakBytesInUse() {
+    synchronized (lock) {
+      return peakBytesInUse;
+    }
+  }
+
+  /** Rounds |size| up to the next of four evenly spaced steps within its power of two. */
+  static int sizeClass(int size) {
+    if (size <= MIN_SIZE_CLASS) {
+      return MIN_SIZE_CLASS;
+    }
+    final int step = Integer.highestOneBit(size - 1) / 4;
+    return ((size - 1) / step + 1) * step;
+  }
+}
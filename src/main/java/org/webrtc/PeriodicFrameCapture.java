@@ -0,0 +1,135 @@
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * State of one persistent EglRenderer frame listener: the capture interval and the output buffers
+ * that are reused from one delivery to the next. Scheduling runs on the render thread, delivery
+ * either there or on the listener thread, never both at once for the same capture.
+ */
+class PeriodicFrameCapture {
+  final Object listener;
+  final float scale;
+  private final long intervalNs;
+  private long nextCaptureTimeNs;
+
+  // Set while a delivery is posted to the listener thread, the RGBA buffer is in use until then.
+  private volatile boolean deliveryPending;
+
+  @Nullable private ByteBuffer rgbaBuffer;
+  @Nullable private Bitmap bitmap;
+  @Nullable private ByteBuffer i420Data;
+  private int i420Width;
+  private int i420Height;
+  // Set while the wrapped I420 buffer handed to the listener has not been released yet.
+  private volatile boolean i420InUse;
+
+  PeriodicFrameCapture(Object listener, float scale, long intervalNs) {
+    if (!(listener instanceof EglRenderer.FrameListener)
+        && !(listener instanceof EglRenderer.RgbaFrameListener)
+        && !(listener instanceof EglRenderer.I420FrameListener)) {
+      throw new IllegalArgumentException("Unsupported listener: " + listener);
+    }
+    this.listener = listener;
+    this.scale = scale;
+    this.intervalNs = intervalNs;
+  }
+
+  /**
+   * Returns true if a frame should be captured at |currentTimeNs| and advances the schedule.
+   * Captures are skipped while the previous one is still being delivered.
+   */
+  boolean shouldCapture(long currentTimeNs) {
+    if (deliveryPending || currentTimeNs < nextCaptureTimeNs) {
+      return false;
+    }
+    nextCaptureTimeNs = Math.max(nextCaptureTimeNs + intervalNs, currentTimeNs);
+    return true;
+  }
+
+  /** Returns the reused direct buffer to read |width| x |height| RGBA pixels into. */
+  ByteBuffer getRgbaBuffer(int width, int height) {
+    final int size = width * height * 4;
+    if (rgbaBuffer == null || rgbaBuffer.capacity() != size) {
+      rgbaBuffer = ByteBuffer.allocateDirect(size);
+    }
+    rgbaBuffer.clear();
+    return rgbaBuffer;
+  }
+
+  void setDeliveryPending() {
+    deliveryPending = true;
+  }
+
+  /** Called when a capture marked by setDeliveryPending() will not be delivered. */
+  void cancelDelivery() {
+    deliveryPending = false;
+  }
+
+  /**
+   * Delivers the pixels in the buffer returned by getRgbaBuffer() to the listener, converted to the
+   * format the listener takes.
+   */
+  void deliver(int width, int height, long timestampNs) {
+    final ByteBuffer rgba = rgbaBuffer;
+    rgba.rewind();
+    try {
+      if (listener instanceof EglRenderer.RgbaFrameListener) {
+        ((EglRenderer.RgbaFrameListener) listener).onFrame(rgba, width, height, timestampNs);
+      } else if (listener instanceof EglRenderer.I420FrameListener) {
+        final VideoFrame.I420Buffer i420 = toI420(rgba, width, height);
+        try {
+          ((EglRenderer.I420FrameListener) listener).onFrame(i420, timestampNs);
+        } finally {
+          i420.release();
+        }
+      } else {
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+          bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.copyPixelsFromBuffer(rgba);
+        ((EglRenderer.FrameListener) listener).onFrame(bitmap);
+      }
+    } finally {
+      deliveryPending = false;
+    }
+  }
+
+  private VideoFrame.I420Buffer toI420(ByteBuffer rgba, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int uPos = width * height;
+    final int vPos = uPos + chromaWidth * chromaHeight;
+    final int size = vPos + chromaWidth * chromaHeight;
+    // A listener that retains the previous buffer keeps it, the next frame gets a fresh one.
+    if (i420InUse || i420Data == null || i420Width != width || i420Height != height) {
+      i420Data = ByteBuffer.allocateDirect(size);
+      i420Width = width;
+      i420Height = height;
+    }
+    final ByteBuffer data = i420Data;
+    data.clear();
+    data.position(0).limit(uPos);
+    final ByteBuffer dataY = data.slice();
+    data.clear();
+    data.position(uPos).limit(vPos);
+    final ByteBuffer dataU = data.slice();
+    data.clear();
+    data.position(vPos).limit(size);
+    final ByteBuffer dataV = data.slice();
+    data.clear();
+
+    // libyuv ABGR is R, G, B, A in memory, which is what glReadPixels returns for GL_RGBA.
+    YuvHelper.ABGRToI420(rgba, width * 4, dataY, width, dataU, chromaWidth, dataV, chromaWidth,
+        width, height);
+    i420InUse = true;
+    return JavaI420Buffer.wrap(width, height, dataY, width, dataU, chromaWidth, dataV,
+        chromaWidth, () -> {
+          if (i420Data == data) {
+            i420InUse = false;
+          }
+        });
+  }
+}
@@ -19,6 +19,6 @@ public class PlatformSoftwareVideoDecoderFactory extends MediaCodecVideoDecoderF
     };
   
   public PlatformSoftwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext) {
-    super(sharedContext, defaultAllowedPredicate);
+    super(sharedContext, defaultAllowedPredicate, "platform_software_decoder");
   }
 }
@@ -0,0 +1,259 @@
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the most recent encoded frames so the moments before an event can be saved ("instant
+ * replay"). Feed it as an encoder tap, e.g. through RecordingVideoEncoder. The buffer always starts
+ * at a key frame and holds at least |maxDurationMs| of history when whole GOPs allow it, within
+ * |maxBytes|. flush() replays the buffered frames into a sink, such as an EncodedVideoRecorder, and
+ * keeps forwarding new frames for a post-roll period. Frames are copied into NativeByteBufferPool
+ * buffers rather than retained: MediaCodec owns only a handful of output buffers and stalls if they
+ * are held for seconds. Thread safe.
+ */
+public class PreRollBuffer implements VideoEncoder.Callback {
+  private static final String TAG = "PreRollBuffer";
+  private static final VideoEncoder.CodecSpecificInfo EMPTY_CODEC_SPECIFIC_INFO =
+      new VideoEncoder.CodecSpecificInfo();
+  // Marks a post-roll whose end is set by the first frame forwarded.
+  private static final long UNKNOWN_END_TIME = -1;
+
+  private final long maxDurationNs;
+  private final long maxBytes;
+
+  private final Object lock = new Object();
+  // Copies of the buffered frames, oldest first. The first one is always a key frame.
+  private final ArrayDeque<EncodedImage> frames = new ArrayDeque<>(); /* guarded by lock */
+  private final ArrayDeque<Long> keyFrameTimesNs = new ArrayDeque<>(); /* guarded by lock */
+  private long bufferedBytes; /* guarded by lock */
+  private boolean released; /* guarded by lock */
+  @Nullable private VideoEncoder.Callback flushSink; /* guarded by lock */
+  @Nullable private Runnable flushCompleteCallback; /* guarded by lock */
+  private long postRollNs; /* guarded by lock */
+  private long flushEndTimeNs; /* guarded by lock */
+
+  public PreRollBuffer(long maxDurationMs, long maxBytes) {
+    if (maxDurationMs <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("Duration and memory budget must be positive.");
+    }
+    this.maxDurationNs = TimeUnit.MILLISECONDS.toNanos(maxDurationMs);
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public void onEncodedFrame(EncodedImage image, VideoEncoder.CodecSpecificInfo info) {
+    final boolean keyFrame = image.frameType == EncodedImage.FrameType.VideoFrameKey;
+    final int size = image.buffer.remaining();
+    if (size == 0) {
+      return;
+    }
+    Runnable completedFlush = null;
+    synchronized (lock) {
+      if (released) {
+        return;
+      }
+      if (flushSink != null && flushEndTimeNs != UNKNOWN_END_TIME
+          && image.captureTimeNs >= flushEndTimeNs) {
+        completedFlush = finishFlushLocked();
+      }
+      appendLocked(image, info, keyFrame, size);
+    }
+    if (completedFlush != null) {
+      completedFlush.run();
+    }
+  }
+
+  private void appendLocked(
+      EncodedImage image, VideoEncoder.CodecSpecificInfo info, boolean keyFrame, int size) {
+    if (frames.isEmpty() && !keyFrame) {
+      // Nothing decodable to append to.
+      return;
+    }
+    if (size > maxBytes) {
+      Logging.w(TAG, "Frame of " + size + " bytes exceeds the memory budget");
+      clearLocked();
+      return;
+    }
+    final EncodedImage copy = copyOf(image, size);
+    frames.addLast(copy);
+    bufferedBytes += size;
+    if (keyFrame) {
+      keyFrameTimesNs.addLast(image.captureTimeNs);
+    }
+    // Forward before evicting, the sink may retain the copy.
+    if (flushSink != null) {
+      if (flushEndTimeNs == UNKNOWN_END_TIME) {
+        flushEndTimeNs = image.captureTimeNs + postRollNs;
+      }
+      flushSink.onEncodedFrame(copy, info);
+    }
+    evictLocked(image.captureTimeNs);
+  }
+
+  /**
+   * Passes all buffered frames, starting with the oldest key frame, to |sink| on the calling
+   * thread, then keeps passing new frames from the encoder thread until |postRollMs| after the
+   * newest buffered frame. |onComplete| runs once the post-roll is over. The sink must not block
+   * and must take the whole pre-roll at once; for an EncodedVideoRecorder, size maxRetainedFrames
+   * and maxQueuedBytes for the memory budget of this buffer. Only one flush can run at a time.
+   */
+  public void flush(VideoEncoder.Callback sink, long postRollMs, @Nullable Runnable onComplete) {
+    if (postRollMs < 0) {
+      throw new IllegalArgumentException("Invalid post-roll: " + postRollMs);
+    }
+    synchronized (lock) {
+      if (released) {
+        throw new IllegalStateException("Pre-roll buffer is released.");
+      }
+      if (flushSink != null) {
+        throw new IllegalStateException("A flush is already in progress.");
+      }
+      Logging.d(TAG,
+          "Flushing " + frames.size() + " frames, " + bufferedBytes + " bytes, "
+              + getBufferedDurationMsLocked() + " ms");
+      for (EncodedImage frame : frames) {
+        sink.onEncodedFrame(frame, EMPTY_CODEC_SPECIFIC_INFO);
+      }
+      if (postRollMs > 0) {
+        flushSink = sink;
+        flushCompleteCallback = onComplete;
+        postRollNs = TimeUnit.MILLISECONDS.toNanos(postRollMs);
+        flushEndTimeNs =
+            frames.isEmpty() ? UNKNOWN_END_TIME : frames.peekLast().captureTimeNs + postRollNs;
+        return;
+      }
+    }
+    if (onComplete != null) {
+      onComplete.run();
+    }
+  }
+
+  /** Returns true while a flush is forwarding its post-roll. */
+  public boolean isFlushing() {
+    synchronized (lock) {
+      return flushSink != null;
+    }
+  }
+
+  /** Number of frames held. */
+  public int getBufferedFrameCount() {
+    synchronized (lock) {
+      return frames.size();
+    }
+  }
+
+  /** Bytes held in frame copies. */
+  public long getBufferedBytes() {
+    synchronized (lock) {
+      return bufferedBytes;
+    }
+  }
+
+  /** Time between the oldest and the newest frame held. */
+  public long getBufferedDurationMs() {
+    synchronized (lock) {
+      return getBufferedDurationMsLocked();
+    }
+  }
+
+  /** Frees the buffered frames. A running flush ends and its completion callback runs. */
+  public void release() {
+    final Runnable completedFlush;
+    synchronized (lock) {
+      if (released) {
+        return;
+      }
+      released = true;
+      completedFlush = finishFlushLocked();
+      clearLocked();
+    }
+    if (completedFlush != null) {
+      completedFlush.run();
+    }
+  }
+
+  /**
+   * Drops the oldest GOP while the history without it still covers the duration, or while over
+   * the memory budget. A single GOP above the budget is dropped as a whole.
+   */
+  private void evictLocked(long newestTimeNs) {
+    while (keyFrameTimesNs.size() > 1) {
+      final long secondKeyFrameTimeNs = getSecondKeyFrameTimeNsLocked();
+      if (bufferedBytes <= maxBytes && newestTimeNs - secondKeyFrameTimeNs < maxDurationNs) {
+        break;
+      }
+      dropOldestGopLocked();
+    }
+    if (bufferedBytes > maxBytes) {
+      Logging.w(TAG, "GOP exceeds the memory budget, waiting for the next key frame");
+      clearLocked();
+    }
+  }
+
+  private long getSecondKeyFrameTimeNsLocked() {
+    final Iterator<Long> iterator = keyFrameTimesNs.iterator();
+    iterator.next();
+    return iterator.next();
+  }
+
+  private void dropOldestGopLocked() {
+    releaseOldestLocked();
+    keyFrameTimesNs.pollFirst();
+    while (!frames.isEmpty()
+        && frames.peekFirst().frameType != EncodedImage.FrameType.VideoFrameKey) {
+      releaseOldestLocked();
+    }
+  }
+
+  private void releaseOldestLocked() {
+    final EncodedImage frame = frames.pollFirst();
+    bufferedBytes -= frame.buffer.remaining();
+    frame.release();
+  }
+
+  private void clearLocked() {
+    while (!frames.isEmpty()) {
+      releaseOldestLocked();
+    }
+    keyFrameTimesNs.clear();
+  }
+
+  @Nullable
+  private Runnable finishFlushLocked() {
+    if (flushSink == null) {
+      return null;
+    }
+    final Runnable onComplete = flushCompleteCallback;
+    flushSink = null;
+    flushCompleteCallback = null;
+    Logging.d(TAG, "Post-roll finished");
+    return onComplete;
+  }
+
+  private long getBufferedDurationMsLocked() {
+    return frames.isEmpty()
+        ? 0
+        : TimeUnit.NANOSECONDS.toMillis(
+              frames.peekLast().captureTimeNs - frames.peekFirst().captureTimeNs);
+  }
+
+  private static EncodedImage copyOf(EncodedImage image, int size) {
+    final ByteBuffer data = NativeByteBufferPool.INSTANCE.acquire(size);
+    data.put(image.buffer.duplicate());
+    data.flip();
+    return EncodedImage.builder()
+        .setBuffer(data, () -> NativeByteBufferPool.INSTANCE.release(data))
+        .setEncodedWidth(image.encodedWidth)
+        .setEncodedHeight(image.encodedHeight)
+        .setCaptureTimeNs(image.captureTimeNs)
+        .setFrameType(image.frameType)
+        .setRotation(image.rotation)
+        .setCompleteFrame(image.completeFrame)
+        .setQp(image.qp)
+        .createEncodedImage();
+  }
+}
@@ -0,0 +1,63 @@
+package org.webrtc;
+
+/**
+ * VideoEncoder decorator that hands every encoded frame to a tap, such as an EncodedVideoRecorder,
+ * before the regular callback gets it. Only encoders that deliver their output through the Java
+ * callback can be tapped, e.g. HardwareVideoEncoder. Encoders implemented in native code bypass it.
+ */
+public class RecordingVideoEncoder implements VideoEncoder {
+  private final VideoEncoder encoder;
+  private final VideoEncoder.Callback tap;
+
+  /**
+   * |tap| is called on the encoder's output thread and must not block. It may retain the image
+   * but must not modify its buffer.
+   */
+  public RecordingVideoEncoder(VideoEncoder encoder, VideoEncoder.Callback tap) {
+    this.encoder = encoder;
+    this.tap = tap;
+  }
+
+  @Override
+  public boolean isHardwareEncoder() {
+    return encoder.isHardwareEncoder();
+  }
+
+  @Override
+  public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+    return encoder.initEncode(settings, (image, info) -> {
+      tap.onEncodedFrame(image, info);
+      callback.onEncodedFrame(image, info);
+    });
+  }
+
+  @Override
+  public VideoCodecStatus release() {
+    return encoder.release();
+  }
+
+  @Override
+  public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+    return encoder.encode(frame, info);
+  }
+
+  @Override
+  public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+    return encoder.setRateAllocation(allocation, framerate);
+  }
+
+  @Override
+  public ScalingSettings getScalingSettings() {
+    return encoder.getScalingSettings();
+  }
+
+  @Override
+  public ResolutionBitrateLimits[] getResolutionBitrateLimits() {
+    return encoder.getResolutionBitrateLimits();
+  }
+
+  @Override
+  public String getImplementationName() {
+    return encoder.getImplementationName();
+  }
+}
@@ -0,0 +1,18 @@
+package org.webrtc;
+
+/** Receives the result of a SnapshotRequest. Called on the snapshot worker thread. */
+public interface SnapshotCallback {
+  /** Called with the converted frame that matched the request. */
+  void onSnapshot(YuvFrame frame);
+
+  /**
+   * Called instead of onSnapshot when the request asked for JPEG output. |rotation| is the frame
+   * rotation in degrees, the pixels themselves are not rotated.
+   */
+  default void onJpegSnapshot(byte[] jpeg, int width, int height, int rotation, long timestampNs) {
+    onSnapshotError("JPEG snapshots are not handled by this callback.");
+  }
+
+  /** Called when the request could not be served, e.g. because capture stopped. */
+  void onSnapshotError(String error);
+}
@@ -0,0 +1,157 @@
+package org.webrtc;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Asynchronous JPEG encoding stage for snapshots. NV21 frames are queued in a bounded queue and
+ * compressed by a fixed number of worker threads. When the queue is full the oldest job is dropped
+ * and its callback is told so, the submitting thread never waits for an encode.
+ */
+public class SnapshotEncoder {
+  private static final String TAG = "SnapshotEncoder";
+  public static final int DEFAULT_WORKER_COUNT = 1;
+  public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+  private static class Job {
+    final byte[] nv21;
+    final int width;
+    final int height;
+    final int rotation;
+    final long timestampNs;
+    final int quality;
+    final SnapshotCallback callback;
+
+    Job(byte[] nv21, int width, int height, int rotation, long timestampNs, int quality,
+        SnapshotCallback callback) {
+      this.nv21 = nv21;
+      this.width = width;
+      this.height = height;
+      this.rotation = rotation;
+      this.timestampNs = timestampNs;
+      this.quality = quality;
+      this.callback = callback;
+    }
+  }
+
+  private final int queueCapacity;
+  private final Thread[] workers;
+  private final Object lock = new Object();
+  private final ArrayDeque<Job> queue = new ArrayDeque<>(); /* guarded by lock */
+  private boolean released; /* guarded by lock */
+  private int droppedJobs; /* guarded by lock */
+
+  public SnapshotEncoder() {
+    this(DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public SnapshotEncoder(int workerCount, int queueCapacity) {
+    if (workerCount < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Worker count and queue capacity must be positive.");
+    }
+    this.queueCapacity = queueCapacity;
+    this.workers = new Thread[workerCount];
+    for (int i = 0; i < workerCount; ++i) {
+      workers[i] = new Thread(this::runWorker, TAG + i);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Queues an NV21 frame for encoding. The encoder takes ownership of |nv21| and returns it to
+   * FrameBufferArena.INSTANCE when done, so callers must hand over a copy rather than a buffer they
+   * keep using. |rotation| is reported back, not applied.
+   */
+  public void encode(byte[] nv21, int width, int height, int rotation, long timestampNs,
+      int quality, SnapshotCallback callback) {
+    final Job dropped;
+    synchronized (lock) {
+      if (released) {
+        FrameBufferArena.INSTANCE.releaseBytes(nv21);
+        callback.onSnapshotError("Snapshot encoder is released.");
+        return;
+      }
+      dropped = queue.size() >= queueCapacity ? queue.pollFirst() : null;
+      if (dropped != null) {
+        ++droppedJobs;
+      }
+      queue.addLast(new Job(nv21, width, height, rotation, timestampNs, quality, callback));
+      lock.notify();
+    }
+    if (dropped != null) {
+      Logging.w(TAG, "Queue full, dropping oldest snapshot.");
+      FrameBufferArena.INSTANCE.releaseBytes(dropped.nv21);
+      dropped.callback.onSnapshotError("Dropped by snapshot encoder, queue is full.");
+    }
+  }
+
+  /** Returns the number of jobs dropped because the queue was full. */
+  public int getDroppedJobCount() {
+    synchronized (lock) {
+      return droppedJobs;
+    }
+  }
+
+  /** Stops the workers after their current job. Jobs still queued fail with an error. */
+  public void release() {
+    final ArrayDeque<Job> remaining;
+    synchronized (lock) {
+      if (released) {
+        return;
+      }
+      released = true;
+      remaining = new ArrayDeque<>(queue);
+      queue.clear();
+      lock.notifyAll();
+    }
+    for (Job job : remaining) {
+      FrameBufferArena.INSTANCE.releaseBytes(job.nv21);
+      job.callback.onSnapshotError("Snapshot encoder is released.");
+    }
+  }
+
+  private void runWorker() {
+    while (true) {
+      final Job job;
+      synchronized (lock) {
+        while (queue.isEmpty() && !released) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (released) {
+          return;
+        }
+        job = queue.pollFirst();
+      }
+      encodeJob(job);
+    }
+  }
+
+  private static void encodeJob(Job job) {
+    final byte[] jpeg;
+    try {
+      final YuvImage yuvImage =
+          new YuvImage(job.nv21, ImageFormat.NV21, job.width, job.height, null /* strides */);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (!yuvImage.compressToJpeg(new Rect(0, 0, job.width, job.height), job.quality, out)) {
+        job.callback.onSnapshotError("JPEG compression failed.");
+        return;
+      }
+      jpeg = out.toByteArray();
+    } catch (RuntimeException e) {
+      Logging.e(TAG, "Failed to encode snapshot", e);
+      job.callback.onSnapshotError("JPEG compression failed: " + e.getMessage());
+      return;
+    } finally {
+      FrameBufferArena.INSTANCE.releaseBytes(job.nv21);
+    }
+    job.callback.onJpegSnapshot(jpeg, job.width, job.height, job.rotation, job.timestampNs);
+  }
+}
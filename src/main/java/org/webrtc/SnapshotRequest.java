@@ -0,0 +1,61 @@
+package org.webrtc;
+
+/**
+ * Describes a single on-demand frame snapshot. A request is served by the first captured frame that
+ * matches it, and only that frame is converted.
+ */
+public class SnapshotRequest {
+  /** Processing flags passed to YuvFrame, e.g. YuvFrame.PROCESSING_CROP_TO_SQUARE. */
+  public final int processingFlags;
+  /** Frames with a capture timestamp earlier than this are skipped. 0 accepts the next frame. */
+  public final long minTimestampNs;
+  /**
+   * JPEG quality in [1, 100]. When set the snapshot is delivered through
+   * SnapshotCallback.onJpegSnapshot instead of onSnapshot. 0 disables JPEG output.
+   */
+  public final int jpegQuality;
+
+  private SnapshotRequest(int processingFlags, long minTimestampNs, int jpegQuality) {
+    this.processingFlags = processingFlags;
+    this.minTimestampNs = minTimestampNs;
+    this.jpegQuality = jpegQuality;
+  }
+
+  boolean matches(VideoFrame frame) {
+    return frame.getTimestampNs() >= minTimestampNs;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private int processingFlags = YuvFrame.PROCESSING_NONE;
+    private long minTimestampNs;
+    private int jpegQuality;
+
+    private Builder() {}
+
+    public Builder setProcessingFlags(int processingFlags) {
+      this.processingFlags = processingFlags;
+      return this;
+    }
+
+    public Builder setMinTimestampNs(long minTimestampNs) {
+      this.minTimestampNs = minTimestampNs;
+      return this;
+    }
+
+    public Builder setJpegQuality(int jpegQuality) {
+      if (jpegQuality < 0 || jpegQuality > 100) {
+        throw new IllegalArgumentException("JPEG quality must be in [0, 100]: " + jpegQuality);
+      }
+      this.jpegQuality = jpegQuality;
+      return this;
+    }
+
+    public SnapshotRequest build() {
+      return new SnapshotRequest(processingFlags, minTimestampNs, jpegQuality);
+    }
+  }
+}
@@ -2,15 +2,62 @@ package org.webrtc;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VideoFileRenderer implements VideoSink {
   private static final String TAG = "VideoFileRenderer";
   
+  public static final int DEFAULT_FRAME_SLOTS = 4;
+  
+  /** What onFrame() does when every frame slot is waiting for the disk. */
+  public enum BackpressurePolicy {
+    /** Drop the incoming frame. */
+    DROP,
+    /** Block the caller until a slot is written, so no frame is lost. */
+    BLOCK,
+    /**
+     * Halve the frame rate while more than half of the slots are waiting, dropping only when
+     * that is not enough. Y4M cannot change resolution mid-file, so this scales down in time.
+     */
+    DECIMATE
+  }
+  
+  /**
+   * A preallocated output frame. |gather| holds the FRAME header and the Y, U and V planes of
+   * |frame| so a frame goes to disk in one gathering write.
+   */
+  private static class FrameSlot {
+    final ByteBuffer frame;
+    
+    final ByteBuffer[] gather;
+    
+    FrameSlot(int width, int height) {
+      int ySize = width * height;
+      int uvSize = (width / 2) * (height / 2);
+      this.frame = ByteBuffer.allocateDirect(ySize + 2 * uvSize);
+      this.gather = new ByteBuffer[] {
+          ByteBuffer.wrap("FRAME\n".getBytes(Charset.forName("US-ASCII"))),
+          sliceOf(this.frame, 0, ySize),
+          sliceOf(this.frame, ySize, uvSize),
+          sliceOf(this.frame, ySize + uvSize, uvSize) };
+    }
+    
+    private static ByteBuffer sliceOf(ByteBuffer buffer, int position, int length) {
+      ByteBuffer slice = buffer.duplicate();
+      slice.position(position);
+      slice.limit(position + length);
+      return slice.slice();
+    }
+  }
+  
   private final HandlerThread renderThread;
   
   private final Handler renderThreadHandler;
@@ -21,31 +68,70 @@ public class VideoFileRenderer implements VideoSink {
   
   private final FileOutputStream videoOutFile;
   
+  private final FileChannel videoOutChannel;
+  
   private final String outputFileName;
   
   private final int outputFileWidth;
   
   private final int outputFileHeight;
   
-  private final int outputFrameSize;
+  private final int frameSlotCount;
+  
+  private final BackpressurePolicy backpressurePolicy;
   
-  private final ByteBuffer outputFrameBuffer;
+  // Slots free to be filled. Frames in flight never exceed the slot count, however slow the disk.
+  private final ArrayBlockingQueue<FrameSlot> freeSlots;
   
   private EglBase eglBase;
   
   private YuvConverter yuvConverter;
   
-  private int frameCount;
+  private final Object releaseLock = new Object();
+  
+  private volatile boolean released;
+  
+  // Only accessed in onFrame(), which VideoSinks get called on one thread at a time.
+  private boolean skipNextFrame;
+  
+  private final AtomicInteger framesDropped = new AtomicInteger();
   
-  public VideoFileRenderer(String outputFile, int outputFileWidth, int outputFileHeight, final EglBase.Context sharedContext) throws IOException {
+  // Written on the file thread.
+  private volatile int frameCount;
+  
+  private volatile long bytesWritten;
+  
+  private volatile long firstWriteTimeMs;
+  
+  private volatile long lastWriteTimeMs;
+  
+  /**
+   * Drops frames while all DEFAULT_FRAME_SLOTS wait for the disk, so onFrame() never blocks the
+   * caller. Use the other constructor to block instead.
+   */
+  public VideoFileRenderer(String outputFile, int outputFileWidth, int outputFileHeight, EglBase.Context sharedContext) throws IOException {
+    this(outputFile, outputFileWidth, outputFileHeight, sharedContext, DEFAULT_FRAME_SLOTS, BackpressurePolicy.DROP);
+  }
+  
+  /**
+   * |frameSlots| output frames are preallocated and bound the memory used while the disk falls
+   * behind, at which point |backpressurePolicy| decides what happens to new frames.
+   */
+  public VideoFileRenderer(String outputFile, int outputFileWidth, int outputFileHeight, final EglBase.Context sharedContext, int frameSlots, BackpressurePolicy backpressurePolicy) throws IOException {
     if (outputFileWidth % 2 == 1 || outputFileHeight % 2 == 1)
       throw new IllegalArgumentException("Does not support uneven width or height"); 
+    if (frameSlots < 1)
+      throw new IllegalArgumentException("At least one frame slot is needed: " + frameSlots); 
     this.outputFileName = outputFile;
     this.outputFileWidth = outputFileWidth;
     this.outputFileHeight = outputFileHeight;
-    this.outputFrameSize = outputFileWidth * outputFileHeight * 3 / 2;
-    this.outputFrameBuffer = ByteBuffer.allocateDirect(this.outputFrameSize);
+    this.frameSlotCount = frameSlots;
+    this.backpressurePolicy = backpressurePolicy;
+    this.freeSlots = new ArrayBlockingQueue<>(frameSlots);
+    for (int i = 0; i < frameSlots; i++)
+      this.freeSlots.add(new FrameSlot(outputFileWidth, outputFileHeight)); 
     this.videoOutFile = new FileOutputStream(outputFile);
+    this.videoOutChannel = this.videoOutFile.getChannel();
     this.videoOutFile.write(("YUV4MPEG2 C420 W" + outputFileWidth + " H" + outputFileHeight + " Ip F30:1 A1:1\n")
         
         .getBytes(Charset.forName("US-ASCII")));
@@ -66,14 +152,51 @@ public class VideoFileRenderer implements VideoSink {
   }
   
   public void onFrame(VideoFrame frame) {
-    frame.retain();
-    this.renderThreadHandler.post(() -> renderFrameOnRenderThread(frame));
+    if (this.released)
+      return; 
+    FrameSlot slot = acquireSlot();
+    if (slot == null) {
+      this.framesDropped.incrementAndGet();
+      return;
+    } 
+    // release() may have run while acquireSlot() waited. Checking and posting under the lock
+    // release() takes means a posted frame always runs before the render thread quits.
+    synchronized (this.releaseLock) {
+      if (!this.released) {
+        frame.retain();
+        this.renderThreadHandler.post(() -> renderFrameOnRenderThread(frame, slot));
+        return;
+      } 
+    } 
+    this.freeSlots.add(slot);
+  }
+  
+  private FrameSlot acquireSlot() {
+    switch (this.backpressurePolicy) {
+      case BLOCK:
+        try {
+          return this.freeSlots.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        } 
+      case DECIMATE:
+        if (this.freeSlots.size() * 2 < this.frameSlotCount) {
+          this.skipNextFrame = !this.skipNextFrame;
+          if (this.skipNextFrame)
+            return null; 
+        } 
+        return this.freeSlots.poll();
+      default:
+        return this.freeSlots.poll();
+    } 
   }
   
-  private void renderFrameOnRenderThread(VideoFrame frame) {
+  private void renderFrameOnRenderThread(VideoFrame frame, FrameSlot slot) {
     VideoFrame.Buffer buffer = frame.getBuffer();
-    int targetWidth = (frame.getRotation() % 180 == 0) ? this.outputFileWidth : this.outputFileHeight;
-    int targetHeight = (frame.getRotation() % 180 == 0) ? this.outputFileHeight : this.outputFileWidth;
+    int rotation = frame.getRotation();
+    int targetWidth = (rotation % 180 == 0) ? this.outputFileWidth : this.outputFileHeight;
+    int targetHeight = (rotation % 180 == 0) ? this.outputFileHeight : this.outputFileWidth;
     float frameAspectRatio = buffer.getWidth() / buffer.getHeight();
     float fileAspectRatio = targetWidth / targetHeight;
     int cropWidth = buffer.getWidth();
@@ -89,20 +212,55 @@ public class VideoFileRenderer implements VideoSink {
     frame.release();
     VideoFrame.I420Buffer i420 = scaledBuffer.toI420();
     scaledBuffer.release();
-    this.fileThreadHandler.post(() -> {
-          YuvHelper.I420Rotate(i420.getDataY(), i420.getStrideY(), i420.getDataU(), i420.getStrideU(), i420.getDataV(), i420.getStrideV(), this.outputFrameBuffer, i420.getWidth(), i420.getHeight(), frame.getRotation());
-          i420.release();
-          try {
-            this.videoOutFile.write("FRAME\n".getBytes(Charset.forName("US-ASCII")));
-            this.videoOutFile.write(this.outputFrameBuffer.array(), this.outputFrameBuffer.arrayOffset(), this.outputFrameSize);
-          } catch (IOException e) {
-            throw new RuntimeException("Error writing video to disk", e);
-          } 
-          this.frameCount++;
-        });
+    slot.frame.clear();
+    YuvHelper.I420Rotate(i420.getDataY(), i420.getStrideY(), i420.getDataU(), i420.getStrideU(), i420.getDataV(), i420.getStrideV(), slot.frame, i420.getWidth(), i420.getHeight(), rotation);
+    i420.release();
+    this.fileThreadHandler.post(() -> writeFrameOnFileThread(slot));
+  }
+  
+  private void writeFrameOnFileThread(FrameSlot slot) {
+    long size = 0L;
+    for (ByteBuffer part : slot.gather) {
+      part.clear();
+      size += part.remaining();
+    } 
+    try {
+      long written = 0L;
+      while (written < size)
+        written += this.videoOutChannel.write(slot.gather); 
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing video to disk", e);
+    } finally {
+      this.freeSlots.add(slot);
+    } 
+    long nowMs = SystemClock.elapsedRealtime();
+    if (this.frameCount == 0)
+      this.firstWriteTimeMs = nowMs; 
+    this.lastWriteTimeMs = nowMs;
+    this.bytesWritten += size;
+    this.frameCount++;
+  }
+  
+  /** Number of frames written to the file so far. */
+  public int getFramesWritten() {
+    return this.frameCount;
+  }
+  
+  /** Number of frames dropped by the backpressure policy. */
+  public int getFramesDropped() {
+    return this.framesDropped.get();
+  }
+  
+  /** Average write throughput between the first and the last frame written. */
+  public long getBytesPerSecond() {
+    long elapsedMs = this.lastWriteTimeMs - this.firstWriteTimeMs;
+    return (elapsedMs > 0L) ? (this.bytesWritten * 1000L / elapsedMs) : 0L;
   }
   
   public void release() {
+    synchronized (this.releaseLock) {
+      this.released = true;
+    } 
     CountDownLatch cleanupBarrier = new CountDownLatch(1);
     this.renderThreadHandler.post(() -> {
           this.yuvConverter.release();
@@ -114,7 +272,7 @@ public class VideoFileRenderer implements VideoSink {
     this.fileThreadHandler.post(() -> {
           try {
             this.videoOutFile.close();
-            Logging.d("VideoFileRenderer", "Video written to disk as " + this.outputFileName + ". The number of frames is " + this.frameCount + " and the dimensions of the frames are " + this.outputFileWidth + "x" + this.outputFileHeight + ".");
+            Logging.d("VideoFileRenderer", "Video written to disk as " + this.outputFileName + ". The number of frames is " + this.frameCount + " and the dimensions of the frames are " + this.outputFileWidth + "x" + this.outputFileHeight + ". Dropped frames: " + this.framesDropped.get() + ", throughput: " + getBytesPerSecond() + " bytes/s.");
           } catch (IOException e) {
             throw new RuntimeException("Error closing output file", e);
           } 
@@ -3,6 +3,7 @@ package org.webrtc;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
 
@@ -25,22 +26,57 @@ public class VideoFrameDrawer {
   }
   
   private static class YuvUploader {
+    // Sets of three PBOs used in turn, so a plane is never written while the previous upload from
+    // the same PBO may still be in progress.
+    private static final int UPLOAD_PBO_SETS = 2;
+    
     @Nullable
     private ByteBuffer copyBuffer;
     
     @Nullable
     private int[] yuvTextures;
     
+    // Allocated size of each texture, used to upload with glTexSubImage2D when it is unchanged.
+    private final int[] textureWidths = new int[3];
+    
+    private final int[] textureHeights = new int[3];
+    
+    // Whether the context is GLES3, checked once per uploader lifetime. Null until checked.
+    @Nullable
+    private Boolean isGles3;
+    
+    private boolean usePboUpload;
+    
+    @Nullable
+    private int[] uploadPbos;
+    
+    private final int[] uploadPboSizes = new int[3 * UPLOAD_PBO_SETS];
+    
+    private int nextPboSet;
+    
     private YuvUploader() {}
     
+    public void setUsePboUpload(boolean usePboUpload) {
+      this.usePboUpload = usePboUpload;
+    }
+    
+    /**
+     * Uploads the three planes into luminance textures. On GLES3 padded planes are uploaded as
+     * they are by setting GL_UNPACK_ROW_LENGTH to the stride, on GLES2 they are repacked into
+     * |copyBuffer| first. Textures are only reallocated when the plane size changes.
+     */
     @Nullable
     public int[] uploadYuvData(int width, int height, int[] strides, ByteBuffer[] planes) {
       int[] planeWidths = { width, width / 2, width / 2 };
       int[] planeHeights = { height, height / 2, height / 2 };
+      if (this.isGles3 == null)
+        this.isGles3 = Boolean.valueOf(GlUtil.isGles3Context()); 
+      boolean canUseRowLength = this.isGles3.booleanValue();
+      boolean pboUpload = canUseRowLength && this.usePboUpload;
       int copyCapacityNeeded = 0;
       int i;
       for (i = 0; i < 3; i++) {
-        if (strides[i] > planeWidths[i])
+        if (strides[i] > planeWidths[i] && !canUseRowLength)
           copyCapacityNeeded = Math.max(copyCapacityNeeded, planeWidths[i] * planeHeights[i]); 
       } 
       if (copyCapacityNeeded > 0 && (this.copyBuffer == null || this.copyBuffer
@@ -55,17 +91,77 @@ public class VideoFrameDrawer {
         ByteBuffer packedByteBuffer;
         GLES20.glActiveTexture(33984 + i);
         GLES20.glBindTexture(3553, this.yuvTextures[i]);
-        if (strides[i] == planeWidths[i]) {
+        boolean padded = strides[i] != planeWidths[i];
+        if (padded && canUseRowLength)
+          GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, strides[i]); 
+        if (pboUpload && uploadPlaneThroughPbo(i, planes[i], strides[i], planeWidths[i], planeHeights[i])) {
+          if (padded)
+            GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0); 
+          continue;
+        } 
+        if (!padded || canUseRowLength) {
           packedByteBuffer = planes[i];
         } else {
           YuvHelper.copyPlane(planes[i], strides[i], this.copyBuffer, planeWidths[i], planeWidths[i], planeHeights[i]);
           packedByteBuffer = this.copyBuffer;
         } 
-        GLES20.glTexImage2D(3553, 0, 6409, planeWidths[i], planeHeights[i], 0, 6409, 5121, packedByteBuffer);
+        if (this.textureWidths[i] == planeWidths[i] && this.textureHeights[i] == planeHeights[i]) {
+          GLES20.glTexSubImage2D(3553, 0, 0, 0, planeWidths[i], planeHeights[i], 6409, 5121, packedByteBuffer);
+        } else {
+          GLES20.glTexImage2D(3553, 0, 6409, planeWidths[i], planeHeights[i], 0, 6409, 5121, packedByteBuffer);
+          this.textureWidths[i] = planeWidths[i];
+          this.textureHeights[i] = planeHeights[i];
+        } 
+        if (padded && canUseRowLength)
+          GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0); 
       } 
+      if (pboUpload)
+        this.nextPboSet = (this.nextPboSet + 1) % UPLOAD_PBO_SETS; 
       return this.yuvTextures;
     }
     
+    /**
+     * Copies the plane into a pixel unpack buffer and lets the driver transfer it into the bound
+     * texture asynchronously, reading from offset 0 of the PBO. The texture is only reallocated when
+     * the plane size changes, otherwise glTexSubImage2D updates it in place. Returns false if the
+     * PBO could not be mapped, in which case the caller uploads from client memory.
+     */
+    private boolean uploadPlaneThroughPbo(int plane, ByteBuffer data, int stride, int width, int height) {
+      if (this.uploadPbos == null) {
+        this.uploadPbos = new int[3 * UPLOAD_PBO_SETS];
+        GLES20.glGenBuffers(this.uploadPbos.length, this.uploadPbos, 0);
+      } 
+      int index = this.nextPboSet * 3 + plane;
+      // The last row does not need padding.
+      int size = stride * (height - 1) + width;
+      GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, this.uploadPbos[index]);
+      if (this.uploadPboSizes[index] < size) {
+        GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+        this.uploadPboSizes[index] = size;
+      } 
+      ByteBuffer mapped = (ByteBuffer)GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      if (mapped == null) {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        Logging.w("VideoFrameDrawer", "Mapping upload buffer failed, uploading directly.");
+        this.usePboUpload = false;
+        return false;
+      } 
+      ByteBuffer source = data.duplicate();
+      source.limit(source.position() + size);
+      mapped.put(source);
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+      if (this.textureWidths[plane] == width && this.textureHeights[plane] == height) {
+        GLES30.glTexSubImage2D(3553, 0, 0, 0, width, height, 6409, 5121, 0);
+      } else {
+        GLES30.glTexImage2D(3553, 0, 6409, width, height, 0, 6409, 5121, 0);
+        this.textureWidths[plane] = width;
+        this.textureHeights[plane] = height;
+      } 
+      GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+      GlUtil.checkNoGLES2Error("VideoFrameDrawer.uploadPlaneThroughPbo");
+      return true;
+    }
+    
     @Nullable
     public int[] uploadFromBuffer(VideoFrame.I420Buffer buffer) {
       int[] strides = { buffer.getStrideY(), buffer.getStrideU(), buffer.getStrideV() };
@@ -84,6 +180,18 @@ public class VideoFrameDrawer {
         GLES20.glDeleteTextures(3, this.yuvTextures, 0);
         this.yuvTextures = null;
       } 
+      if (this.uploadPbos != null) {
+        GLES20.glDeleteBuffers(this.uploadPbos.length, this.uploadPbos, 0);
+        this.uploadPbos = null;
+      } 
+      for (int i = 0; i < 3; i++) {
+        this.textureWidths[i] = 0;
+        this.textureHeights[i] = 0;
+      } 
+      for (int i = 0; i < this.uploadPboSizes.length; i++)
+        this.uploadPboSizes[i] = 0; 
+      this.nextPboSet = 0;
+      this.isGles3 = null;
     }
   }
   
@@ -164,6 +272,14 @@ public class VideoFrameDrawer {
     } 
   }
   
+  /**
+   * Uploads I420 frames through pixel unpack buffers on GLES3 contexts, so the driver can copy
+   * them into the textures asynchronously. Must be called on the thread that draws.
+   */
+  public void setUsePboUpload(boolean usePboUpload) {
+    this.yuvUploader.setUsePboUpload(usePboUpload);
+  }
+  
   public VideoFrame.Buffer prepareBufferForViewportSize(VideoFrame.Buffer buffer, int width, int height) {
     buffer.retain();
     return buffer;
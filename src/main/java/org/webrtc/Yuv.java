@@ -2,13 +2,33 @@ package org.webrtc;
 
 
 public final class Yuv {
+    private static final String TAG = "Yuv";
     public static final Yuv INSTANCE = new Yuv();
 
+    private static final boolean loaded;
+
     static {
-        System.loadLibrary("yuv");
+        boolean success;
+        try {
+            System.loadLibrary("yuv");
+            success = true;
+        } catch (UnsatisfiedLinkError e) {
+            // Callers fall back to JavaYuvConverter, see isLoaded().
+            Logging.w(TAG, "Failed to load libyuv, using the Java converter", e);
+            success = false;
+        }
+        loaded = success;
+    }
+
+    /**
+     * Whether the native library is available. The native methods must not be called otherwise.
+     * @return true if libyuv was loaded.
+     */
+    public static boolean isLoaded() {
+        return loaded;
     }
 
     /* package */ native void abgrToNv21(byte[] abgr, byte[] nv21, int width, int height);
     /* package */ native void nv21ToAbgr(byte[] nv21, byte[] abgr, int width, int height);
     /* package */ native void nv21Rotate(byte[] src, byte[] dest, int width, int height, int degrees);
-}
\ No newline at end of file
+}
@@ -2,9 +2,23 @@ package org.webrtc;
 
 import android.graphics.Matrix;
 import android.opengl.GLES20;
+import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 public class YuvConverter {
+  /** Receives the result of convertAsync(). The callback owns the buffer and must release it. */
+  public static interface ConversionCallback {
+    void onConverted(VideoFrame.I420Buffer buffer);
+  }
+  
+  /** Number of output buffers kept for reuse by the default constructors. */
+  public static final int DEFAULT_REUSED_OUTPUT_BUFFERS = 2;
+  
+  // Number of PBOs in rotation for convertAsync().
+  private static final int ASYNC_READBACK_SLOTS = 2;
+  
+
   private static final String FRAGMENT_SHADER = "uniform vec2 xUnit;\nuniform vec4 coeffs;\n\nvoid main() {\n  gl_FragColor.r = coeffs.a + dot(coeffs.rgb,\n      sample(tc - 1.5 * xUnit).rgb);\n  gl_FragColor.g = coeffs.a + dot(coeffs.rgb,\n      sample(tc - 0.5 * xUnit).rgb);\n  gl_FragColor.b = coeffs.a + dot(coeffs.rgb,\n      sample(tc + 0.5 * xUnit).rgb);\n  gl_FragColor.a = coeffs.a + dot(coeffs.rgb,\n      sample(tc + 1.5 * xUnit).rgb);\n}\n";
   
   private static class ShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
@@ -60,12 +74,39 @@ public class YuvConverter {
   
   private final VideoFrameDrawer videoFrameDrawer;
   
+  private final int maxReusedOutputBuffers;
+  
+  private final Object outputBufferLock = new Object();
+  
+  // Output buffers returned by released I420 buffers, all of |outputBufferSize| bytes.
+  private final ArrayDeque<ByteBuffer> freeOutputBuffers = new ArrayDeque<>();
+  
+  private int outputBufferSize;
+  
+  @Nullable
+  private GlPboReader pboReader;
+  
+  private boolean pboReaderChecked;
+  
   public YuvConverter() {
     this(new VideoFrameDrawer());
   }
   
   public YuvConverter(VideoFrameDrawer videoFrameDrawer) {
+    this(videoFrameDrawer, DEFAULT_REUSED_OUTPUT_BUFFERS);
+  }
+  
+  /**
+   * Up to |maxReusedOutputBuffers| native output buffers are recycled: when a converted I420 buffer
+   * is released its memory is kept for the next conversion of the same size instead of being
+   * freed. Conversions while all of them are still held downstream allocate a new buffer. 0
+   * allocates and frees a buffer for every conversion.
+   */
+  public YuvConverter(VideoFrameDrawer videoFrameDrawer, int maxReusedOutputBuffers) {
+    if (maxReusedOutputBuffers < 0)
+      throw new IllegalArgumentException("Invalid buffer count: " + maxReusedOutputBuffers); 
     this.videoFrameDrawer = videoFrameDrawer;
+    this.maxReusedOutputBuffers = maxReusedOutputBuffers;
     this.threadChecker.detachThread();
   }
   
@@ -76,9 +117,62 @@ public class YuvConverter {
     int frameWidth = preparedBuffer.getWidth();
     int frameHeight = preparedBuffer.getHeight();
     int stride = (frameWidth + 7) / 8 * 8;
+    int totalHeight = frameHeight + (frameHeight + 1) / 2;
+    ByteBuffer i420ByteBuffer = acquireOutputBuffer(stride * totalHeight);
+    drawI420(preparedBuffer, stride);
+    GLES20.glReadPixels(0, 0, this.i420TextureFrameBuffer.getWidth(), this.i420TextureFrameBuffer.getHeight(), 6408, 5121, i420ByteBuffer);
+    GlUtil.checkNoGLES2Error("YuvConverter.convert");
+    GLES20.glBindFramebuffer(36160, 0);
+    preparedBuffer.release();
+    return wrapOutputBuffer(i420ByteBuffer, frameWidth, frameHeight, stride);
+  }
+  
+  /**
+   * Like convert(), but on GLES3 contexts the pixels are read back through a pixel pack buffer and
+   * |callback| runs on a later convertAsync() or flushAsyncConversions() call once the GPU is done,
+   * so the readback overlaps with rendering the next frame instead of stalling on it. Without
+   * GLES3 the conversion is synchronous and |callback| runs before this returns. Must be called on
+   * the converter thread, which is also where callbacks run.
+   */
+  public void convertAsync(VideoFrame.TextureBuffer inputTextureBuffer, ConversionCallback callback) {
+    this.threadChecker.checkIsOnValidThread();
+    GlPboReader reader = getPboReader();
+    if (reader == null) {
+      callback.onConverted(convert(inputTextureBuffer));
+      return;
+    } 
+    reader.processReadbacks(false);
+    VideoFrame.TextureBuffer preparedBuffer = (VideoFrame.TextureBuffer)this.videoFrameDrawer.prepareBufferForViewportSize(inputTextureBuffer, inputTextureBuffer
+        .getWidth(), inputTextureBuffer.getHeight());
+    int frameWidth = preparedBuffer.getWidth();
+    int frameHeight = preparedBuffer.getHeight();
+    int stride = (frameWidth + 7) / 8 * 8;
+    drawI420(preparedBuffer, stride);
+    reader.readPixels(this.i420TextureFrameBuffer.getWidth(), this.i420TextureFrameBuffer.getHeight(), (pixels, width, height) -> {
+          ByteBuffer i420ByteBuffer = acquireOutputBuffer(width * 4 * height);
+          i420ByteBuffer.put(pixels);
+          callback.onConverted(wrapOutputBuffer(i420ByteBuffer, frameWidth, frameHeight, stride));
+        });
+    GLES20.glBindFramebuffer(36160, 0);
+    preparedBuffer.release();
+  }
+  
+  /**
+   * Delivers finished asynchronous conversions. With |wait| it blocks until all pending ones are
+   * delivered, e.g. when no further frame is expected.
+   */
+  public void flushAsyncConversions(boolean wait) {
+    this.threadChecker.checkIsOnValidThread();
+    if (this.pboReader != null)
+      this.pboReader.processReadbacks(wait); 
+  }
+  
+  /** Draws the Y, U and V planes of |preparedBuffer| and leaves the I420 framebuffer bound. */
+  private void drawI420(VideoFrame.TextureBuffer preparedBuffer, int stride) {
+    int frameWidth = preparedBuffer.getWidth();
+    int frameHeight = preparedBuffer.getHeight();
     int uvHeight = (frameHeight + 1) / 2;
     int totalHeight = frameHeight + uvHeight;
-    ByteBuffer i420ByteBuffer = JniCommon.nativeAllocateByteBuffer(stride * totalHeight);
     int viewportWidth = stride / 4;
     Matrix renderMatrix = new Matrix();
     renderMatrix.preTranslate(0.5F, 0.5F);
@@ -93,33 +187,90 @@ public class YuvConverter {
     VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight, 0, frameHeight, viewportWidth / 2, uvHeight);
     this.shaderCallbacks.setPlaneV();
     VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight, viewportWidth / 2, frameHeight, viewportWidth / 2, uvHeight);
-    GLES20.glReadPixels(0, 0, this.i420TextureFrameBuffer.getWidth(), this.i420TextureFrameBuffer.getHeight(), 6408, 5121, i420ByteBuffer);
-    GlUtil.checkNoGLES2Error("YuvConverter.convert");
-    GLES20.glBindFramebuffer(36160, 0);
+  }
+  
+  private VideoFrame.I420Buffer wrapOutputBuffer(ByteBuffer i420ByteBuffer, int frameWidth, int frameHeight, int stride) {
+    int uvHeight = (frameHeight + 1) / 2;
     int yPos = 0;
     int uPos = 0 + stride * frameHeight;
     int vPos = uPos + stride / 2;
+    i420ByteBuffer.clear();
     i420ByteBuffer.position(0);
     i420ByteBuffer.limit(0 + stride * frameHeight);
     ByteBuffer dataY = i420ByteBuffer.slice();
+    i420ByteBuffer.clear();
     i420ByteBuffer.position(uPos);
     int uvSize = stride * (uvHeight - 1) + stride / 2;
     i420ByteBuffer.limit(uPos + uvSize);
     ByteBuffer dataU = i420ByteBuffer.slice();
+    i420ByteBuffer.clear();
     i420ByteBuffer.position(vPos);
     i420ByteBuffer.limit(vPos + uvSize);
     ByteBuffer dataV = i420ByteBuffer.slice();
-    preparedBuffer.release();
-    return JavaI420Buffer.wrap(frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride, () -> JniCommon.nativeFreeByteBuffer(i420ByteBuffer));
+    return JavaI420Buffer.wrap(frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride, () -> releaseOutputBuffer(i420ByteBuffer));
+  }
+  
+  private ByteBuffer acquireOutputBuffer(int size) {
+    synchronized (this.outputBufferLock) {
+      if (size != this.outputBufferSize) {
+        freeOutputBuffersLocked();
+        this.outputBufferSize = size;
+      } 
+      ByteBuffer buffer = this.freeOutputBuffers.pollFirst();
+      if (buffer != null) {
+        buffer.clear();
+        return buffer;
+      } 
+    } 
+    return JniCommon.nativeAllocateByteBuffer(size);
+  }
+  
+  // Called from the release callback of converted buffers, on any thread.
+  private void releaseOutputBuffer(ByteBuffer buffer) {
+    synchronized (this.outputBufferLock) {
+      if (buffer.capacity() == this.outputBufferSize && this.freeOutputBuffers.size() < this.maxReusedOutputBuffers) {
+        this.freeOutputBuffers.addLast(buffer);
+        return;
+      } 
+    } 
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+  
+  private void freeOutputBuffersLocked() {
+    for (ByteBuffer buffer : this.freeOutputBuffers)
+      JniCommon.nativeFreeByteBuffer(buffer); 
+    this.freeOutputBuffers.clear();
+  }
+  
+  @Nullable
+  private GlPboReader getPboReader() {
+    if (!this.pboReaderChecked) {
+      this.pboReaderChecked = true;
+      if (GlPboReader.isSupported()) {
+        this.pboReader = new GlPboReader(ASYNC_READBACK_SLOTS);
+      } else {
+        Logging.w("YuvConverter", "Asynchronous conversion needs GLES3, converting synchronously.");
+      } 
+    } 
+    return this.pboReader;
   }
   
   public void release() {
     this.threadChecker.checkIsOnValidThread();
+    if (this.pboReader != null) {
+      this.pboReader.processReadbacks(true);
+      this.pboReader.release();
+      this.pboReader = null;
+    } 
+    this.pboReaderChecked = false;
+    synchronized (this.outputBufferLock) {
+      freeOutputBuffersLocked();
+      // Buffers still held downstream are freed when they are released.
+      this.outputBufferSize = 0;
+    } 
     this.drawer.release();
     this.i420TextureFrameBuffer.release();
     this.videoFrameDrawer.release();
     this.threadChecker.detachThread();
   }
-
-
 }
@@ -1,18 +1,21 @@
 package org.webrtc;
 
 public enum YuvFormat {
-    NV21 {
-        @Override
-        public int getDataSize(final int width, final int height) {
-            return width * height + ((width + 1) / 2 * (height + 1) / 2) * 2;
-        }
-    };
+    /** Y plane followed by interleaved V/U samples. */
+    NV21,
+    /** Y plane followed by interleaved U/V samples. */
+    NV12,
+    /** Y plane followed by separate U and V planes. */
+    I420;
 
     /**
      * calculate Data Size.
+     * All supported formats are 4:2:0 with packed strides, so they share the same size.
      * @param width Width
      * @param height Height
      * @return Data Size
      */
-    public abstract int getDataSize(int width, int height);
+    public int getDataSize(final int width, final int height) {
+        return width * height + ((width + 1) / 2) * ((height + 1) / 2) * 2;
+    }
 }
@@ -10,13 +10,16 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.util.Base64;
-import android.util.Log;
 
 // TODO: project should include org.webrtc:google-webrtc from Google
 import org.webrtc.VideoFrame;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 // TODO: project should include io.github.zncmn.libyuv:core:0.0.7 from Maven
 
@@ -123,6 +126,31 @@ public class YuvFrame
 	}
 
 
+	/**
+	 * Returns the pixel data to the FrameBufferArena and clears this frame. Unlike dispose(), the caller must not keep
+	 * any reference to nv21Buffer afterwards, since the array will be handed out again.
+	 */
+	public void recycle()
+	{
+		synchronized ( planeLock )
+		{
+			FrameBufferArena.INSTANCE.releaseBytes( nv21Buffer );
+			nv21Buffer = null;
+		}
+	}
+
+
+	/**
+	 * Returns a Bitmap obtained from getBitmap() to the FrameBufferArena so later snapshots can reuse it.
+	 * The Bitmap must not be used afterwards.
+	 * @param bitmap Bitmap returned by getBitmap().
+	 */
+	public static void recycleBitmap( final Bitmap bitmap )
+	{
+		FrameBufferArena.INSTANCE.releaseBitmap( bitmap );
+	}
+
+
 	public boolean hasData()
 	{
 		return nv21Buffer != null;
@@ -154,48 +182,21 @@ public class YuvFrame
 			width = i420Buffer.getWidth();
 			height = i420Buffer.getHeight();
 
-			// Calculate sizes needed to convert to NV21 buffer format
-			final int size = width * height;
-			final int chromaStride = width;
-			final int chromaWidth = ( width + 1 ) / 2;
-			final int chromaHeight = ( height + 1 ) / 2;
-			final int nv21Size = size + chromaStride * chromaHeight;
+			// NV21 keeps a packed luma plane followed by interleaved VU rows.
+			final int nv21Size = YuvFormat.NV21.getDataSize( width, height );
 
 			if ( nv21Buffer == null || nv21Buffer.length != nv21Size )
 			{
-				nv21Buffer = new byte[nv21Size];
+				FrameBufferArena.INSTANCE.releaseBytes( nv21Buffer );
+				nv21Buffer = FrameBufferArena.INSTANCE.acquireBytes( nv21Size );
 			}
 
-			final ByteBuffer yPlane = i420Buffer.getDataY();
-			final ByteBuffer uPlane = i420Buffer.getDataU();
-			final ByteBuffer vPlane = i420Buffer.getDataV();
-			final int yStride = i420Buffer.getStrideY();
-			final int uStride = i420Buffer.getStrideU();
-			final int vStride = i420Buffer.getStrideV();
-
 			// Populate a buffer in NV21 format because that's what the converter wants
-			for ( int y = 0; y < height; y++ )
-			{
-				for ( int x = 0; x < width; x++ )
-				{
-					nv21Buffer[y * width + x] = yPlane.get( y * yStride + x );
-				}
-			}
-
-			for ( int y = 0; y < chromaHeight; y++ )
-			{
-				for ( int x = 0; x < chromaWidth; x++ )
-				{
-					// Swapping U and V values here because it makes the image the right color
-
-					// Store V
-					nv21Buffer[size + y * chromaStride + 2 * x + 1] = uPlane.get( y * uStride + x );
-
-					// Store U
-					nv21Buffer[size + y * chromaStride + 2 * x] = vPlane.get( y * vStride + x );
-				}
-			}
+			YuvPlaneCopier.copyI420ToNV21( i420Buffer, nv21Buffer );
 		}
+
+		// toI420() hands out a new reference that must be returned once the planes are copied.
+		i420Buffer.release();
 	}
 
 
@@ -240,99 +241,230 @@ public class YuvFrame
 
 	/**
 	 * Converts this YUV frame to an ARGB_8888 Bitmap. Applies stored rotation.
-	 * @return A new Bitmap containing the converted frame.
+	 * Scratch buffers come from the FrameBufferArena; pass the result to recycleBitmap() once done with it.
+	 * @return A Bitmap containing the converted frame.
 	 */
 	public Bitmap getBitmap()
 	{
+		return getBitmap( false );
+	}
 
-		Log.i(TAG, "getBitmap:nv21Buffer=" + nv21Buffer);
-		Log.i(TAG, "getBitmap:width=" + width);
-		Log.i(TAG, "getBitmap:height=" + height);
-		if ( nv21Buffer == null )
-		{
-			return null;
-		}
-
-		// Calculate the size of the frame
-		final int size = width * height;
 
-		// Allocate an array to hold the ARGB pixel data
-		final byte[] argbBytes = new byte[size * 4];
+	/**
+	 * Converts this YUV frame to an ARGB_8888 Bitmap. Rotation and mirroring are applied to the NV21 planes before
+	 * the ARGB conversion, so the converter writes straight into a Bitmap of the final size.
+	 * Scratch buffers come from the FrameBufferArena; pass the result to recycleBitmap() once done with it.
+	 * @param mirror Whether to flip the rotated image horizontally, e.g. for front facing cameras.
+	 * @return A Bitmap containing the converted frame.
+	 */
+	public Bitmap getBitmap( final boolean mirror )
+	{
+		synchronized ( planeLock )
+		{
+			if ( nv21Buffer == null )
+			{
+				return null;
+			}
 
-		// Use the converter (based on WebRTC source) to change to ARGB format
-		toARGB( nv21Buffer, argbBytes, width, height, YuvFormat.NV21 );
+			final int nv21Size = YuvFormat.NV21.getDataSize( width, height );
+			final int degrees = ( ( rotationDegree % 360 ) + 360 ) % 360;
+			final boolean swapDimensions = ( degrees == 90 || degrees == 270 );
+			final int outWidth = swapDimensions ? height : width;
+			final int outHeight = swapDimensions ? width : height;
 
+			// Rotate in NV21 space, a quarter of the bytes an ARGB rotation would touch.
+			byte[] yuv = nv21Buffer;
+			byte[] rotated = null;
+			if ( degrees != 0 )
+			{
+				rotated = FrameBufferArena.INSTANCE.acquireBytes( nv21Size );
+				if ( Yuv.isLoaded() )
+				{
+					Yuv.INSTANCE.nv21Rotate( nv21Buffer, rotated, width, height, degrees );
+				}
+				else
+				{
+					YuvPlaneCopier.rotateNV21( nv21Buffer, rotated, width, height, degrees );
+				}
+				yuv = rotated;
+			}
 
-		 //Bitmap bitmap = BitmapFactory.decodeByteArray(nv21Buffer, 0, argbBytes.length);
-		//String myBase64Image = encodeToBase64(bitmap, Bitmap.CompressFormat.JPEG, 100);
+			byte[] mirrored = null;
+			if ( mirror )
+			{
+				mirrored = FrameBufferArena.INSTANCE.acquireBytes( nv21Size );
+				YuvPlaneCopier.copyNV21Mirrored( yuv, mirrored, outWidth, outHeight );
+				yuv = mirrored;
+			}
 
-		// Construct a Bitmap based on the new pixel data
-		Bitmap bitmap = Bitmap.createBitmap( width, height, Bitmap.Config.ARGB_8888 );
-		//Bitmap bitmap = Bitmap.createBitmap(BitmapFactory.decodeByteArray(nv21Buffer, 0, nv21Buffer.length));
-		//bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888 );
-		bitmap.copyPixelsFromBuffer( ByteBuffer.wrap( argbBytes ) );
+			// Borrow an array to hold the ARGB pixel data
+			final byte[] argbBytes = FrameBufferArena.INSTANCE.acquireBytes( outWidth * outHeight * 4 );
 
-		//return BitmapFactory.decodeByteArray(nv21Buffer, 0, nv21Buffer.length);
+			// Use the converter (based on WebRTC source) to change to ARGB format
+			toARGB( yuv, argbBytes, outWidth, outHeight, YuvFormat.NV21 );
+			FrameBufferArena.INSTANCE.releaseBytes( rotated );
+			FrameBufferArena.INSTANCE.releaseBytes( mirrored );
 
-		// If necessary, generate a rotated version of the Bitmap
-		if ( rotationDegree == 90 || rotationDegree == -270 )
-		{
-			final Matrix m = new Matrix();
-			m.postRotate( 90 );
+			// Construct a Bitmap based on the new pixel data
+			final Bitmap bitmap = FrameBufferArena.INSTANCE.acquireBitmap( outWidth, outHeight );
+			bitmap.copyPixelsFromBuffer( ByteBuffer.wrap( argbBytes ) );
+			FrameBufferArena.INSTANCE.releaseBytes( argbBytes );
 
-			return Bitmap.createBitmap( bitmap, 0, 0, width, height, m, true );
+			return bitmap;
 		}
-		else if ( rotationDegree == 180 || rotationDegree == -180 )
-		{
-			final Matrix m = new Matrix();
-			m.postRotate( 180 );
+	}
 
-			return Bitmap.createBitmap( bitmap, 0, 0, width, height, m, true );
+	public static String encodeBitmapToBase64(Bitmap image, Bitmap.CompressFormat compressFormat, int quality)
+	{
+		// Compress straight into the Base64 encoder instead of keeping the compressed bytes around as well.
+		final ByteArrayOutputStream base64OS = new ByteArrayOutputStream();
+		final Base64EncodingOutputStream encoder = new Base64EncodingOutputStream(base64OS, null);
+		try {
+			image.compress(compressFormat, quality, encoder);
+			encoder.finish();
+			return base64OS.toString("US-ASCII");
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
 		}
-		else if ( rotationDegree == 270 || rotationDegree == -90 )
-		{
-			final Matrix m = new Matrix();
-			m.postRotate( 270 );
+	}
 
-			return Bitmap.createBitmap( bitmap, 0, 0, width, height, m, true );
+	public static Bitmap decodeBase64ToBitmap(String base64Bitmap)
+	{
+		byte[] decodedBytes = Base64.decode(base64Bitmap, 0);
+		return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+	}
+
+	/**
+	 * Encodes this frame as JPEG straight from the NV21 planes, without an ARGB conversion or a Bitmap. The stored
+	 * rotation is written as EXIF orientation rather than applied to the pixels.
+	 * @param out Destination stream. Written a byte at a time, so pass a buffered stream.
+	 * @param quality JPEG quality in [1, 100].
+	 * @param scaleDivisor Integer downscale factor, 1 keeps the full resolution.
+	 * @return false if this frame holds no data.
+	 */
+	public boolean writeJpeg( final OutputStream out, final int quality, final int scaleDivisor ) throws IOException
+	{
+		synchronized ( planeLock )
+		{
+			if ( nv21Buffer == null )
+			{
+				return false;
+			}
+			new JpegEncoder( quality ).encode( nv21Buffer, YuvFormat.NV21, width, height, rotationDegree, scaleDivisor, out );
+			return true;
 		}
-		else
+	}
+
+
+	/**
+	 * Same as writeJpeg(), but the stored rotation is applied to the pixels. For output that is decoded with
+	 * BitmapFactory, e.g. by decodeBase64ToBitmap(), which ignores the EXIF orientation. The rotation is done in NV21
+	 * space like in getBitmap().
+	 */
+	private boolean writeRotatedJpeg( final OutputStream out, final int quality, final int scaleDivisor ) throws IOException
+	{
+		synchronized ( planeLock )
 		{
-			// Don't rotate, just return the Bitmap
-			return bitmap;
+			if ( nv21Buffer == null )
+			{
+				return false;
+			}
+			final int degrees = ( ( rotationDegree % 360 ) + 360 ) % 360;
+			if ( degrees == 0 )
+			{
+				new JpegEncoder( quality ).encode( nv21Buffer, YuvFormat.NV21, width, height, 0, scaleDivisor, out );
+				return true;
+			}
+			final boolean swapDimensions = ( degrees == 90 || degrees == 270 );
+			final byte[] rotated = FrameBufferArena.INSTANCE.acquireBytes( YuvFormat.NV21.getDataSize( width, height ) );
+			try
+			{
+				if ( Yuv.isLoaded() )
+				{
+					Yuv.INSTANCE.nv21Rotate( nv21Buffer, rotated, width, height, degrees );
+				}
+				else
+				{
+					YuvPlaneCopier.rotateNV21( nv21Buffer, rotated, width, height, degrees );
+				}
+				new JpegEncoder( quality ).encode( rotated, YuvFormat.NV21, swapDimensions ? height : width,
+						swapDimensions ? width : height, 0, scaleDivisor, out );
+			}
+			finally
+			{
+				FrameBufferArena.INSTANCE.releaseBytes( rotated );
+			}
+			return true;
 		}
 	}
 
-	public static String encodeBitmapToBase64(Bitmap image, Bitmap.CompressFormat compressFormat, int quality)
+	/**
+	 * Streams this frame as a Base64 encoded JPEG into a caller supplied sink. The JPEG is encoded from the NV21 planes
+	 * and Base64 encoded chunk by chunk, so neither the JPEG nor its Base64 form is ever held in memory in full.
+	 * Unlike writeJpeg(), the rotation is applied to the pixels, so decodeBase64ToBitmap() shows it upright.
+	 * The sink is not closed.
+	 * @param sink Destination for the Base64 text.
+	 * @param quality JPEG quality in [1, 100].
+	 * @param scaleDivisor Integer downscale factor, 1 keeps the full resolution.
+	 * @param listener Optional, told the running count of Base64 bytes written.
+	 * @return The number of Base64 bytes written, or -1 if this frame holds no data.
+	 */
+	public long writeJpegBase64( final OutputStream sink, final int quality, final int scaleDivisor,
+	                             final Base64EncodingOutputStream.ByteCountListener listener ) throws IOException
 	{
-		ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream();
-		image.compress(compressFormat, quality, byteArrayOS);
-		return Base64.encodeToString(byteArrayOS.toByteArray(), Base64.DEFAULT);
+		final Base64EncodingOutputStream encoder = new Base64EncodingOutputStream( sink, listener );
+		if ( !writeRotatedJpeg( encoder, quality, scaleDivisor ) )
+		{
+			return -1;
+		}
+		encoder.finish();
+		return encoder.getBytesWritten();
 	}
 
-	public static Bitmap decodeBase64ToBitmap(String base64Bitmap)
+
+	/**
+	 * Same as writeJpegBase64(OutputStream, ...) for channel sinks such as files, sockets or a pooled ByteBuffer
+	 * behind a channel. The channel is not closed.
+	 */
+	public long writeJpegBase64( final WritableByteChannel sink, final int quality, final int scaleDivisor,
+	                             final Base64EncodingOutputStream.ByteCountListener listener ) throws IOException
 	{
-		byte[] decodedBytes = Base64.decode(base64Bitmap, 0);
-		return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+		return writeJpegBase64( Channels.newOutputStream( sink ), quality, scaleDivisor, listener );
 	}
 
-	public String getBitmapBase64() {
-		Bitmap bitmap = getBitmap();
-		Log.i(TAG, "getBitmapBase64:bitmap=" + bitmap);
-		if (bitmap == null) return null;
 
-		String myBase64Image = encodeBitmapToBase64(bitmap, Bitmap.CompressFormat.JPEG, 100);
-		Log.d("Log", "onPictureTaken - wrote bytes: " + myBase64Image);
-		return myBase64Image;
+	/**
+	 * Returns this frame as a Base64 encoded JPEG with the rotation applied to the pixels, see writeJpegBase64().
+	 * Prefer writeJpegBase64() for large frames, this builds the whole String in memory.
+	 */
+	public String getBitmapBase64() {
+		final ByteArrayOutputStream base64OS = new ByteArrayOutputStream();
+		try {
+			if (writeJpegBase64(base64OS, 100, 1, null) < 0) return null;
+			return base64OS.toString("US-ASCII");
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
+		}
 	}
 
+	/**
+	 * Converts a packed YUV frame to the byte order Bitmap.Config.ARGB_8888 expects. NV21 goes through the native
+	 * libyuv when it is loaded, everything else and any frame without the native library uses JavaYuvConverter.
+	 */
 	public void toARGB(final byte[] yuv, final byte[] argb, final int width, final int height, final YuvFormat format) {
-		if (format == YuvFormat.NV21) {
+		if (format == YuvFormat.NV21 && Yuv.isLoaded()) {
 			Yuv.INSTANCE.nv21ToAbgr(yuv, argb, width, height);
 		} else {
-			throw new UnsupportedOperationException("not supported format. " + format);
+			JavaYuvConverter.convert(yuv, format, width, height, argb, JavaYuvConverter.RgbFormat.ABGR);
 		}
 	}
+	/**
+	 * @deprecated Round-trips through JPEG twice on the calling thread. Request a JPEG snapshot
+	 * through CameraCapturer.requestSnapshot, which encodes on a SnapshotEncoder worker instead.
+	 */
+	@Deprecated
 	public static Bitmap convertBitmap(byte[] data, Camera camera) {
 		Camera.Size previewSize = camera.getParameters().getPreviewSize();
 		YuvImage yuvimage = new YuvImage(
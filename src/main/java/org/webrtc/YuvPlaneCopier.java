@@ -0,0 +1,176 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies and interleaves YUV planes from (possibly padded) ByteBuffers into byte arrays. Rows are
+ * moved with bulk ByteBuffer transfers instead of one bounds-checked get() per pixel, and a plane
+ * whose source and destination are both packed is moved in a single transfer.
+ */
+public final class YuvPlaneCopier {
+  private YuvPlaneCopier() {}
+
+  /**
+   * Copies a |width| x |height| plane from |src| into |dst|. The source is read relative to its
+   * current position, which is left untouched.
+   */
+  public static void copyPlane(ByteBuffer src, int srcStride, byte[] dst, int dstOffset,
+      int dstStride, int width, int height) {
+    checkPlane(src, srcStride, width, height);
+    final ByteBuffer in = src.duplicate();
+    final int srcBase = in.position();
+    if (srcStride == width && dstStride == width) {
+      in.get(dst, dstOffset, width * height);
+      return;
+    }
+    for (int y = 0; y < height; ++y) {
+      in.position(srcBase + y * srcStride);
+      in.get(dst, dstOffset + y * dstStride, width);
+    }
+  }
+
+  /**
+   * Interleaves two chroma planes into a semi-planar plane, |first| landing on even bytes and
+   * |second| on odd bytes. For NV21 pass V then U, for NV12 pass U then V. |dstStride| is in bytes
+   * and must be at least 2 * |chromaWidth|.
+   */
+  public static void interleavePlanes(ByteBuffer first, int firstStride, ByteBuffer second,
+      int secondStride, byte[] dst, int dstOffset, int dstStride, int chromaWidth,
+      int chromaHeight) {
+    checkPlane(first, firstStride, chromaWidth, chromaHeight);
+    checkPlane(second, secondStride, chromaWidth, chromaHeight);
+    final ByteBuffer inFirst = first.duplicate();
+    final ByteBuffer inSecond = second.duplicate();
+    final int firstBase = inFirst.position();
+    final int secondBase = inSecond.position();
+    // Bulk-read one row of each plane, then interleave from the arrays where the loop is cheap.
+    final byte[] firstRow = new byte[chromaWidth];
+    final byte[] secondRow = new byte[chromaWidth];
+    for (int y = 0; y < chromaHeight; ++y) {
+      inFirst.position(firstBase + y * firstStride);
+      inFirst.get(firstRow, 0, chromaWidth);
+      inSecond.position(secondBase + y * secondStride);
+      inSecond.get(secondRow, 0, chromaWidth);
+      int out = dstOffset + y * dstStride;
+      for (int x = 0; x < chromaWidth; ++x) {
+        dst[out++] = firstRow[x];
+        dst[out++] = secondRow[x];
+      }
+    }
+  }
+
+  /**
+   * Copies an I420 buffer into |dst| as NV21 with packed strides: a |width| luma stride followed by
+   * interleaved VU rows of 2 * chromaWidth bytes. |dst| must hold YuvFormat.NV21.getDataSize().
+   */
+  public static void copyI420ToNV21(VideoFrame.I420Buffer src, byte[] dst) {
+    final int width = src.getWidth();
+    final int height = src.getHeight();
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    if (dst.length < YuvFormat.NV21.getDataSize(width, height)) {
+      throw new IllegalArgumentException("Destination is too small for a " + width + "x" + height
+          + " NV21 frame: " + dst.length);
+    }
+    copyPlane(src.getDataY(), src.getStrideY(), dst, 0, width, width, height);
+    interleavePlanes(src.getDataV(), src.getStrideV(), src.getDataU(), src.getStrideU(), dst,
+        width * height, 2 * chromaWidth, chromaWidth, chromaHeight);
+  }
+
+  /**
+   * Copies a packed NV21 (or NV12) frame into |dst| flipped horizontally. Chroma samples are moved
+   * as pairs so the V/U order is kept. Each chroma pair is taken from the column of the mirrored
+   * luma sample it covers, so odd widths stay aligned with the luma plane.
+   */
+  public static void copyNV21Mirrored(byte[] src, byte[] dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int size = YuvFormat.NV21.getDataSize(width, height);
+    if (src.length < size || dst.length < size) {
+      throw new IllegalArgumentException("Buffers are too small for a " + width + "x" + height
+          + " NV21 frame: " + src.length + ", " + dst.length);
+    }
+    for (int y = 0; y < height; ++y) {
+      final int row = y * width;
+      for (int x = 0; x < width; ++x) {
+        dst[row + x] = src[row + width - 1 - x];
+      }
+    }
+    final int chromaStride = 2 * chromaWidth;
+    for (int y = 0; y < chromaHeight; ++y) {
+      final int row = width * height + y * chromaStride;
+      for (int x = 0; x < chromaWidth; ++x) {
+        // Luma column 2 * x comes from width - 1 - 2 * x, take the chroma that covered it.
+        final int from = row + 2 * ((width - 1 - 2 * x) / 2);
+        dst[row + 2 * x] = src[from];
+        dst[row + 2 * x + 1] = src[from + 1];
+      }
+    }
+  }
+
+  /**
+   * Rotates a packed NV21 (or NV12) frame clockwise by |degrees| (0, 90, 180 or 270) into |dst|.
+   * Java counterpart of Yuv.nv21Rotate for when the native library is not available.
+   */
+  public static void rotateNV21(byte[] src, byte[] dst, int width, int height, int degrees) {
+    final int size = YuvFormat.NV21.getDataSize(width, height);
+    if (src.length < size || dst.length < size) {
+      throw new IllegalArgumentException("Buffers are too small for a " + width + "x" + height
+          + " NV21 frame: " + src.length + ", " + dst.length);
+    }
+    rotatePlane(src, 0, width, height, 1, dst, 0, degrees);
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    // Treat each V/U pair as one sample so the interleaving survives the rotation.
+    rotatePlane(src, width * height, chromaWidth, chromaHeight, 2, dst, width * height, degrees);
+  }
+
+  private static void rotatePlane(byte[] src, int srcOffset, int width, int height,
+      int bytesPerSample, byte[] dst, int dstOffset, int degrees) {
+    final boolean swap = degrees == 90 || degrees == 270;
+    final int dstWidth = swap ? height : width;
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        final int dstX;
+        final int dstY;
+        switch (degrees) {
+          case 0:
+            dstX = x;
+            dstY = y;
+            break;
+          case 90:
+            dstX = height - 1 - y;
+            dstY = x;
+            break;
+          case 180:
+            dstX = width - 1 - x;
+            dstY = height - 1 - y;
+            break;
+          case 270:
+            dstX = y;
+            dstY = width - 1 - x;
+            break;
+          default:
+            throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        }
+        final int from = srcOffset + (y * width + x) * bytesPerSample;
+        final int to = dstOffset + (dstY * dstWidth + dstX) * bytesPerSample;
+        for (int i = 0; i < bytesPerSample; ++i) {
+          dst[to + i] = src[from + i];
+        }
+      }
+    }
+  }
+
+  private static void checkPlane(ByteBuffer plane, int stride, int width, int height) {
+    if (stride < width) {
+      throw new IllegalArgumentException("Stride " + stride + " is smaller than width " + width);
+    }
+    // The last row does not necessarily need padding.
+    final int minSize = height == 0 ? 0 : stride * (height - 1) + width;
+    if (plane.remaining() < minSize) {
+      throw new IllegalArgumentException(
+          "Plane must be at least " + minSize + " bytes, but was " + plane.remaining());
+    }
+  }
+}
@@ -6,6 +6,7 @@ import android.media.audiofx.NoiseSuppressor;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import java.util.UUID;
+import org.webrtc.DeviceCapabilityCache;
 import org.webrtc.Logging;
 
 class WebRtcAudioEffects {
@@ -138,7 +139,7 @@ class WebRtcAudioEffects {
   private static AudioEffect.Descriptor[] getAvailableEffects() {
     if (cachedEffects != null)
       return cachedEffects; 
-    cachedEffects = AudioEffect.queryEffects();
+    cachedEffects = DeviceCapabilityCache.getInstance().getAudioEffects(AudioEffect::queryEffects);
     return cachedEffects;
   }
   
@@ -7,6 +7,7 @@ import android.os.Build;
 import android.support.annotation.Nullable;
 import java.util.List;
 import java.util.UUID;
+import org.webrtc.DeviceCapabilityCache;
 import org.webrtc.Logging;
 
 public class WebRtcAudioEffects {
@@ -199,7 +200,7 @@ public class WebRtcAudioEffects {
   private static AudioEffect.Descriptor[] getAvailableEffects() {
     if (cachedEffects != null)
       return cachedEffects; 
-    cachedEffects = AudioEffect.queryEffects();
+    cachedEffects = DeviceCapabilityCache.getInstance().getAudioEffects(AudioEffect::queryEffects);
     return cachedEffects;
   }
   
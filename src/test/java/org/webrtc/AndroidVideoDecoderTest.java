@@ -0,0 +1,364 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.media.MediaCodecInfo;
+import android.os.SystemClock;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class AndroidVideoDecoderTest {
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 32;
+  private static final int ENCODED_FRAME_SIZE = 100;
+  private static final int CHROMA_SIZE = WIDTH * HEIGHT / 4;
+  private static final long DELIVERY_TIMEOUT_MS = 5000;
+  private static final VideoDecoder.Settings SETTINGS =
+      new VideoDecoder.Settings(1 /* numberOfCores */, WIDTH, HEIGHT);
+  private static final VideoDecoder.DecodeInfo DECODE_INFO =
+      new VideoDecoder.DecodeInfo(false /* isMissingFrames */, 0 /* renderTimeMs */);
+  // Long enough for another thread to free an input buffer in the meantime.
+  private static final long INPUT_WAIT_BUDGET_US = TimeUnit.SECONDS.toMicros(5);
+  private static final long CONSUME_DELAY_MS = 50;
+  // Steps of the fake clock while release() waits for borrowed output buffers.
+  private static final long CLOCK_STEP_MS = 100;
+
+  /** Decoded frames are not needed by these tests, they are dropped right away. */
+  private static class DroppingCallback implements VideoDecoder.Callback {
+    @Override
+    public void onDecodedFrame(VideoFrame frame, Integer decodeTimeMs, Integer qp) {}
+  }
+
+  /** Keeps the decoded frames, the test decides when they are released. */
+  private static class RetainingCallback implements VideoDecoder.Callback {
+    final LinkedBlockingQueue<VideoFrame> frames = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onDecodedFrame(VideoFrame frame, Integer decodeTimeMs, Integer qp) {
+      frame.retain();
+      frames.offer(frame);
+    }
+
+    VideoFrame poll() throws InterruptedException {
+      final VideoFrame frame = frames.poll(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull("No frame decoded", frame);
+      return frame;
+    }
+  }
+
+  private FakeMediaCodecWrapper fakeCodec;
+  private AndroidVideoDecoder decoder;
+  private long nextTimestampNs;
+
+  @Before
+  public void setUp() {
+    fakeCodec = new FakeMediaCodecWrapper(1 /* inputBufferCount */, ENCODED_FRAME_SIZE,
+        4 /* outputBufferCount */, WIDTH * HEIGHT * 3 / 2);
+  }
+
+  @After
+  public void tearDown() {
+    if (decoder != null) {
+      decoder.release();
+    }
+  }
+
+  private AndroidVideoDecoder createDecoder(
+      int maxBorrowedOutputBuffers, int maxQueuedInputFrames, long inputWaitBudgetUs) {
+    return new AndroidVideoDecoder(codecName -> fakeCodec, "org.webrtc.fakedecoder",
+        VideoCodecMimeType.VP8, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+        null /* sharedContext */, maxBorrowedOutputBuffers, maxQueuedInputFrames,
+        inputWaitBudgetUs) {
+      // JavaI420Buffer.allocate() and YuvHelper need the native library.
+      @Override
+      protected VideoFrame.I420Buffer allocateI420Buffer(int width, int height) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        return JavaI420Buffer.wrap(width, height, ByteBuffer.allocateDirect(width * height),
+            width, ByteBuffer.allocateDirect(chromaWidth * chromaHeight), chromaWidth,
+            ByteBuffer.allocateDirect(chromaWidth * chromaHeight), chromaWidth,
+            null /* releaseCallback */);
+      }
+
+      @Override
+      protected void copyPlane(
+          ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height) {
+        for (int y = 0; y < height; ++y) {
+          for (int x = 0; x < width; ++x) {
+            dst.put(y * dstStride + x, src.get(y * srcStride + x));
+          }
+        }
+      }
+    };
+  }
+
+  private RetainingCallback initDecoder(int maxBorrowedOutputBuffers) {
+    final RetainingCallback callback = new RetainingCallback();
+    decoder = createDecoder(maxBorrowedOutputBuffers, 0 /* maxQueuedInputFrames */,
+        0 /* inputWaitBudgetUs */);
+    assertEquals(VideoCodecStatus.OK, decoder.initDecode(SETTINGS, callback));
+    return callback;
+  }
+
+  private void initQueuedDecoder(int maxQueuedInputFrames, long inputWaitBudgetUs) {
+    decoder = createDecoder(0 /* maxBorrowedOutputBuffers */, maxQueuedInputFrames,
+        inputWaitBudgetUs);
+    assertEquals(VideoCodecStatus.OK, decoder.initDecode(SETTINGS, new DroppingCallback()));
+  }
+
+  /** Encoded frame whose bytes all equal |value|, in a buffer the test owns. */
+  private EncodedImage encodedFrame(EncodedImage.FrameType frameType, int value) {
+    nextTimestampNs += TimeUnit.MILLISECONDS.toNanos(33);
+    final ByteBuffer data = ByteBuffer.allocateDirect(ENCODED_FRAME_SIZE);
+    for (int i = 0; i < ENCODED_FRAME_SIZE; ++i) {
+      data.put(i, (byte) value);
+    }
+    return EncodedImage.builder()
+        .setBuffer(data, null /* releaseCallback */)
+        .setEncodedWidth(WIDTH)
+        .setEncodedHeight(HEIGHT)
+        .setCaptureTimeNs(nextTimestampNs)
+        .setFrameType(frameType)
+        .setCompleteFrame(true)
+        .createEncodedImage();
+  }
+
+  private EncodedImage keyFrame(int value) {
+    return encodedFrame(EncodedImage.FrameType.VideoFrameKey, value);
+  }
+
+  private EncodedImage deltaFrame(int value) {
+    return encodedFrame(EncodedImage.FrameType.VideoFrameDelta, value);
+  }
+
+  private static byte[] frameData(int value) {
+    final byte[] data = new byte[ENCODED_FRAME_SIZE];
+    Arrays.fill(data, (byte) value);
+    return data;
+  }
+
+  /** Packed I420 codec output with all of Y equal to |value|, U to |value| + 1, V to + 2. */
+  private static byte[] decodedData(int value) {
+    final byte[] data = new byte[WIDTH * HEIGHT + 2 * CHROMA_SIZE];
+    Arrays.fill(data, 0, WIDTH * HEIGHT, (byte) value);
+    Arrays.fill(data, WIDTH * HEIGHT, WIDTH * HEIGHT + CHROMA_SIZE, (byte) (value + 1));
+    Arrays.fill(data, WIDTH * HEIGHT + CHROMA_SIZE, data.length, (byte) (value + 2));
+    return data;
+  }
+
+  /** Decodes |frame| and lets the fake codec output decodedData(|value|) for it. */
+  private VideoFrame decodeFrame(RetainingCallback callback, EncodedImage frame, int value)
+      throws InterruptedException {
+    assertEquals(VideoCodecStatus.OK, decoder.decode(frame, DECODE_INFO));
+    fakeCodec.addOutputData(decodedData(value), frame.captureTimeNs / 1000, 0 /* flags */);
+    final VideoFrame decoded = callback.poll();
+    // The output thread is done with the output buffer once it polls again.
+    fakeCodec.waitForOutputIdle();
+    return decoded;
+  }
+
+  private static void assertPlane(ByteBuffer plane, int stride, int width, int height, int value) {
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        assertEquals((byte) value, plane.get(y * stride + x));
+      }
+    }
+  }
+
+  private static void assertDecodedFrame(VideoFrame frame, EncodedImage encoded, int value) {
+    assertEquals(encoded.captureTimeNs, frame.getTimestampNs());
+    final VideoFrame.I420Buffer buffer = frame.getBuffer().toI420();
+    assertEquals(WIDTH, buffer.getWidth());
+    assertEquals(HEIGHT, buffer.getHeight());
+    assertPlane(buffer.getDataY(), buffer.getStrideY(), WIDTH, HEIGHT, value);
+    assertPlane(buffer.getDataU(), buffer.getStrideU(), WIDTH / 2, HEIGHT / 2, value + 1);
+    assertPlane(buffer.getDataV(), buffer.getStrideV(), WIDTH / 2, HEIGHT / 2, value + 2);
+    buffer.release();
+  }
+
+  /** Lets the input queue take copies without the native allocator. */
+  private static void fillBufferPool(int count) {
+    for (int i = 0; i < count; ++i) {
+      NativeByteBufferPool.INSTANCE.release(
+          ByteBuffer.allocateDirect(NativeByteBufferPool.sizeClass(ENCODED_FRAME_SIZE)));
+    }
+  }
+
+  private static int bufferPoolRequests() {
+    return NativeByteBufferPool.INSTANCE.getHitCount()
+        + NativeByteBufferPool.INSTANCE.getMissCount();
+  }
+
+  private void assertQueuedInput(EncodedImage... frames) {
+    final List<FakeMediaCodecWrapper.QueuedInputData> queued = fakeCodec.getQueuedInputData();
+    assertEquals(frames.length, queued.size());
+    for (int i = 0; i < frames.length; ++i) {
+      assertEquals(frames[i].captureTimeNs / 1000, queued.get(i).presentationTimestampUs);
+    }
+  }
+
+  @Test
+  public void testCopiedOutputReturnsCodecBufferRightAway() throws InterruptedException {
+    final RetainingCallback callback = initDecoder(0 /* maxBorrowedOutputBuffers */);
+    final EncodedImage frame = keyFrame(1);
+
+    final VideoFrame decoded = decodeFrame(callback, frame, 10);
+    assertEquals(0, fakeCodec.getOutputBuffersInUse());
+    assertDecodedFrame(decoded, frame, 10);
+    assertQueuedInput(frame);
+    assertArrayEquals(frameData(1), fakeCodec.getQueuedInputData().get(0).data);
+    decoded.release();
+  }
+
+  @Test
+  public void testBorrowedOutputIsReturnedWhenFrameIsReleased() throws InterruptedException {
+    final RetainingCallback callback = initDecoder(1 /* maxBorrowedOutputBuffers */);
+    final EncodedImage first = keyFrame(1);
+    final EncodedImage second = deltaFrame(2);
+
+    final VideoFrame borrowed = decodeFrame(callback, first, 10);
+    assertEquals(1, fakeCodec.getOutputBuffersInUse());
+    // The limit is reached, so the next frame is copied and its output buffer is returned.
+    final VideoFrame copied = decodeFrame(callback, second, 20);
+    assertEquals(1, fakeCodec.getOutputBuffersInUse());
+    assertDecodedFrame(borrowed, first, 10);
+    assertDecodedFrame(copied, second, 20);
+
+    final int releaseCalls = fakeCodec.getReleaseOutputBufferCalls();
+    borrowed.release();
+    assertEquals(releaseCalls + 1, fakeCodec.getReleaseOutputBufferCalls());
+    assertEquals(0, fakeCodec.getOutputBuffersInUse());
+    copied.release();
+  }
+
+  @Test
+  public void testReleaseAbandonsBorrowedOutputHeldDownstream() throws InterruptedException {
+    final RetainingCallback callback = initDecoder(1 /* maxBorrowedOutputBuffers */);
+    final VideoFrame held = decodeFrame(callback, keyFrame(1), 10);
+
+    // The wait for borrowed buffers is bounded by SystemClock, which only advances when told to.
+    final Thread clock = new Thread(() -> {
+      while (fakeCodec.getState() != FakeMediaCodecWrapper.State.RELEASED) {
+        SystemClock.sleep(CLOCK_STEP_MS);
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    });
+    clock.start();
+    assertEquals(VideoCodecStatus.OK, decoder.release());
+    decoder = null;
+    clock.join();
+    assertEquals(FakeMediaCodecWrapper.State.RELEASED, fakeCodec.getState());
+
+    // The index belongs to the stopped codec now, so releasing the frame must not hand it back.
+    final int releaseCalls = fakeCodec.getReleaseOutputBufferCalls();
+    held.release();
+    assertEquals(releaseCalls, fakeCodec.getReleaseOutputBufferCalls());
+  }
+
+  @Test
+  public void testQueuedModeFeedsFreeInputBufferWithoutCopy() {
+    initQueuedDecoder(2 /* maxQueuedInputFrames */, INPUT_WAIT_BUDGET_US);
+    final int poolRequests = bufferPoolRequests();
+
+    final EncodedImage frame = keyFrame(1);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(frame, DECODE_INFO));
+
+    assertQueuedInput(frame);
+    assertArrayEquals(frameData(1), fakeCodec.getQueuedInputData().get(0).data);
+    assertEquals(0, decoder.getInputQueueDepth());
+    assertEquals(poolRequests, bufferPoolRequests());
+  }
+
+  @Test
+  public void testQueuedModeFeedsInputBufferFreedDuringWaitWithoutCopy()
+      throws InterruptedException {
+    initQueuedDecoder(2 /* maxQueuedInputFrames */, INPUT_WAIT_BUDGET_US);
+    final EncodedImage first = keyFrame(1);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(first, DECODE_INFO));
+    final int poolRequests = bufferPoolRequests();
+
+    // The only input buffer is busy until the codec consumes the first frame during the wait.
+    final Thread consumer = fakeCodec.consumeInputBufferLater(CONSUME_DELAY_MS);
+    final EncodedImage second = deltaFrame(2);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(second, DECODE_INFO));
+    consumer.join();
+
+    assertQueuedInput(first, second);
+    assertArrayEquals(frameData(2), fakeCodec.getQueuedInputData().get(1).data);
+    assertEquals(0, decoder.getInputQueueDepth());
+    assertEquals(poolRequests, bufferPoolRequests());
+  }
+
+  @Test
+  public void testQueuedFramesAreCopiedAndFedInOrder() throws InterruptedException {
+    fillBufferPool(2);
+    initQueuedDecoder(2 /* maxQueuedInputFrames */, 0 /* inputWaitBudgetUs */);
+    final EncodedImage first = keyFrame(1);
+    final EncodedImage second = deltaFrame(2);
+    final EncodedImage third = deltaFrame(3);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(first, DECODE_INFO));
+    assertEquals(VideoCodecStatus.OK, decoder.decode(second, DECODE_INFO));
+    assertEquals(VideoCodecStatus.OK, decoder.decode(third, DECODE_INFO));
+    assertEquals(2, decoder.getInputQueueDepth());
+    // The queue holds copies, the caller may reuse its buffers once decode() returns.
+    second.buffer.put(0, (byte) 0);
+    third.buffer.put(0, (byte) 0);
+
+    // The output thread feeds a queued frame whenever the codec frees an input buffer.
+    fakeCodec.consumeInputBuffer();
+    fakeCodec.waitForQueuedInput(2);
+    fakeCodec.consumeInputBuffer();
+    fakeCodec.waitForQueuedInput(3);
+
+    assertQueuedInput(first, second, third);
+    final List<FakeMediaCodecWrapper.QueuedInputData> queued = fakeCodec.getQueuedInputData();
+    assertArrayEquals(frameData(2), queued.get(1).data);
+    assertArrayEquals(frameData(3), queued.get(2).data);
+    assertEquals(0, decoder.getInputQueueDepth());
+    assertEquals(2, decoder.getMaxInputQueueDepth());
+  }
+
+  @Test
+  public void testQueueOverflowDropsQueueAndWaitsForKeyFrame() throws InterruptedException {
+    fillBufferPool(3);
+    initQueuedDecoder(2 /* maxQueuedInputFrames */, 0 /* inputWaitBudgetUs */);
+    final EncodedImage first = keyFrame(1);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(first, DECODE_INFO));
+    assertEquals(VideoCodecStatus.OK, decoder.decode(deltaFrame(2), DECODE_INFO));
+    assertEquals(VideoCodecStatus.OK, decoder.decode(deltaFrame(3), DECODE_INFO));
+
+    // A delta frame that does not fit drops the queue, and the decoder needs a key frame.
+    assertEquals(VideoCodecStatus.ERROR, decoder.decode(deltaFrame(4), DECODE_INFO));
+    assertEquals(1, decoder.getInputQueueOverflowCount());
+    assertEquals(0, decoder.getInputQueueDepth());
+    assertEquals(VideoCodecStatus.NO_OUTPUT, decoder.decode(deltaFrame(5), DECODE_INFO));
+    final EncodedImage keyFrame = keyFrame(6);
+    assertEquals(VideoCodecStatus.OK, decoder.decode(keyFrame, DECODE_INFO));
+    assertEquals(1, decoder.getInputQueueDepth());
+
+    fakeCodec.consumeInputBuffer();
+    fakeCodec.waitForQueuedInput(2);
+    assertQueuedInput(first, keyFrame);
+    assertArrayEquals(frameData(6), fakeCodec.getQueuedInputData().get(1).data);
+  }
+}
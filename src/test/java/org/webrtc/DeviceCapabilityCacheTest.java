@@ -0,0 +1,181 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+public class DeviceCapabilityCacheTest {
+  private static final String DEVICE_KEY = "vendor/device/1:10/QP1A/1234:user/release-keys|29|7";
+  private static final String UPDATED_DEVICE_KEY =
+      "vendor/device/1:11/RP1A/5678:user/release-keys|30|7";
+  private static final String CODECS_KEY = "encoder/false/true";
+  private static final String CAMERA_KEY = "camera1/0";
+
+  private File file;
+  private final AtomicInteger codecLoads = new AtomicInteger();
+  private final AtomicInteger formatLoads = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("webrtc_device_capabilities", ".bin");
+    // The cache treats an existing file as written by a previous run.
+    assertTrue(file.delete());
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  private static List<VideoCodecInfo> codecs() {
+    final Map<String, String> h264Params = new HashMap<>();
+    h264Params.put("level-asymmetry-allowed", "1");
+    h264Params.put("packetization-mode", "1");
+    h264Params.put("profile-level-id", "640c1f");
+    return Arrays.asList(new VideoCodecInfo("VP8", new HashMap<>()),
+        new VideoCodecInfo("H264", h264Params));
+  }
+
+  private static List<CaptureFormat> captureFormats() {
+    return Arrays.asList(new CaptureFormat(1280, 720, 15000, 30000),
+        new CaptureFormat(640, 480, 7000, 30000), new CaptureFormat(320, 240, 30000, 30000));
+  }
+
+  private List<VideoCodecInfo> getCodecs(DeviceCapabilityCache cache) {
+    return cache.getSupportedCodecs(CODECS_KEY, () -> {
+      codecLoads.incrementAndGet();
+      return codecs();
+    });
+  }
+
+  private List<CaptureFormat> getCaptureFormats(DeviceCapabilityCache cache) {
+    return cache.getCaptureFormats(CAMERA_KEY, () -> {
+      formatLoads.incrementAndGet();
+      return captureFormats();
+    });
+  }
+
+  /** Fills the cache file through a first cache instance. */
+  private void populateFile() {
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(captureFormats(), getCaptureFormats(cache));
+    assertEquals(2, cache.getColdLookupCount());
+    assertTrue(file.exists());
+    codecLoads.set(0);
+    formatLoads.set(0);
+  }
+
+  @Test
+  public void testValuesRoundTripThroughFile() {
+    populateFile();
+
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(captureFormats(), getCaptureFormats(cache));
+    assertEquals(0, codecLoads.get());
+    assertEquals(0, formatLoads.get());
+    assertEquals(0, cache.getColdLookupCount());
+    assertEquals(2, cache.getWarmLookupCount());
+  }
+
+  @Test
+  public void testLookupsReturnCopies() {
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    getCodecs(cache);
+    final List<VideoCodecInfo> first = getCodecs(cache);
+    first.clear();
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(1, codecLoads.get());
+  }
+
+  @Test
+  public void testEmptyResultsAreNotCached() {
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    for (int i = 0; i < 2; ++i) {
+      assertTrue(cache.getCaptureFormats(CAMERA_KEY, () -> {
+        formatLoads.incrementAndGet();
+        return new ArrayList<>();
+      }).isEmpty());
+    }
+    assertEquals(2, formatLoads.get());
+  }
+
+  @Test
+  public void testNewFingerprintDiscardsFile() {
+    populateFile();
+
+    final DeviceCapabilityCache updated = new DeviceCapabilityCache(file, UPDATED_DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(updated));
+    assertEquals(1, codecLoads.get());
+    // The entry queried before the update is gone as well.
+    assertEquals(captureFormats(), getCaptureFormats(updated));
+    assertEquals(1, formatLoads.get());
+
+    // The file now belongs to the new fingerprint.
+    final DeviceCapabilityCache reloaded = new DeviceCapabilityCache(file, UPDATED_DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(reloaded));
+    assertEquals(1, codecLoads.get());
+  }
+
+  @Test
+  public void testTruncatedFileIsDiscarded() throws IOException {
+    populateFile();
+    try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+      truncated.setLength(truncated.length() - 5);
+    }
+
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(captureFormats(), getCaptureFormats(cache));
+    assertEquals(1, codecLoads.get());
+    assertEquals(1, formatLoads.get());
+
+    // Querying again rewrote a valid file.
+    final DeviceCapabilityCache reloaded = new DeviceCapabilityCache(file, DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(reloaded));
+    assertEquals(1, codecLoads.get());
+  }
+
+  @Test
+  public void testGarbageFileIsDiscarded() throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write("not a capability cache".getBytes("US-ASCII"));
+    }
+
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(1, codecLoads.get());
+    assertEquals(1, cache.getColdLookupCount());
+  }
+
+  @Test
+  public void testInvalidateDeletesFile() {
+    populateFile();
+    final DeviceCapabilityCache cache = new DeviceCapabilityCache(file, DEVICE_KEY);
+    cache.invalidate();
+    assertTrue(!file.exists());
+    assertEquals(codecs(), getCodecs(cache));
+    assertEquals(1, codecLoads.get());
+  }
+}
@@ -0,0 +1,493 @@
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaCrypto;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fake MediaCodecWrapper for JVM tests. Records the input the code under test queues and lets the
+ * test produce output, in synchronous and in asynchronous mode. Input buffers stay in the codec
+ * until the test consumes them, which makes input back pressure deterministic.
+ */
+class FakeMediaCodecWrapper implements MediaCodecWrapper {
+  enum State { UNINITIALIZED, CONFIGURED, EXECUTING, STOPPED, RELEASED }
+
+  /** Arguments of a queueInputBuffer() call and a copy of the bytes it queued. */
+  static class QueuedInputData {
+    final int index;
+    final int offset;
+    final int size;
+    final long presentationTimestampUs;
+    final int flags;
+    final byte[] data;
+
+    QueuedInputData(int index, int offset, int size, long presentationTimestampUs, int flags,
+        byte[] data) {
+      this.index = index;
+      this.offset = offset;
+      this.size = size;
+      this.presentationTimestampUs = presentationTimestampUs;
+      this.flags = flags;
+      this.data = data;
+    }
+  }
+
+  private static class PendingOutput {
+    final int index;
+    final MediaCodec.BufferInfo info;
+
+    PendingOutput(int index, MediaCodec.BufferInfo info) {
+      this.index = index;
+      this.info = info;
+    }
+  }
+
+  private static final long CALLBACK_TIMEOUT_MS = 5000;
+
+  private final Object lock = new Object();
+  private final ByteBuffer[] inputBuffers;
+  private final ByteBuffer[] outputBuffers;
+  // Input buffers the codec can hand out.
+  private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>(); /* guarded by lock */
+  // Input buffers queued and not consumed yet, oldest first.
+  private final ArrayDeque<Integer> inputBuffersInCodec = new ArrayDeque<>(); /* guarded by lock */
+  private final ArrayDeque<Integer> freeOutputBuffers = new ArrayDeque<>(); /* guarded by lock */
+  // Output waiting for dequeueOutputBuffer() in synchronous mode.
+  private final ArrayDeque<PendingOutput> pendingOutputs = new ArrayDeque<>(); /* guarded by lock */
+  private final List<QueuedInputData> queuedInputData = new ArrayList<>(); /* guarded by lock */
+  private final List<Bundle> parameters = new ArrayList<>(); /* guarded by lock */
+  private State state = State.UNINITIALIZED; /* guarded by lock */
+  @Nullable private MediaFormat configuredFormat; /* guarded by lock */
+  @Nullable private RuntimeException configureException; /* guarded by lock */
+  @Nullable private AsyncCallback asyncCallback; /* guarded by lock */
+  @Nullable private Handler asyncHandler; /* guarded by lock */
+  @Nullable private Thread stopThread; /* guarded by lock */
+  @Nullable private Thread releaseThread; /* guarded by lock */
+  @Nullable private Thread dequeueOutputThread; /* guarded by lock */
+  private int releaseOutputBufferCalls; /* guarded by lock */
+  // dequeueOutputBuffer() calls blocked waiting for output.
+  private int waitingDequeueOutputCalls; /* guarded by lock */
+
+  FakeMediaCodecWrapper(
+      int inputBufferCount, int inputBufferSize, int outputBufferCount, int outputBufferSize) {
+    inputBuffers = new ByteBuffer[inputBufferCount];
+    for (int i = 0; i < inputBufferCount; ++i) {
+      inputBuffers[i] = ByteBuffer.allocateDirect(inputBufferSize);
+      freeInputBuffers.addLast(i);
+    }
+    outputBuffers = new ByteBuffer[outputBufferCount];
+    for (int i = 0; i < outputBufferCount; ++i) {
+      outputBuffers[i] = ByteBuffer.allocateDirect(outputBufferSize);
+      freeOutputBuffers.addLast(i);
+    }
+  }
+
+  /** Makes the next configure() call throw |e|. */
+  void setConfigureException(RuntimeException e) {
+    synchronized (lock) {
+      configureException = e;
+    }
+  }
+
+  State getState() {
+    synchronized (lock) {
+      return state;
+    }
+  }
+
+  @Nullable
+  MediaFormat getConfiguredFormat() {
+    synchronized (lock) {
+      return configuredFormat;
+    }
+  }
+
+  List<QueuedInputData> getQueuedInputData() {
+    synchronized (lock) {
+      return new ArrayList<>(queuedInputData);
+    }
+  }
+
+  @Nullable
+  Thread getStopThread() {
+    synchronized (lock) {
+      return stopThread;
+    }
+  }
+
+  @Nullable
+  Thread getReleaseThread() {
+    synchronized (lock) {
+      return releaseThread;
+    }
+  }
+
+  /** The Bundle of every setParameters() call, in order. */
+  List<Bundle> getParameters() {
+    synchronized (lock) {
+      return new ArrayList<>(parameters);
+    }
+  }
+
+  /** The thread that last called dequeueOutputBuffer(). */
+  @Nullable
+  Thread getDequeueOutputThread() {
+    synchronized (lock) {
+      return dequeueOutputThread;
+    }
+  }
+
+  /** Number of releaseOutputBuffer() calls, including those the codec state rejected. */
+  int getReleaseOutputBufferCalls() {
+    synchronized (lock) {
+      return releaseOutputBufferCalls;
+    }
+  }
+
+  /** Number of output buffers the code under test has not released yet. */
+  int getOutputBuffersInUse() {
+    synchronized (lock) {
+      return outputBuffers.length - freeOutputBuffers.size() - pendingOutputs.size();
+    }
+  }
+
+  /** Finishes reading the oldest queued input buffer and gives it back to the client. */
+  void consumeInputBuffer() {
+    synchronized (lock) {
+      final Integer index = inputBuffersInCodec.pollFirst();
+      if (index == null) {
+        throw new IllegalStateException("No input buffer in the codec.");
+      }
+      returnInputBufferLocked(index);
+    }
+  }
+
+  /** Consumes the oldest queued input buffer after |delayMs| on another thread. */
+  Thread consumeInputBufferLater(long delayMs) {
+    final Thread thread = new Thread(() -> {
+      try {
+        Thread.sleep(delayMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      consumeInputBuffer();
+    });
+    thread.start();
+    return thread;
+  }
+
+  /** Waits until |count| input buffers have been queued in total. */
+  void waitForQueuedInput(int count) throws InterruptedException {
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALLBACK_TIMEOUT_MS);
+    synchronized (lock) {
+      while (queuedInputData.size() < count) {
+        final long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+          throw new IllegalStateException("Timed out waiting for input " + count + ".");
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remainingNs);
+      }
+    }
+  }
+
+  /**
+   * Produces an output buffer holding |data|. Unless it is a config frame, this consumes the
+   * oldest queued input buffer the way an encoder does.
+   */
+  void addOutputData(byte[] data, long presentationTimestampUs, int flags) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      final Integer index = freeOutputBuffers.pollFirst();
+      if (index == null) {
+        throw new IllegalStateException("All output buffers are in use.");
+      }
+      final ByteBuffer buffer = outputBuffers[index];
+      buffer.clear();
+      buffer.put(data);
+      buffer.clear();
+      final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      info.set(0 /* offset */, data.length, presentationTimestampUs, flags);
+      if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && !inputBuffersInCodec.isEmpty()) {
+        returnInputBufferLocked(inputBuffersInCodec.pollFirst());
+      }
+      if (asyncCallback != null) {
+        final AsyncCallback callback = asyncCallback;
+        asyncHandler.post(() -> callback.onOutputBufferAvailable(index, info));
+      } else {
+        pendingOutputs.addLast(new PendingOutput(index, info));
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /** Reports |e| through AsyncCallback.onError(). */
+  void postError(Exception e) {
+    synchronized (lock) {
+      final AsyncCallback callback = asyncCallback;
+      asyncHandler.post(() -> callback.onError(e));
+    }
+  }
+
+  /**
+   * Waits until a synchronous mode client has handled all output and is polling for more, i.e.
+   * it is done with the previous output buffer.
+   */
+  void waitForOutputIdle() throws InterruptedException {
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALLBACK_TIMEOUT_MS);
+    synchronized (lock) {
+      while (!pendingOutputs.isEmpty() || waitingDequeueOutputCalls == 0) {
+        final long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+          throw new IllegalStateException("Timed out waiting for the output to be handled.");
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remainingNs);
+      }
+    }
+  }
+
+  /** Waits until the callbacks posted so far have run. */
+  void waitForCallbacks() throws InterruptedException {
+    final Handler handler;
+    synchronized (lock) {
+      handler = asyncHandler;
+    }
+    final CountDownLatch done = new CountDownLatch(1);
+    handler.post(done::countDown);
+    if (!done.await(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("Timed out waiting for codec callbacks.");
+    }
+  }
+
+  @Override
+  public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+    synchronized (lock) {
+      if (configureException != null) {
+        final RuntimeException e = configureException;
+        configureException = null;
+        throw e;
+      }
+      checkState(State.UNINITIALIZED);
+      configuredFormat = format;
+      state = State.CONFIGURED;
+    }
+  }
+
+  @Override
+  public void start() {
+    synchronized (lock) {
+      checkState(State.CONFIGURED);
+      state = State.EXECUTING;
+      if (asyncCallback != null) {
+        while (!freeInputBuffers.isEmpty()) {
+          postInputBufferAvailableLocked(freeInputBuffers.pollFirst());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void flush() {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      while (!inputBuffersInCodec.isEmpty()) {
+        returnInputBufferLocked(inputBuffersInCodec.pollFirst());
+      }
+      while (!pendingOutputs.isEmpty()) {
+        freeOutputBuffers.addLast(pendingOutputs.pollFirst().index);
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    synchronized (lock) {
+      if (state != State.EXECUTING && state != State.CONFIGURED) {
+        throw new IllegalStateException("stop() in state " + state);
+      }
+      state = State.STOPPED;
+      stopThread = Thread.currentThread();
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void release() {
+    synchronized (lock) {
+      state = State.RELEASED;
+      releaseThread = Thread.currentThread();
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public int dequeueInputBuffer(long timeoutUs) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      if (asyncCallback != null) {
+        throw new IllegalStateException("dequeueInputBuffer() in asynchronous mode");
+      }
+      final long deadlineNs = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+      long remainingNs;
+      while (freeInputBuffers.isEmpty() && state == State.EXECUTING
+          && (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(lock, remainingNs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      final Integer index = freeInputBuffers.pollFirst();
+      if (index == null) {
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+      // Like MediaCodec, hand out the buffer cleared.
+      inputBuffers[index].clear();
+      return index;
+    }
+  }
+
+  @Override
+  public void queueInputBuffer(
+      int index, int offset, int size, long presentationTimeUs, int flags) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      final byte[] data = new byte[size];
+      final ByteBuffer buffer = inputBuffers[index].duplicate();
+      buffer.position(offset);
+      buffer.get(data);
+      queuedInputData.add(
+          new QueuedInputData(index, offset, size, presentationTimeUs, flags, data));
+      inputBuffersInCodec.addLast(index);
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      dequeueOutputThread = Thread.currentThread();
+      final long deadlineNs = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+      long remainingNs;
+      ++waitingDequeueOutputCalls;
+      lock.notifyAll();
+      while (pendingOutputs.isEmpty() && state == State.EXECUTING
+          && (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(lock, remainingNs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      --waitingDequeueOutputCalls;
+      final PendingOutput output = pendingOutputs.pollFirst();
+      if (output == null) {
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+      info.set(output.info.offset, output.info.size, output.info.presentationTimeUs,
+          output.info.flags);
+      return output.index;
+    }
+  }
+
+  @Override
+  public void releaseOutputBuffer(int index, boolean render) {
+    synchronized (lock) {
+      ++releaseOutputBufferCalls;
+      checkState(State.EXECUTING);
+      if (freeOutputBuffers.contains(index)) {
+        throw new IllegalStateException("Output buffer " + index + " released twice.");
+      }
+      freeOutputBuffers.addLast(index);
+    }
+  }
+
+  @Override
+  public MediaFormat getOutputFormat() {
+    synchronized (lock) {
+      return configuredFormat;
+    }
+  }
+
+  @Override
+  public ByteBuffer[] getInputBuffers() {
+    return inputBuffers;
+  }
+
+  @Override
+  public ByteBuffer[] getOutputBuffers() {
+    return outputBuffers;
+  }
+
+  @Override
+  public Surface createInputSurface() {
+    throw new UnsupportedOperationException("Surface input is not supported by the fake.");
+  }
+
+  @Override
+  public void setParameters(Bundle params) {
+    synchronized (lock) {
+      parameters.add(params);
+    }
+  }
+
+  @Override
+  public void setCallback(AsyncCallback callback, Handler handler) {
+    synchronized (lock) {
+      checkState(State.UNINITIALIZED);
+      asyncCallback = callback;
+      asyncHandler = handler;
+    }
+  }
+
+  @Override
+  public ByteBuffer getInputBuffer(int index) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      return inputBuffers[index];
+    }
+  }
+
+  @Override
+  public ByteBuffer getOutputBuffer(int index) {
+    synchronized (lock) {
+      checkState(State.EXECUTING);
+      final ByteBuffer buffer = outputBuffers[index].duplicate();
+      buffer.clear();
+      return buffer;
+    }
+  }
+
+  private void returnInputBufferLocked(int index) {
+    if (asyncCallback != null) {
+      postInputBufferAvailableLocked(index);
+    } else {
+      freeInputBuffers.addLast(index);
+      lock.notifyAll();
+    }
+  }
+
+  private void postInputBufferAvailableLocked(int index) {
+    final AsyncCallback callback = asyncCallback;
+    asyncHandler.post(() -> callback.onInputBufferAvailable(index));
+  }
+
+  private void checkState(State expectedState) {
+    if (state != expectedState) {
+      throw new IllegalStateException("Expected state " + expectedState + " but was " + state);
+    }
+  }
+}
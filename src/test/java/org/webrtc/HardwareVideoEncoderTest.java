@@ -0,0 +1,450 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.os.Bundle;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HardwareVideoEncoderTest {
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 32;
+  private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+  private static final long DELIVERY_TIMEOUT_MS = 5000;
+  private static final VideoEncoder.Settings SETTINGS = new VideoEncoder.Settings(
+      1 /* numberOfCores */, WIDTH, HEIGHT, 300 /* startBitrate */, 30 /* maxFramerate */,
+      1 /* numberOfSimulcastStreams */, false /* automaticResizeOn */);
+  private static final VideoEncoder.EncodeInfo ENCODE_INFO_KEY_FRAME = new VideoEncoder.EncodeInfo(
+      new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameKey});
+  private static final VideoEncoder.EncodeInfo ENCODE_INFO_DELTA_FRAME =
+      new VideoEncoder.EncodeInfo(
+          new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameDelta});
+  private static final byte[] DELTA_FRAME_DATA = {1, 2, 3, 4};
+  // Time the encoder is given to finish a release that has to wait for a retained frame.
+  private static final long RELEASE_BLOCKED_MS = 100;
+  private static final byte[] CONFIG_DATA = {0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, 0x0e};
+  private static final int WARMUP_FRAMES = 200;
+  private static final int MEASURED_FRAMES = 200;
+  // Every this many warmup frames the bitrate changes and a key frame is requested.
+  private static final int PARAMETER_CHANGE_INTERVAL = 20;
+
+  // Keeps the objects allocated for the allocation baseline reachable.
+  private static volatile Object escaped;
+
+  /** An encoded frame as the callback saw it. */
+  private static class DeliveredFrame {
+    final EncodedImage image;
+    final byte[] data;
+    final int capacity;
+
+    DeliveredFrame(EncodedImage image) {
+      this.image = image;
+      final ByteBuffer buffer = image.buffer.duplicate();
+      capacity = buffer.capacity();
+      data = new byte[buffer.remaining()];
+      buffer.get(data);
+    }
+  }
+
+  /**
+   * Collects delivered frames. They are retained so the test decides when the encoder gets the
+   * buffers back.
+   */
+  private static class TestCallback implements VideoEncoder.Callback {
+    final LinkedBlockingQueue<DeliveredFrame> frames = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onEncodedFrame(EncodedImage image, VideoEncoder.CodecSpecificInfo info) {
+      image.retain();
+      frames.offer(new DeliveredFrame(image));
+    }
+
+    DeliveredFrame poll() throws InterruptedException {
+      final DeliveredFrame frame = frames.poll(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull("No frame delivered", frame);
+      return frame;
+    }
+  }
+
+  /**
+   * Records which CodecSpecificInfo objects the encoder passes, without allocating or retaining
+   * the frames.
+   */
+  private static class CodecSpecificInfoCallback implements VideoEncoder.Callback {
+    final Set<VideoEncoder.CodecSpecificInfo> infos =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Override
+    public void onEncodedFrame(EncodedImage image, VideoEncoder.CodecSpecificInfo info) {
+      synchronized (infos) {
+        infos.add(info);
+      }
+    }
+
+    int distinctInfos() {
+      synchronized (infos) {
+        return infos.size();
+      }
+    }
+  }
+
+  private FakeMediaCodecWrapper fakeCodec;
+  private TestCallback callback;
+  private HardwareVideoEncoder encoder;
+  private VideoFrame.I420Buffer inputBuffer;
+  private long nextTimestampNs;
+  private final AtomicInteger releasedFrames = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    fakeCodec = new FakeMediaCodecWrapper(
+        4 /* inputBufferCount */, FRAME_SIZE, 4 /* outputBufferCount */, 1 << 16);
+    callback = new TestCallback();
+    inputBuffer = JavaI420Buffer.wrap(WIDTH, HEIGHT, ByteBuffer.allocateDirect(WIDTH * HEIGHT),
+        WIDTH, ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4), WIDTH / 2,
+        ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4), WIDTH / 2, null /* releaseCallback */);
+  }
+
+  @After
+  public void tearDown() {
+    if (encoder != null) {
+      encoder.release();
+    }
+  }
+
+  private HardwareVideoEncoder createEncoder(VideoCodecMimeType codecType, boolean useAsyncCodec) {
+    return new HardwareVideoEncoder(codecName -> fakeCodec, "org.webrtc.fakeencoder", codecType,
+        null /* surfaceColorFormat */, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+        new HashMap<>(), 0 /* keyFrameIntervalSec */, 0 /* forceKeyFrameIntervalMs */,
+        new BaseBitrateAdjuster(), null /* sharedContext */, useAsyncCodec) {
+      @Override
+      protected void fillInputBuffer(ByteBuffer buffer, VideoFrame.Buffer videoFrameBuffer) {
+        // Converting the frame needs the native library, the fake codec ignores the content.
+      }
+    };
+  }
+
+  private VideoFrame nextFrame() {
+    nextTimestampNs += TimeUnit.MILLISECONDS.toNanos(33);
+    return new VideoFrame(inputBuffer, 0 /* rotation */, nextTimestampNs);
+  }
+
+  /** Like nextFrame(), but with a buffer of its own that counts in releasedFrames when freed. */
+  private VideoFrame nextCountedFrame() {
+    nextTimestampNs += TimeUnit.MILLISECONDS.toNanos(33);
+    final VideoFrame.Buffer buffer = JavaI420Buffer.wrap(WIDTH, HEIGHT, inputBuffer.getDataY(),
+        inputBuffer.getStrideY(), inputBuffer.getDataU(), inputBuffer.getStrideU(),
+        inputBuffer.getDataV(), inputBuffer.getStrideV(), releasedFrames::incrementAndGet);
+    return new VideoFrame(buffer, 0 /* rotation */, nextTimestampNs);
+  }
+
+  /** Encodes a frame with its own buffer and drops the caller's reference to it. */
+  private long encodeCountedFrame(VideoCodecStatus expectedStatus) {
+    final VideoFrame frame = nextCountedFrame();
+    assertEquals(expectedStatus, encoder.encode(frame, ENCODE_INFO_DELTA_FRAME));
+    frame.release();
+    return frame.getTimestampNs();
+  }
+
+  /** Starts an asynchronous mode VP8 encoder on a codec with a single input buffer. */
+  private void initAsyncEncoder() throws InterruptedException {
+    fakeCodec = new FakeMediaCodecWrapper(
+        1 /* inputBufferCount */, FRAME_SIZE, 4 /* outputBufferCount */, 1 << 16);
+    encoder = createEncoder(VideoCodecMimeType.VP8, true /* useAsyncCodec */);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(SETTINGS, callback));
+    // Lets the encoder take the input buffer.
+    fakeCodec.waitForCallbacks();
+  }
+
+  /** Encodes a frame and lets the fake codec turn it into an H.264 key frame holding |data|. */
+  private DeliveredFrame encodeKeyFrame(byte[] data) throws InterruptedException {
+    final VideoFrame frame = nextFrame();
+    assertEquals(VideoCodecStatus.OK, encoder.encode(frame, ENCODE_INFO_KEY_FRAME));
+    fakeCodec.addOutputData(
+        data, frame.getTimestampNs() / 1000, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+    final DeliveredFrame delivered = callback.poll();
+    // Releasing the frame then hands the buffers back on this thread.
+    fakeCodec.waitForOutputIdle();
+    return delivered;
+  }
+
+  private static byte[] keyFrameData(int size, int value) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; ++i) {
+      data[i] = (byte) (value + i);
+    }
+    return data;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    final byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  /** Encodes a frame and lets the fake codec output a VP8 delta frame for it. */
+  private void encodeDeltaFrame(VideoEncoder.EncodeInfo encodeInfo) throws InterruptedException {
+    final VideoFrame frame = nextFrame();
+    assertEquals(VideoCodecStatus.OK, encoder.encode(frame, encodeInfo));
+    fakeCodec.addOutputData(DELTA_FRAME_DATA, frame.getTimestampNs() / 1000, 0 /* flags */);
+    fakeCodec.waitForOutputIdle();
+  }
+
+  private static int distinctObjects(List<?> objects) {
+    final Set<Object> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    distinct.addAll(objects);
+    return distinct.size();
+  }
+
+  /**
+   * Heap bytes the output thread cannot avoid per delta frame: the slice of the codec buffer, the
+   * release callback with the same captures as the encoder's, and the EncodedImage itself, built
+   * from a reused builder.
+   */
+  private static long unavoidableBytesPerFrame() {
+    final ByteBuffer codecBuffer = ByteBuffer.allocateDirect(DELTA_FRAME_DATA.length);
+    final EncodedImage.Builder builder = EncodedImage.builder();
+    final AtomicInteger releases = new AtomicInteger();
+    final int[] index = new int[1];
+    return MicroBenchmark.allocatedBytesPerOp(() -> {
+      final int capturedIndex = ++index[0];
+      final boolean capturedFlag = (capturedIndex & 1) != 0;
+      escaped = builder
+          .setCaptureTimeNs(capturedIndex)
+          .setBuffer(codecBuffer.slice(), () -> {
+            if (capturedFlag) {
+              releases.addAndGet(capturedIndex);
+            }
+          })
+          .createEncodedImage();
+    }, 10000);
+  }
+
+  private static long builderBytes() {
+    return MicroBenchmark.allocatedBytesPerOp(() -> escaped = EncodedImage.builder(), 10000);
+  }
+
+  private static long directBufferCount() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        return pool.getCount();
+      }
+    }
+    throw new IllegalStateException("No direct buffer pool");
+  }
+
+  private void initH264Encoder() {
+    encoder = createEncoder(VideoCodecMimeType.H264, false /* useAsyncCodec */);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(SETTINGS, callback));
+    fakeCodec.addOutputData(CONFIG_DATA, 0 /* presentationTimestampUs */,
+        MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+  }
+
+  @Test
+  public void testKeyFrameBufferEndsAtFrame() throws InterruptedException {
+    initH264Encoder();
+    final byte[] largeFrame = keyFrameData(1000, 1);
+    final byte[] smallFrame = keyFrameData(10, 7);
+
+    DeliveredFrame delivered = encodeKeyFrame(largeFrame);
+    assertArrayEquals(concat(CONFIG_DATA, largeFrame), delivered.data);
+    delivered.image.release();
+
+    // Reuses the larger buffer, native code must still only see this frame.
+    delivered = encodeKeyFrame(smallFrame);
+    assertArrayEquals(concat(CONFIG_DATA, smallFrame), delivered.data);
+    assertEquals(CONFIG_DATA.length + smallFrame.length, delivered.capacity);
+    delivered.image.release();
+  }
+
+  @Test
+  public void testKeyFramesDoNotAllocateOnceBufferIsSized() throws InterruptedException {
+    initH264Encoder();
+    // Sizes the reusable key frame buffer.
+    encodeKeyFrame(keyFrameData(4000, 0)).image.release();
+
+    final long directBuffersBefore = directBufferCount();
+    for (int i = 0; i < 50; ++i) {
+      final byte[] data = keyFrameData(1000 + 50 * i, i);
+      final DeliveredFrame delivered = encodeKeyFrame(data);
+      assertArrayEquals(concat(CONFIG_DATA, data), delivered.data);
+      delivered.image.release();
+    }
+    // Garbage collection can only lower the count.
+    assertTrue(directBufferCount() <= directBuffersBefore);
+  }
+
+  @Test
+  public void testOutputReusesBuilderCodecSpecificInfoAndBundles() throws InterruptedException {
+    final CodecSpecificInfoCallback infoCallback = new CodecSpecificInfoCallback();
+    encoder = createEncoder(VideoCodecMimeType.VP8, false /* useAsyncCodec */);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(SETTINGS, infoCallback));
+
+    // Warms up the output path, changing the bitrate and requesting key frames along the way.
+    for (int i = 0; i < WARMUP_FRAMES; ++i) {
+      if (i % PARAMETER_CHANGE_INTERVAL == 0) {
+        final int bitrateBps = (i / PARAMETER_CHANGE_INTERVAL % 2 == 0 ? 200 : 400) * 1000;
+        encoder.setRateAllocation(
+            new VideoEncoder.BitrateAllocation(new int[][] {{bitrateBps}}), 30 /* framerate */);
+        encodeDeltaFrame(ENCODE_INFO_KEY_FRAME);
+      } else {
+        encodeDeltaFrame(ENCODE_INFO_DELTA_FRAME);
+      }
+    }
+    final List<Bundle> parameters = fakeCodec.getParameters();
+    // A key frame request and a bitrate update per change, one Bundle for each kind.
+    assertTrue(parameters.size() >= 2 * WARMUP_FRAMES / PARAMETER_CHANGE_INTERVAL);
+    assertEquals(2, distinctObjects(parameters));
+
+    final Thread outputThread = fakeCodec.getDequeueOutputThread();
+    final long bytesBefore = MicroBenchmark.allocatedBytes(outputThread);
+    for (int i = 0; i < MEASURED_FRAMES; ++i) {
+      encodeDeltaFrame(ENCODE_INFO_DELTA_FRAME);
+    }
+    final long bytesPerFrame =
+        (MicroBenchmark.allocatedBytes(outputThread) - bytesBefore) / MEASURED_FRAMES;
+
+    assertEquals(1, infoCallback.distinctInfos());
+    // A builder per frame would add at least builderBytes().
+    final long budget = unavoidableBytesPerFrame() + builderBytes();
+    assertTrue("Output thread allocates " + bytesPerFrame + " bytes per frame, budget " + budget,
+        bytesPerFrame < budget);
+  }
+
+  @Test
+  public void testRetainedKeyFrameIsNotOverwritten() throws InterruptedException {
+    initH264Encoder();
+    final byte[] firstFrame = keyFrameData(100, 1);
+    final byte[] secondFrame = keyFrameData(100, 50);
+
+    final DeliveredFrame first = encodeKeyFrame(firstFrame);
+    final DeliveredFrame second = encodeKeyFrame(secondFrame);
+
+    final byte[] firstData = new byte[first.image.buffer.remaining()];
+    first.image.buffer.duplicate().get(firstData);
+    assertArrayEquals(concat(CONFIG_DATA, firstFrame), firstData);
+    assertArrayEquals(concat(CONFIG_DATA, secondFrame), second.data);
+    first.image.release();
+    second.image.release();
+  }
+
+  @Test
+  public void testAsyncInitFailureReleasesCodecOnCallbackThread() {
+    fakeCodec.setConfigureException(new IllegalStateException("configure failed"));
+    encoder = createEncoder(VideoCodecMimeType.VP8, true /* useAsyncCodec */);
+
+    assertEquals(VideoCodecStatus.FALLBACK_SOFTWARE, encoder.initEncode(SETTINGS, callback));
+    assertEquals(FakeMediaCodecWrapper.State.RELEASED, fakeCodec.getState());
+    assertNotSame(Thread.currentThread(), fakeCodec.getReleaseThread());
+  }
+
+  @Test
+  public void testAsyncFramesAreQueuedInOrderAndOldestIsDropped() throws InterruptedException {
+    initAsyncEncoder();
+    final long[] timestampsNs = new long[5];
+    // The first frame takes the input buffer, the others wait for it. The fifth frame pushes the
+    // second one out of the pending frames.
+    for (int i = 0; i < timestampsNs.length; ++i) {
+      timestampsNs[i] = encodeCountedFrame(VideoCodecStatus.OK);
+    }
+    assertEquals(2, releasedFrames.get());
+
+    for (int i = 0; i < 3; ++i) {
+      fakeCodec.consumeInputBuffer();
+      fakeCodec.waitForCallbacks();
+    }
+    final long[] expectedTimestampsNs = {
+        timestampsNs[0], timestampsNs[2], timestampsNs[3], timestampsNs[4]};
+    final List<FakeMediaCodecWrapper.QueuedInputData> queued = fakeCodec.getQueuedInputData();
+    assertEquals(expectedTimestampsNs.length, queued.size());
+    for (int i = 0; i < expectedTimestampsNs.length; ++i) {
+      assertEquals(expectedTimestampsNs[i] / 1000, queued.get(i).presentationTimestampUs);
+      assertEquals(FRAME_SIZE, queued.get(i).size);
+    }
+    assertEquals(5, releasedFrames.get());
+
+    // Output keeps the frame metadata of the matching input.
+    for (FakeMediaCodecWrapper.QueuedInputData input : queued) {
+      fakeCodec.addOutputData(DELTA_FRAME_DATA, input.presentationTimestampUs, 0 /* flags */);
+    }
+    fakeCodec.waitForCallbacks();
+    for (long expectedTimestampNs : expectedTimestampsNs) {
+      final DeliveredFrame delivered = callback.poll();
+      assertEquals(expectedTimestampNs, delivered.image.captureTimeNs);
+      assertArrayEquals(DELTA_FRAME_DATA, delivered.data);
+      delivered.image.release();
+    }
+    assertEquals(0, fakeCodec.getOutputBuffersInUse());
+  }
+
+  @Test
+  public void testAsyncReleaseWaitsForOutputAndDropsPendingFrames() throws InterruptedException {
+    initAsyncEncoder();
+    final long queuedTimestampNs = encodeCountedFrame(VideoCodecStatus.OK);
+    encodeCountedFrame(VideoCodecStatus.OK);
+    encodeCountedFrame(VideoCodecStatus.OK);
+    fakeCodec.addOutputData(DELTA_FRAME_DATA, queuedTimestampNs / 1000, 0 /* flags */);
+    fakeCodec.waitForCallbacks();
+    final DeliveredFrame retained = callback.poll();
+
+    // The codec must keep running while a delivered frame still references its output buffer.
+    final AtomicReference<FakeMediaCodecWrapper.State> stateWhileRetained = new AtomicReference<>();
+    final Thread downstream = new Thread(() -> {
+      try {
+        Thread.sleep(RELEASE_BLOCKED_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      stateWhileRetained.set(fakeCodec.getState());
+      retained.image.release();
+    });
+    downstream.start();
+    assertEquals(VideoCodecStatus.OK, encoder.release());
+    downstream.join();
+
+    assertEquals(FakeMediaCodecWrapper.State.EXECUTING, stateWhileRetained.get());
+    assertEquals(FakeMediaCodecWrapper.State.RELEASED, fakeCodec.getState());
+    assertNotSame(Thread.currentThread(), fakeCodec.getStopThread());
+    assertEquals(fakeCodec.getStopThread(), fakeCodec.getReleaseThread());
+    // The two frames still waiting for an input buffer are freed too.
+    assertEquals(3, releasedFrames.get());
+  }
+
+  @Test
+  public void testAsyncCodecErrorFallsBackToSoftware() throws InterruptedException {
+    initAsyncEncoder();
+    encodeCountedFrame(VideoCodecStatus.OK);
+
+    fakeCodec.postError(new IllegalStateException("codec failed"));
+    fakeCodec.waitForCallbacks();
+    encodeCountedFrame(VideoCodecStatus.FALLBACK_SOFTWARE);
+    assertEquals(2, releasedFrames.get());
+  }
+}
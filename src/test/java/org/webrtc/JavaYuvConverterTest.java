@@ -0,0 +1,158 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class JavaYuvConverterTest {
+  // Y, U, V and the R, G, B that BT.601 limited range maps them to.
+  private static final int[][] COLORS = {
+      {16, 128, 128, 0, 0, 0}, // Black.
+      {235, 128, 128, 255, 255, 255}, // White.
+      {126, 128, 128, 128, 128, 128}, // Gray.
+      {81, 90, 240, 254, 0, 0}, // Red.
+      {145, 54, 34, 0, 255, 1}, // Green.
+      {41, 240, 110, 0, 0, 255}, // Blue.
+  };
+  // Fixed point rounding may be one off the exact value.
+  private static final int TOLERANCE = 1;
+  private static final int[][] SIZES = {{6, 4}, {5, 3}, {7, 5}, {1, 1}};
+  private static final YuvFormat[] YUV_FORMATS = {YuvFormat.NV21, YuvFormat.NV12, YuvFormat.I420};
+  // Written to all padding, none of it may show up in or be overwritten by the output.
+  private static final byte PADDING = (byte) 0xA5;
+
+  /** The COLORS row of the 2x2 block pixel |x|, |y| belongs to. */
+  private static int[] colorAt(int x, int y, int width) {
+    final int chromaWidth = (width + 1) / 2;
+    return COLORS[(x / 2 + (y / 2) * chromaWidth) % COLORS.length];
+  }
+
+  private static int chromaStep(YuvFormat format) {
+    return format == YuvFormat.I420 ? 1 : 2;
+  }
+
+  /** A frame of COLORS blocks with the given strides, all padding set to PADDING. */
+  private static byte[] createFrame(
+      YuvFormat format, int width, int height, int strideY, int strideUV) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int chromaBase = strideY * height;
+    final int chromaPlaneSize = strideUV * chromaHeight;
+    final byte[] frame =
+        new byte[chromaBase + (format == YuvFormat.I420 ? 2 : 1) * chromaPlaneSize];
+    Arrays.fill(frame, PADDING);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        frame[y * strideY + x] = (byte) colorAt(x, y, width)[0];
+      }
+    }
+    for (int y = 0; y < chromaHeight; ++y) {
+      for (int x = 0; x < chromaWidth; ++x) {
+        final int[] color = colorAt(2 * x, 2 * y, width);
+        final int row = chromaBase + y * strideUV;
+        switch (format) {
+          case NV21:
+            frame[row + 2 * x] = (byte) color[2];
+            frame[row + 2 * x + 1] = (byte) color[1];
+            break;
+          case NV12:
+            frame[row + 2 * x] = (byte) color[1];
+            frame[row + 2 * x + 1] = (byte) color[2];
+            break;
+          case I420:
+            frame[row + x] = (byte) color[1];
+            frame[row + chromaPlaneSize + x] = (byte) color[2];
+            break;
+        }
+      }
+    }
+    return frame;
+  }
+
+  private static void assertChannel(String what, int expected, int actual, int quantization) {
+    // RGB565 drops the low bits, compare at its precision.
+    final int expectedQuantized = expected & ~(quantization - 1);
+    assertTrue(what + ": expected " + expectedQuantized + " but was " + actual,
+        Math.abs(expectedQuantized - actual) <= Math.max(TOLERANCE, quantization));
+  }
+
+  private static void assertPixel(String what, int[] color, byte[] dst, int offset,
+      JavaYuvConverter.RgbFormat rgbFormat) {
+    switch (rgbFormat) {
+      case ABGR:
+        assertChannel(what + " R", color[3], dst[offset] & 0xFF, 1);
+        assertChannel(what + " G", color[4], dst[offset + 1] & 0xFF, 1);
+        assertChannel(what + " B", color[5], dst[offset + 2] & 0xFF, 1);
+        assertEquals(what + " A", (byte) 0xFF, dst[offset + 3]);
+        break;
+      case ARGB:
+        assertChannel(what + " B", color[5], dst[offset] & 0xFF, 1);
+        assertChannel(what + " G", color[4], dst[offset + 1] & 0xFF, 1);
+        assertChannel(what + " R", color[3], dst[offset + 2] & 0xFF, 1);
+        assertEquals(what + " A", (byte) 0xFF, dst[offset + 3]);
+        break;
+      case RGB565:
+        final int rgb565 = (dst[offset] & 0xFF) | ((dst[offset + 1] & 0xFF) << 8);
+        assertChannel(what + " R", color[3], (rgb565 >> 8) & 0xF8, 8);
+        assertChannel(what + " G", color[4], (rgb565 >> 3) & 0xFC, 4);
+        assertChannel(what + " B", color[5], (rgb565 << 3) & 0xF8, 8);
+        break;
+    }
+  }
+
+  /**
+   * Converts a COLORS frame to every RgbFormat and checks each pixel and that the destination
+   * padding is untouched. Padding of 0 uses the packed convert().
+   */
+  private static void testConversion(YuvFormat yuvFormat, int width, int height, int padding) {
+    final int chromaWidth = (width + 1) / 2;
+    final int strideY = width + padding;
+    final int strideUV = chromaStep(yuvFormat) * chromaWidth + padding;
+    final byte[] yuv = createFrame(yuvFormat, width, height, strideY, strideUV);
+    for (JavaYuvConverter.RgbFormat rgbFormat : JavaYuvConverter.RgbFormat.values()) {
+      final int rowBytes = width * rgbFormat.bytesPerPixel;
+      final int dstStride = rowBytes + padding;
+      final byte[] dst = new byte[dstStride * height];
+      Arrays.fill(dst, PADDING);
+      if (padding == 0) {
+        JavaYuvConverter.convert(yuv, yuvFormat, width, height, dst, rgbFormat);
+      } else {
+        JavaYuvConverter.convert(
+            yuv, yuvFormat, width, height, strideY, strideUV, dst, dstStride, rgbFormat);
+      }
+
+      final String frame = yuvFormat + " " + width + "x" + height + " padding " + padding + " to "
+          + rgbFormat;
+      for (int y = 0; y < height; ++y) {
+        for (int x = 0; x < width; ++x) {
+          assertPixel(frame + " at " + x + "," + y, colorAt(x, y, width), dst,
+              y * dstStride + x * rgbFormat.bytesPerPixel, rgbFormat);
+        }
+        for (int i = rowBytes; i < dstStride; ++i) {
+          assertEquals(frame + " padding of row " + y, PADDING, dst[y * dstStride + i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testKnownColorsPacked() {
+    for (YuvFormat yuvFormat : YUV_FORMATS) {
+      for (int[] size : SIZES) {
+        testConversion(yuvFormat, size[0], size[1], 0 /* padding */);
+      }
+    }
+  }
+
+  @Test
+  public void testKnownColorsWithPaddedStrides() {
+    for (YuvFormat yuvFormat : YUV_FORMATS) {
+      for (int[] size : SIZES) {
+        testConversion(yuvFormat, size[0], size[1], 3 /* padding */);
+        testConversion(yuvFormat, size[0], size[1], 16 /* padding */);
+      }
+    }
+  }
+}
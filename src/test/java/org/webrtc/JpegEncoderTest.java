@@ -0,0 +1,217 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+public class JpegEncoderTest {
+  private static final int QUALITY = 90;
+  // Quadrants of this size are whole MCUs, so their centers decode without edge ringing.
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 32;
+  // Y, U, V of the top left, top right, bottom left and bottom right quadrant.
+  private static final int[][] QUADRANTS = {
+      {180, 100, 150}, {60, 160, 110}, {120, 128, 128}, {200, 140, 90}};
+  // Allowed difference per channel after quantization and the decoder's color conversion.
+  private static final int TOLERANCE = 6;
+  private static final int PADDING = 8;
+
+  /** Counts the writes that hand the stream a single byte. */
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    int singleByteWrites;
+
+    @Override
+    public synchronized void write(int b) {
+      ++singleByteWrites;
+      super.write(b);
+    }
+  }
+
+  private static int[] quadrantAt(int x, int y, int width, int height) {
+    return QUADRANTS[(x < width / 2 ? 0 : 1) + (y < height / 2 ? 0 : 2)];
+  }
+
+  /** I420 frame of QUADRANTS with padded strides. */
+  private static VideoFrame.I420Buffer createI420(int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int strideY = width + PADDING;
+    final int strideUV = chromaWidth + PADDING;
+    final ByteBuffer dataY = ByteBuffer.allocateDirect(strideY * height);
+    final ByteBuffer dataU = ByteBuffer.allocateDirect(strideUV * chromaHeight);
+    final ByteBuffer dataV = ByteBuffer.allocateDirect(strideUV * chromaHeight);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        dataY.put(y * strideY + x, (byte) quadrantAt(x, y, width, height)[0]);
+      }
+    }
+    for (int y = 0; y < chromaHeight; ++y) {
+      for (int x = 0; x < chromaWidth; ++x) {
+        final int[] color = quadrantAt(2 * x, 2 * y, width, height);
+        dataU.put(y * strideUV + x, (byte) color[1]);
+        dataV.put(y * strideUV + x, (byte) color[2]);
+      }
+    }
+    return JavaI420Buffer.wrap(width, height, dataY, strideY, dataU, strideUV, dataV, strideUV,
+        null /* releaseCallback */);
+  }
+
+  /** Packed NV21 frame of QUADRANTS. */
+  private static byte[] createNV21(int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final byte[] data = new byte[YuvFormat.NV21.getDataSize(width, height)];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        data[y * width + x] = (byte) quadrantAt(x, y, width, height)[0];
+      }
+    }
+    for (int y = 0; y < (height + 1) / 2; ++y) {
+      for (int x = 0; x < chromaWidth; ++x) {
+        final int[] color = quadrantAt(2 * x, 2 * y, width, height);
+        final int offset = width * height + y * 2 * chromaWidth + 2 * x;
+        data[offset] = (byte) color[2];
+        data[offset + 1] = (byte) color[1];
+      }
+    }
+    return data;
+  }
+
+  private static BufferedImage decode(byte[] jpeg) throws IOException {
+    final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+    assertNotNull("ImageIO cannot decode the JPEG", image);
+    return image;
+  }
+
+  private static int clip(double value) {
+    return (int) Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  /** Checks the center of each quadrant against the JFIF YCbCr to RGB conversion of its color. */
+  private static void assertQuadrants(BufferedImage image) {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    for (int i = 0; i < QUADRANTS.length; ++i) {
+      final int x = (i % 2) * width / 2 + width / 4;
+      final int y = (i / 2) * height / 2 + height / 4;
+      final int[] yuv = QUADRANTS[i];
+      final int[] expected = {clip(yuv[0] + 1.402 * (yuv[2] - 128)),
+          clip(yuv[0] - 0.344136 * (yuv[1] - 128) - 0.714136 * (yuv[2] - 128)),
+          clip(yuv[0] + 1.772 * (yuv[1] - 128))};
+      final int rgb = image.getRGB(x, y);
+      final int[] actual = {(rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF};
+      for (int c = 0; c < 3; ++c) {
+        assertTrue("Quadrant " + i + " channel " + c + ": expected " + expected[c] + " but was "
+                + actual[c],
+            Math.abs(expected[c] - actual[c]) <= TOLERANCE);
+      }
+    }
+  }
+
+  /** Returns the EXIF orientation tag of |jpeg|, or 1 if it has none. */
+  private static int exifOrientation(byte[] jpeg) {
+    assertEquals((byte) 0xFF, jpeg[0]);
+    assertEquals((byte) 0xD8, jpeg[1]);
+    int offset = 2;
+    while (offset + 4 <= jpeg.length && (jpeg[offset + 1] & 0xFF) != 0xDA) {
+      final int marker = jpeg[offset + 1] & 0xFF;
+      final int length = ((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF);
+      final int segment = offset + 4;
+      if (marker == 0xE1 && new String(jpeg, segment, 4).equals("Exif")) {
+        // Big-endian TIFF header after "Exif\0\0", IFD0 at offset 8 from it.
+        final int tiff = segment + 6;
+        final int ifd = tiff + 8;
+        final int entries = ((jpeg[ifd] & 0xFF) << 8) | (jpeg[ifd + 1] & 0xFF);
+        for (int i = 0; i < entries; ++i) {
+          final int entry = ifd + 2 + 12 * i;
+          final int tag = ((jpeg[entry] & 0xFF) << 8) | (jpeg[entry + 1] & 0xFF);
+          if (tag == 0x0112) {
+            return ((jpeg[entry + 8] & 0xFF) << 8) | (jpeg[entry + 9] & 0xFF);
+          }
+        }
+      }
+      offset += 2 + length;
+    }
+    return 1;
+  }
+
+  private static byte[] encode(VideoFrame.I420Buffer buffer, int rotation, int scaleDivisor)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new JpegEncoder(QUALITY).encode(buffer, rotation, scaleDivisor, out);
+    return out.toByteArray();
+  }
+
+  private static byte[] encode(byte[] nv21, int width, int height, int rotation, int scaleDivisor)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new JpegEncoder(QUALITY).encode(
+        nv21, YuvFormat.NV21, width, height, rotation, scaleDivisor, out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testI420DecodesToSourceColors() throws IOException {
+    final BufferedImage image = decode(encode(createI420(WIDTH, HEIGHT), 0, 1));
+    assertEquals(WIDTH, image.getWidth());
+    assertEquals(HEIGHT, image.getHeight());
+    assertQuadrants(image);
+  }
+
+  @Test
+  public void testNV21DecodesToSourceColors() throws IOException {
+    final BufferedImage image = decode(encode(createNV21(WIDTH, HEIGHT), WIDTH, HEIGHT, 0, 1));
+    assertEquals(WIDTH, image.getWidth());
+    assertEquals(HEIGHT, image.getHeight());
+    assertQuadrants(image);
+  }
+
+  @Test
+  public void testOddSizes() throws IOException {
+    final int width = 37;
+    final int height = 21;
+    BufferedImage image = decode(encode(createI420(width, height), 0, 1));
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+    image = decode(encode(createNV21(width, height), width, height, 0, 1));
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+  }
+
+  @Test
+  public void testScaleDivisor() throws IOException {
+    final BufferedImage image = decode(encode(createI420(2 * WIDTH, 2 * HEIGHT), 0, 2));
+    assertEquals(WIDTH, image.getWidth());
+    assertEquals(HEIGHT, image.getHeight());
+    assertQuadrants(image);
+  }
+
+  @Test
+  public void testRotationIsStoredAsExifOrientation() throws IOException {
+    final int[][] rotationToOrientation = {{0, 1}, {90, 6}, {180, 3}, {270, 8}, {-90, 8}};
+    for (int[] mapping : rotationToOrientation) {
+      final byte[] jpeg = encode(createNV21(WIDTH, HEIGHT), WIDTH, HEIGHT, mapping[0], 1);
+      assertEquals("Rotation " + mapping[0], mapping[1], exifOrientation(jpeg));
+      // The pixels are stored unrotated.
+      final BufferedImage image = decode(jpeg);
+      assertEquals(WIDTH, image.getWidth());
+      assertEquals(HEIGHT, image.getHeight());
+      assertQuadrants(image);
+    }
+  }
+
+  @Test
+  public void testOutputIsWrittenInChunks() throws IOException {
+    final CountingOutputStream out = new CountingOutputStream();
+    new JpegEncoder(QUALITY).encode(createI420(WIDTH, HEIGHT), 90, 1, out);
+    assertEquals(0, out.singleByteWrites);
+    assertEquals(6, exifOrientation(out.toByteArray()));
+  }
+}
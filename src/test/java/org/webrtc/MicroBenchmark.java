@@ -0,0 +1,75 @@
+package org.webrtc;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Minimal measurement loop shared by the *Benchmark mains in this directory. It warms up, then
+ * reports the median time per operation over several rounds. It needs nothing beyond the JDK, so
+ * the pure Java code paths can be benchmarked on a desktop JVM without an Android build:
+ *
+ * <pre>
+ *   javac -d out -cp android-stubs -sourcepath src/main/java:src/test/java \
+ *       src/test/java/org/webrtc/SomeBenchmark.java
+ *   java -cp out:android-stubs org.webrtc.SomeBenchmark
+ * </pre>
+ */
+final class MicroBenchmark {
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURED_ROUNDS = 10;
+  private static final long MIN_ROUND_NS = 200_000_000L;
+
+  /** Results are folded in here so the JIT cannot drop the measured work. */
+  static volatile long sink;
+
+  private MicroBenchmark() {}
+
+  /** Returns the median nanoseconds one call of |operation| takes. */
+  static double nsPerOp(Runnable operation) {
+    // Size the rounds so that each one runs for at least MIN_ROUND_NS.
+    int opsPerRound = 1;
+    while (timeNs(operation, opsPerRound) < MIN_ROUND_NS / 10) {
+      opsPerRound *= 2;
+    }
+    opsPerRound *= 10;
+    for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+      timeNs(operation, opsPerRound);
+    }
+    final double[] rounds = new double[MEASURED_ROUNDS];
+    for (int i = 0; i < MEASURED_ROUNDS; ++i) {
+      rounds[i] = (double) timeNs(operation, opsPerRound) / opsPerRound;
+    }
+    Arrays.sort(rounds);
+    return rounds[MEASURED_ROUNDS / 2];
+  }
+
+  /**
+   * Returns the Java heap bytes one call of |operation| allocates on the calling thread, averaged
+   * over |ops| calls after a warmup. Needs a HotSpot JVM.
+   */
+  static long allocatedBytesPerOp(Runnable operation, int ops) {
+    final Thread thread = Thread.currentThread();
+    timeNs(operation, ops);
+    final long before = allocatedBytes(thread);
+    timeNs(operation, ops);
+    return (allocatedBytes(thread) - before) / ops;
+  }
+
+  /**
+   * Returns the Java heap bytes |thread| has allocated so far, for measuring work that runs on
+   * another thread. Needs a HotSpot JVM.
+   */
+  static long allocatedBytes(Thread thread) {
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(thread.getId());
+  }
+
+  private static long timeNs(Runnable operation, int ops) {
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < ops; ++i) {
+      operation.run();
+    }
+    return System.nanoTime() - startNs;
+  }
+}
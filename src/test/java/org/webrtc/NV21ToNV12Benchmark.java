@@ -0,0 +1,137 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Compares the ways a Camera1 NV21 frame can reach an NV12 encoder input buffer, in time, bytes
+ * touched (bytes read plus bytes written) and Java heap bytes allocated per frame:
+ * <ul>
+ *   <li>two pass: NV21Buffer.toI420() into an I420 frame, then YuvHelper.I420ToNV12(). Both
+ *       passes run in libyuv on a device; they are emulated with Java loops here, so only the
+ *       bytes touched carry over.
+ *   <li>new row: the first version of NV21Buffer.copyToNV12(), which swapped each chroma row
+ *       into an array allocated per frame before putting it into the destination.
+ *   <li>absolute: swaps the chroma pairs straight into the destination with one absolute put per
+ *       byte. It touches the fewest bytes but is not vectorized.
+ *   <li>pooled row: NV21Buffer.copyToNV12(), the row approach with the array borrowed from
+ *       FrameBufferArena.
+ * </ul>
+ * See MicroBenchmark for how to run it.
+ */
+public class NV21ToNV12Benchmark {
+  private static final int[][] RESOLUTIONS = {{640, 480}, {1280, 720}, {1920, 1080}};
+
+  public static void main(String[] args) {
+    System.out.println(String.format(Locale.US, "%-10s %-11s %10s %14s %8s %10s", "frame", "path",
+        "us/frame", "bytes touched", "GB/s", "allocated"));
+    for (int[] resolution : RESOLUTIONS) {
+      run(resolution[0], resolution[1]);
+    }
+  }
+
+  private static void run(int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int lumaSize = width * height;
+    final int chromaSize = 2 * chromaWidth * chromaHeight;
+    final int frameSize = lumaSize + chromaSize;
+
+    final byte[] nv21 = new byte[frameSize];
+    for (int i = 0; i < frameSize; ++i) {
+      nv21[i] = (byte) (i * 31);
+    }
+    final NV21Buffer buffer = new NV21Buffer(nv21, width, height, null /* releaseCallback */);
+    final ByteBuffer dst = ByteBuffer.allocateDirect(frameSize);
+    final ByteBuffer i420 = ByteBuffer.allocateDirect(frameSize);
+
+    final String frame = width + "x" + height;
+    // Each pass reads and writes the whole frame.
+    report(frame, "two pass", 4L * frameSize, () -> twoPass(nv21, width, height, i420, dst));
+    // The row is written and read once more for the chroma plane, it stays in the L1 cache.
+    report(frame, "new row", 2L * frameSize + 2L * chromaSize,
+        () -> newRow(nv21, width, height, dst));
+    report(frame, "absolute", 2L * frameSize, () -> absolute(nv21, width, height, dst));
+    report(frame, "pooled row", 2L * frameSize + 2L * chromaSize, () -> {
+      buffer.copyToNV12(dst);
+      MicroBenchmark.sink += dst.get(lumaSize);
+    });
+
+    // All paths produce the same NV12 frame.
+    final ByteBuffer expected = ByteBuffer.allocateDirect(frameSize);
+    twoPass(nv21, width, height, i420, expected);
+    buffer.copyToNV12(dst);
+    expected.clear();
+    dst.clear();
+    if (!expected.equals(dst)) {
+      throw new AssertionError("copyToNV12 differs from the two pass conversion");
+    }
+  }
+
+  private static void report(String frame, String path, long bytesTouched, Runnable conversion) {
+    final double nsPerFrame = MicroBenchmark.nsPerOp(conversion);
+    final long allocatedBytes = MicroBenchmark.allocatedBytesPerOp(conversion, 1000);
+    System.out.println(String.format(Locale.US, "%-10s %-11s %10.1f %14d %8.2f %10d", frame, path,
+        nsPerFrame / 1000, bytesTouched, bytesTouched / nsPerFrame, allocatedBytes));
+  }
+
+  /** NV21 to I420, then I420 to NV12. */
+  private static void twoPass(byte[] nv21, int width, int height, ByteBuffer i420, ByteBuffer dst) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int lumaSize = width * height;
+    final int uOffset = lumaSize;
+    final int vOffset = uOffset + chromaWidth * chromaHeight;
+    i420.clear();
+    i420.put(nv21, 0, lumaSize);
+    for (int i = 0; i < chromaWidth * chromaHeight; ++i) {
+      i420.put(vOffset + i, nv21[lumaSize + 2 * i]);
+      i420.put(uOffset + i, nv21[lumaSize + 2 * i + 1]);
+    }
+    final ByteBuffer luma = i420.duplicate();
+    luma.clear();
+    luma.limit(lumaSize);
+    dst.clear();
+    dst.put(luma);
+    for (int i = 0; i < chromaWidth * chromaHeight; ++i) {
+      dst.put(lumaSize + 2 * i, i420.get(uOffset + i));
+      dst.put(lumaSize + 2 * i + 1, i420.get(vOffset + i));
+    }
+    MicroBenchmark.sink += dst.get(lumaSize);
+  }
+
+  /** Chroma swap with an absolute put per byte. */
+  private static void absolute(byte[] data, int width, int height, ByteBuffer dst) {
+    final int uvOffset = width * height;
+    final int uvEnd = uvOffset + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    final ByteBuffer out = dst.duplicate();
+    out.clear();
+    out.put(data, 0, uvOffset);
+    for (int i = uvOffset; i < uvEnd; i += 2) {
+      dst.put(i, data[i + 1]);
+      dst.put(i + 1, data[i]);
+    }
+    MicroBenchmark.sink += dst.get(uvOffset);
+  }
+
+  /** The previous copyToNV12(), with a row array allocated per frame. */
+  private static void newRow(byte[] data, int width, int height, ByteBuffer dst) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int uvOffset = width * height;
+    final int uvRowSize = 2 * chromaWidth;
+    final ByteBuffer out = dst.duplicate();
+    out.clear();
+    out.put(data, 0, uvOffset);
+    final byte[] row = new byte[uvRowSize];
+    for (int y = 0; y < chromaHeight; y++) {
+      final int rowStart = uvOffset + y * uvRowSize;
+      for (int x = 0; x < uvRowSize; x += 2) {
+        row[x] = data[rowStart + x + 1];
+        row[x + 1] = data[rowStart + x];
+      }
+      out.put(row);
+    }
+    MicroBenchmark.sink += dst.get(uvOffset);
+  }
+}
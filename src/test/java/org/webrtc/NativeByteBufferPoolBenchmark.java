@@ -0,0 +1,141 @@
+package org.webrtc;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import sun.misc.Unsafe;
+
+/**
+ * Backs the choices behind NativeByteBufferPool and JavaI420Buffer.allocate() with numbers.
+ *
+ * <p>The first table times one I420 frame buffer per operation:
+ * <ul>
+ *   <li>allocateDirect: ByteBuffer.allocateDirect() per frame, a stand-in for the JNI
+ *       nativeAllocateByteBuffer/nativeFreeByteBuffer round trip. It also zero fills the memory,
+ *       so it is an upper bound.
+ *   <li>malloc/free: a bare native malloc and free per frame without the JNI transition or the
+ *       ByteBuffer wrapper, a lower bound for the JNI path.
+ *   <li>pool: NativeByteBufferPool.acquire() and release() hitting an idle buffer.
+ *   <li>I420 allocate: JavaI420Buffer.allocate() and release() served by the pool.
+ * </ul>
+ *
+ * <p>The second table compares size class schemes over the resolutions a camera and the encoder's
+ * resolution adaptation produce: the worst and average bytes wasted by rounding up, and how many
+ * buckets, i.e. separate idle buffers, the resolutions need, alone and with cropped variants of
+ * each. Fewer buckets means a resolution change is more likely to reuse an idle buffer.
+ *
+ * <p>JniCommon is not available on a desktop JVM, so the pool is filled with allocateDirect()
+ * buffers up front and never frees them. See MicroBenchmark for how to run it.
+ */
+public class NativeByteBufferPoolBenchmark {
+  private static final int[][] RESOLUTIONS = {{176, 144}, {320, 180}, {320, 240}, {352, 288},
+      {480, 270}, {480, 360}, {640, 360}, {640, 480}, {960, 540}, {960, 720}, {1280, 720},
+      {1440, 1080}, {1920, 1080}, {2560, 1440}, {3840, 2160}};
+  private static final int[] STEPS_PER_POWER_OF_TWO = {1, 2, 4, 8};
+  // Cropping for aspect ratio and alignment shaves a few pixels off each side.
+  private static final int[] CROPS = {0, 2, 4, 8, 16};
+
+  public static void main(String[] args) throws ReflectiveOperationException {
+    final Unsafe unsafe = getUnsafe();
+    System.out.println(String.format(
+        Locale.US, "%-10s %-15s %10s %10s", "frame", "path", "ns/frame", "allocated"));
+    for (int[] resolution : new int[][] {{640, 480}, {1280, 720}, {1920, 1080}}) {
+      final int width = resolution[0];
+      final int height = resolution[1];
+      final int size = i420Size(width, height);
+      final String frame = width + "x" + height;
+
+      report(frame, "allocateDirect", () -> {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        MicroBenchmark.sink += buffer.capacity();
+      });
+      report(frame, "malloc/free", () -> {
+        final long address = unsafe.allocateMemory(size);
+        unsafe.putByte(address, (byte) 1);
+        unsafe.freeMemory(address);
+        MicroBenchmark.sink += address;
+      });
+
+      final NativeByteBufferPool pool = new NativeByteBufferPool(Long.MAX_VALUE);
+      pool.release(ByteBuffer.allocateDirect(NativeByteBufferPool.sizeClass(size)));
+      report(frame, "pool", () -> {
+        final ByteBuffer buffer = pool.acquire(size);
+        MicroBenchmark.sink += buffer.limit();
+        pool.release(buffer);
+      });
+
+      NativeByteBufferPool.INSTANCE.setMaxIdleBytes(Long.MAX_VALUE);
+      NativeByteBufferPool.INSTANCE.release(
+          ByteBuffer.allocateDirect(NativeByteBufferPool.sizeClass(size)));
+      report(frame, "I420 allocate", () -> {
+        final JavaI420Buffer buffer = JavaI420Buffer.allocate(width, height);
+        MicroBenchmark.sink += buffer.getStrideY();
+        buffer.release();
+      });
+      if (NativeByteBufferPool.INSTANCE.getMissCount() != 0) {
+        throw new AssertionError("JavaI420Buffer.allocate() missed the pool");
+      }
+    }
+
+    System.out.println();
+    System.out.println(String.format(
+        Locale.US, "%-22s %11s %11s %8s %8s", "size classes", "max waste", "avg waste", "buckets",
+        "cropped"));
+    report("exact", 0);
+    for (int steps : STEPS_PER_POWER_OF_TWO) {
+      report(steps + " per power of two", steps);
+    }
+  }
+
+  private static void report(String frame, String path, Runnable operation) {
+    final double nsPerFrame = MicroBenchmark.nsPerOp(operation);
+    final long allocatedBytes = MicroBenchmark.allocatedBytesPerOp(operation, 10000);
+    System.out.println(String.format(
+        Locale.US, "%-10s %-15s %10.1f %10d", frame, path, nsPerFrame, allocatedBytes));
+  }
+
+  /** Prints the rounding overhead of |steps| size classes per power of two, 0 for exact sizes. */
+  private static void report(String scheme, int steps) {
+    double maxWaste = 0;
+    double totalWaste = 0;
+    final Set<Integer> buckets = new HashSet<>();
+    final Set<Integer> croppedBuckets = new HashSet<>();
+    for (int[] resolution : RESOLUTIONS) {
+      final int size = i420Size(resolution[0], resolution[1]);
+      final int capacity = steps == 0 ? size : sizeClass(size, steps);
+      if (steps == 4 && capacity != NativeByteBufferPool.sizeClass(size)) {
+        throw new AssertionError("Size class differs from NativeByteBufferPool for " + size);
+      }
+      final double waste = (double) (capacity - size) / size;
+      maxWaste = Math.max(maxWaste, waste);
+      totalWaste += waste;
+      buckets.add(capacity);
+      for (int crop : CROPS) {
+        final int croppedSize = i420Size(resolution[0] - crop, resolution[1] - crop);
+        croppedBuckets.add(steps == 0 ? croppedSize : sizeClass(croppedSize, steps));
+      }
+    }
+    System.out.println(String.format(Locale.US, "%-22s %10.1f%% %10.1f%% %8d %8d", scheme,
+        100 * maxWaste, 100 * totalWaste / RESOLUTIONS.length, buckets.size(),
+        croppedBuckets.size()));
+  }
+
+  /** NativeByteBufferPool.sizeClass() with |steps| instead of four steps per power of two. */
+  private static int sizeClass(int size, int steps) {
+    final int step = Math.max(1, Integer.highestOneBit(size - 1) / steps);
+    return Math.max(4096, ((size - 1) / step + 1) * step);
+  }
+
+  /** Bytes JavaI420Buffer.allocate() asks the pool for. */
+  private static int i420Size(int width, int height) {
+    return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+  }
+
+  private static Unsafe getUnsafe() throws ReflectiveOperationException {
+    final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+    field.setAccessible(true);
+    return (Unsafe) field.get(null);
+  }
+}
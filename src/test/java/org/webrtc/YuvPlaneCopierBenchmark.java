@@ -0,0 +1,125 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares YuvPlaneCopier.copyI420ToNV21(), which moves the planes with copyPlane() and
+ * interleavePlanes(), against the per-byte loops YuvFrame used before, one absolute get() per
+ * sample. Sources are direct buffers with the strides Camera1 frames arrive in:
+ * <ul>
+ *   <li>packed: NV21 preview frames converted to I420, luma stride |width| and chroma stride
+ *       |chromaWidth|.
+ *   <li>YV12: the layout Camera.Parameters documents for YV12 previews, the luma stride aligned to
+ *       16 and the chroma stride to 16 after halving.
+ * </ul>
+ * The frame time is split into the luma and the chroma plane. See MicroBenchmark for how to run
+ * it.
+ */
+public class YuvPlaneCopierBenchmark {
+  private static final int[][] RESOLUTIONS = {{720, 480}, {1280, 720}, {1920, 1080}, {3840, 2160}};
+
+  public static void main(String[] args) {
+    System.out.println(String.format(Locale.US, "%-10s %-7s %-10s %10s %10s %10s %8s %10s", "frame",
+        "strides", "path", "us/frame", "us luma", "us chroma", "GB/s", "allocated"));
+    for (int[] resolution : RESOLUTIONS) {
+      final int width = resolution[0];
+      final int height = resolution[1];
+      run(width, height, width, (width + 1) / 2, "packed");
+      final int yv12Stride = align(width, 16);
+      run(width, height, yv12Stride, align(yv12Stride / 2, 16), "YV12");
+    }
+  }
+
+  private static void run(int width, int height, int strideY, int strideUV, String strides) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final ByteBuffer dataY = filledDirect(strideY * height, 7);
+    final ByteBuffer dataU = filledDirect(strideUV * chromaHeight, 11);
+    final ByteBuffer dataV = filledDirect(strideUV * chromaHeight, 13);
+    final VideoFrame.I420Buffer i420 = JavaI420Buffer.wrap(width, height, dataY, strideY, dataU,
+        strideUV, dataV, strideUV, null /* releaseCallback */);
+    final int lumaSize = width * height;
+    final byte[] dst = new byte[YuvFormat.NV21.getDataSize(width, height)];
+
+    final String frame = width + "x" + height;
+    report(frame, strides, "per byte", dst.length,
+        () -> perByteLuma(i420, dst), () -> perByteChroma(i420, dst));
+    // The two steps of copyI420ToNV21().
+    report(frame, strides, "bulk", dst.length,
+        () -> YuvPlaneCopier.copyPlane(i420.getDataY(), strideY, dst, 0, width, width, height),
+        () -> YuvPlaneCopier.interleavePlanes(i420.getDataV(), strideUV, i420.getDataU(),
+            strideUV, dst, lumaSize, 2 * chromaWidth, chromaWidth, chromaHeight));
+
+    // Both paths produce the same NV21 frame.
+    final byte[] expected = new byte[dst.length];
+    perByteLuma(i420, expected);
+    perByteChroma(i420, expected);
+    YuvPlaneCopier.copyI420ToNV21(i420, dst);
+    if (!Arrays.equals(expected, dst)) {
+      throw new AssertionError("YuvPlaneCopier differs from the per byte loops");
+    }
+  }
+
+  private static void report(String frame, String strides, String path, int frameSize,
+      Runnable luma, Runnable chroma) {
+    final Runnable both = () -> {
+      luma.run();
+      chroma.run();
+    };
+    final double nsPerFrame = MicroBenchmark.nsPerOp(both);
+    final double nsLuma = MicroBenchmark.nsPerOp(luma);
+    final double nsChroma = MicroBenchmark.nsPerOp(chroma);
+    final long allocatedBytes = MicroBenchmark.allocatedBytesPerOp(both, 100);
+    // Every output byte is read once and written once.
+    System.out.println(String.format(Locale.US, "%-10s %-7s %-10s %10.1f %10.1f %10.1f %8.2f %10d",
+        frame, strides, path, nsPerFrame / 1000, nsLuma / 1000, nsChroma / 1000,
+        2.0 * frameSize / nsPerFrame, allocatedBytes));
+  }
+
+  /** The luma loop YuvFrame used before YuvPlaneCopier. */
+  private static void perByteLuma(VideoFrame.I420Buffer src, byte[] dst) {
+    final int width = src.getWidth();
+    final int height = src.getHeight();
+    final ByteBuffer yPlane = src.getDataY();
+    final int yStride = src.getStrideY();
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        dst[y * width + x] = yPlane.get(y * yStride + x);
+      }
+    }
+    MicroBenchmark.sink += dst[0];
+  }
+
+  /** The chroma loop YuvFrame used before YuvPlaneCopier, with the packed NV21 chroma stride. */
+  private static void perByteChroma(VideoFrame.I420Buffer src, byte[] dst) {
+    final int size = src.getWidth() * src.getHeight();
+    final int chromaWidth = (src.getWidth() + 1) / 2;
+    final int chromaHeight = (src.getHeight() + 1) / 2;
+    final int chromaStride = 2 * chromaWidth;
+    final ByteBuffer uPlane = src.getDataU();
+    final ByteBuffer vPlane = src.getDataV();
+    final int uStride = src.getStrideU();
+    final int vStride = src.getStrideV();
+    for (int y = 0; y < chromaHeight; y++) {
+      for (int x = 0; x < chromaWidth; x++) {
+        dst[size + y * chromaStride + 2 * x + 1] = uPlane.get(y * uStride + x);
+        dst[size + y * chromaStride + 2 * x] = vPlane.get(y * vStride + x);
+      }
+    }
+    MicroBenchmark.sink += dst[size];
+  }
+
+  private static ByteBuffer filledDirect(int size, int seed) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+    for (int i = 0; i < size; ++i) {
+      buffer.put(i, (byte) (i * seed));
+    }
+    return buffer;
+  }
+
+  private static int align(int value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+}